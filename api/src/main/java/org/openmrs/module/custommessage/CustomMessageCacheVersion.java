@@ -0,0 +1,76 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+/**
+ * Single row stamp that is increased with every change of custom messages. Nodes sharing the same
+ * database compare it with the stamp their cached messages were built at, so they notice changes
+ * made by other nodes.
+ */
+public class CustomMessageCacheVersion {
+	
+	/** The identifier of the only row of version stamp */
+	public static final Integer ID = 1;
+	
+	/** The identifier of this row */
+	private Integer id;
+	
+	/** The current version of custom messages */
+	private Long version;
+	
+	/**
+	 * Creates empty instance of this class, needed for creating instance via reflection
+	 */
+	public CustomMessageCacheVersion() {
+	}
+	
+	/**
+	 * Creates new instance of this class using values for corresponding fields
+	 * 
+	 * @param id the identifier of row
+	 * @param version the version of custom messages
+	 */
+	public CustomMessageCacheVersion(Integer id, Long version) {
+		this.id = id;
+		this.version = version;
+	}
+	
+	/**
+	 * @return the id
+	 */
+	public Integer getId() {
+		return id;
+	}
+	
+	/**
+	 * @param id the id to set
+	 */
+	public void setId(Integer id) {
+		this.id = id;
+	}
+	
+	/**
+	 * @return the version
+	 */
+	public Long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @param version the version to set
+	 */
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+}
@@ -13,17 +13,31 @@
  */
 package org.openmrs.module.custommessage;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.GlobalProperty;
@@ -33,8 +47,21 @@ import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.messagesource.MutableMessageSource;
 import org.openmrs.messagesource.PresentationMessage;
 import org.openmrs.messagesource.PresentationMessageMap;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.custommessage.cache.LocaleFallbackTable;
+import org.openmrs.module.custommessage.cache.MessageCodeFilter;
+import org.openmrs.module.custommessage.cache.MessageStorage;
+import org.openmrs.module.custommessage.cache.MessageTable;
+import org.openmrs.module.custommessage.cache.MessagesSnapshot;
+import org.openmrs.module.custommessage.cache.SnapshotFile;
+import org.openmrs.module.custommessage.service.CustomMessageHandler;
 import org.openmrs.module.custommessage.service.CustomMessageService;
+import org.openmrs.util.LocaleUtility;
+import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.MessageSource;
@@ -43,14 +70,75 @@ import org.springframework.context.support.AbstractMessageSource;
 /**
  * Registers the custom message source service
  */
-public class CustomMessageSource extends AbstractMessageSource implements MutableMessageSource, ApplicationContextAware, GlobalPropertyListener {
+public class CustomMessageSource extends AbstractMessageSource implements MutableMessageSource, ApplicationContextAware, GlobalPropertyListener, DisposableBean {
 	
 	protected static final Log log = LogFactory.getLog(CustomMessageSource.class);
-	private Map<Locale, PresentationMessageMap> cache = null;
-	private boolean showMessageCode = false;
+	
+	/** The current snapshot of merged messages, it is replaced as a whole and never modified in place */
+	private volatile MessagesSnapshot snapshot = null;
+	
+	/** Guards changing and publishing of snapshots, readers never acquire it */
+	private final Object snapshotLock = new Object();
+	
+	/**
+	 * Serializes builds of whole snapshot, which read the database without holding the snapshot
+	 * lock. It is always acquired before the snapshot lock, never while holding it.
+	 */
+	private final Object refreshLock = new Object();
+	
+	/**
+	 * The changes made while whole snapshot is being built, which are applied to the built snapshot
+	 * before it is published, null when no build is running. Guarded by the snapshot lock.
+	 */
+	private List<PendingChange> pendingChanges = null;
+	
+	private volatile boolean showMessageCode = false;
+	
+	/** The number of lookups rejected because their code is not known in any locale */
+	private final AtomicLong rejectedCodeCount = new AtomicLong();
+	
+	/** Runs background refreshes and version checks of the cache one at a time, so they never overlap */
+	private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "custommessage-cache-refresh");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/** Set while background refresh is queued and has not started yet, so further requests join it */
+	private final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+	
+	/** The time in milliseconds the last refresh took, or -1 if cache has not been refreshed yet */
+	private volatile long lastRefreshDuration = -1;
+	
+	/** The time the last refresh finished at, or null if cache has not been refreshed yet */
+	private volatile Date lastRefreshTime = null;
+	
+	/** The version stamp of custom messages the current snapshot has been built at */
+	private volatile long cacheVersion = -1;
+	
+	/** Set once periodic checking of version stamp has been scheduled */
+	private final AtomicBoolean versionPollingStarted = new AtomicBoolean(false);
+	
+	/** The locales which have messages, either custom or parent ones, replaced as a whole when changed */
+	private volatile Set<Locale> availableLocales = Collections.emptySet();
 	
 	public static final String GLOBAL_PROPERTY_SHOW_MESSAGE_CODES = "custommessage.showMessageCodes";
 	
+	public static final String GLOBAL_PROPERTY_FALLBACK_LOCALE = "custommessage.fallbackLocale";
+	
+	public static final String GLOBAL_PROPERTY_MESSAGE_STORAGE = "custommessage.messageStorage";
+	
+	public static final String GLOBAL_PROPERTY_CACHE_VERSION_POLL_INTERVAL = "custommessage.cacheVersionPollInterval";
+	
+	/** The number of changed custom messages above which the cache is rebuilt instead of updated */
+	public static final int BULK_REFRESH_THRESHOLD = 100;
+	
+	/** The interval in seconds used to check version stamp when it is not configured */
+	public static final int DEFAULT_CACHE_VERSION_POLL_INTERVAL = 30;
+	
 	/**
 	 * @see ApplicationContextAware#setApplicationContext(ApplicationContext)
 	 */
@@ -63,13 +151,88 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	}
 	
 	/**
-	 * @return the cached messages, merged from the custom source and the parent source
+	 * @return the cached messages, merged from the custom source and the parent source. Returned
+	 *         map is created from the message table of current snapshot on each call, so reading
+	 *         {@link MessagesSnapshot#getTable()} is preferred
 	 */
-	public synchronized Map<Locale, PresentationMessageMap> getCachedMessages() {
-		if (cache == null) {
-			refreshCache();
+	public Map<Locale, PresentationMessageMap> getCachedMessages() {
+		return getCompleteSnapshot().getMessages();
+	}
+	
+	/**
+	 * Gets the current snapshot of messages. The first call loads it from the snapshot file written
+	 * by earlier run if that is still valid, otherwise it creates snapshot with no locales loaded.
+	 * This method does not lock once the snapshot is available. Returned snapshot may not hold all
+	 * locales, use {@link #getSnapshot(Locale)} or {@link #getCompleteSnapshot()} to read messages.
+	 * 
+	 * @return the current snapshot of merged messages
+	 */
+	public MessagesSnapshot getSnapshot() {
+		MessagesSnapshot current = snapshot;
+		if (current == null) {
+			synchronized (refreshLock) {
+				if (snapshot == null && !loadPersistedSnapshot()) {
+					refreshCache();
+				}
+				current = snapshot;
+			}
 		}
-		return cache;
+		return current;
+	}
+	
+	/**
+	 * Gets the current snapshot of messages, loading messages of given locale and the rest of its
+	 * fallback chain first if they have not been loaded yet. This method does not lock once the
+	 * locale is loaded.
+	 * 
+	 * @param locale the requested locale
+	 * @return the current snapshot which holds messages of given locale
+	 */
+	public MessagesSnapshot getSnapshot(Locale locale) {
+		MessagesSnapshot current = getSnapshot();
+		if (current.isLoaded(locale)) {
+			return current;
+		}
+		synchronized (snapshotLock) {
+			current = snapshot;
+			if (!current.isLoaded(locale)) {
+				current = loadLocales(current, Collections.singleton(locale));
+				snapshot = current;
+				persistSnapshot(current, getCacheFingerprint(cacheVersion));
+			}
+			return current;
+		}
+	}
+	
+	/**
+	 * Gets the current snapshot of messages, loading all locales that have not been loaded yet.
+	 * Loaded locales stay in the snapshot, so this should be used only where all locales are
+	 * needed, like exports. This method does not lock once all locales are loaded.
+	 * 
+	 * @return the current snapshot which holds messages of all locales
+	 */
+	public MessagesSnapshot getCompleteSnapshot() {
+		MessagesSnapshot current = getSnapshot();
+		if (isComplete(current)) {
+			return current;
+		}
+		synchronized (snapshotLock) {
+			current = snapshot;
+			MessagesSnapshot complete = loadLocales(current, availableLocales);
+			if (complete != current) {
+				snapshot = complete;
+				persistSnapshot(complete, getCacheFingerprint(cacheVersion));
+			}
+			return complete;
+		}
+	}
+	
+	/**
+	 * @return true if given snapshot holds messages of all available locales
+	 */
+	private boolean isComplete(MessagesSnapshot current) {
+		Set<Locale> loaded = current.getLoadedLocales();
+		return loaded == null || loaded.containsAll(availableLocales);
 	}
 	
 	/**
@@ -83,17 +246,20 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	 * @return a Map from code to Map of Locale string to message
 	 */
 	public Map<String, Map<Locale, PresentationMessage>> getAllMessagesByCode() {
-		Map<String, Map<Locale, PresentationMessage>> ret = new TreeMap<String, Map<Locale, PresentationMessage>>();
-		Map<Locale, PresentationMessageMap> m = getCachedMessages();
-		for (Locale locale : m.keySet()) {
-			PresentationMessageMap pmm = m.get(locale);
-			for (String code : pmm.keySet()) {
-				Map<Locale, PresentationMessage> messagesForCode = ret.get(code);
-				if (messagesForCode == null) {
-					messagesForCode = new LinkedHashMap<Locale, PresentationMessage>();
-					ret.put(code, messagesForCode);
+		// codes are walked in sorted order of the table, so insertion order is already sorted
+		Map<String, Map<Locale, PresentationMessage>> ret = new LinkedHashMap<String, Map<Locale, PresentationMessage>>();
+		MessageTable table = getCompleteSnapshot().getTable();
+		for (int id : table.getSortedCodeIds()) {
+			Map<Locale, PresentationMessage> messagesForCode = null;
+			for (Locale locale : table.getLocales()) {
+				String message = table.getMessage(id, locale);
+				if (message != null) {
+					if (messagesForCode == null) {
+						messagesForCode = new LinkedHashMap<Locale, PresentationMessage>();
+						ret.put(table.getCode(id), messagesForCode);
+					}
+					messagesForCode.put(locale, new PresentationMessage(table.getCode(id), locale, message, null));
 				}
-				messagesForCode.put(locale, pmm.get(code));
 			}
 		}
 		return ret;
@@ -103,37 +269,511 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	 * @param pm the presentation message to add to the cache
 	 * @param override if true, should override any existing message
 	 */
-	public void addPresentationMessageToCache(PresentationMessage pm, boolean override) {
-		PresentationMessageMap pmm = getCachedMessages().get(pm.getLocale());
-		if (pmm == null) {
-			pmm = new PresentationMessageMap(pm.getLocale());
-			getCachedMessages().put(pm.getLocale(), pmm);
+	public void addPresentationMessageToCache(final PresentationMessage pm, final boolean override) {
+		// the first load takes the refresh lock, which must not be taken while holding the snapshot lock
+		getSnapshot();
+		synchronized (snapshotLock) {
+			snapshot = getSnapshot(pm.getLocale()).withPresentation(pm, override);
+			addAvailableLocale(pm.getLocale());
+			if (pendingChanges != null) {
+				pendingChanges.add(new PendingChange(-1) {
+					
+					@Override
+					MessagesSnapshot applyTo(MessagesSnapshot built) {
+						addAvailableLocale(pm.getLocale());
+						return loadLocales(built, Collections.singleton(pm.getLocale())).withPresentation(pm, override);
+					}
+				});
+			}
 		}
-		if (pmm.get(pm.getCode()) == null || override) {
-			pmm.put(pm.getCode(), pm);
+	}
+	
+	/**
+	 * Applies custom messages saved and deleted together in committed transaction to the cache,
+	 * publishing single new snapshot. Locales that have not been loaded yet are skipped, as they
+	 * are read from database on first use. Large changes rebuild the cache in background instead,
+	 * as that is cheaper than copying the affected locales for every message.
+	 * <p>
+	 * The cache is marked to be at the version stamp produced by the changes only if it follows
+	 * the stamp of the cache right away, otherwise there have been changes this server has not seen
+	 * and the next check of version stamp rebuilds the cache. Changes made while whole snapshot is
+	 * being built are applied to the built snapshot again, as the build may have read messages from
+	 * database before they were committed.
+	 * 
+	 * @param saved the custom messages that have been saved
+	 * @param deleted the custom messages that have been deleted
+	 * @param version the version stamp of custom messages produced by the changes
+	 */
+	public void updateCustomMessages(final Collection<CustomMessage> saved, final Collection<CustomMessage> deleted,
+	        long version) {
+		synchronized (snapshotLock) {
+			if (snapshot == null && pendingChanges == null) {
+				// nothing is cached yet, first use reads committed messages
+				return;
+			}
+			if (saved.size() + deleted.size() > BULK_REFRESH_THRESHOLD) {
+				requestRefresh();
+				return;
+			}
+			if (pendingChanges != null) {
+				pendingChanges.add(new PendingChange(version) {
+					
+					@Override
+					MessagesSnapshot applyTo(MessagesSnapshot built) {
+						return withCustomMessages(built, saved, deleted);
+					}
+				});
+			}
+			if (snapshot != null) {
+				snapshot = withCustomMessages(snapshot, saved, deleted);
+				advanceCacheVersion(version);
+			}
 		}
 	}
 	
 	/**
-	 * Refreshes the cache, merged from the custom source and the parent source
+	 * Creates copy of given snapshot with given custom messages saved and deleted, must be called
+	 * while holding the snapshot lock
 	 */
-	public synchronized void refreshCache() {
-		cache = getCustomMessageService().getPresentationMessagesByLocale();
-		for (PresentationMessage pm : getMutableParentSource().getPresentations()) {
-			if (!pm.getCode().contains("<!--")) {
-				addPresentationMessageToCache(pm, false);
+	private MessagesSnapshot withCustomMessages(MessagesSnapshot current, Collection<CustomMessage> saved,
+	        Collection<CustomMessage> deleted) {
+		MessagesSnapshot updated = current;
+		for (CustomMessage customMessage : deleted) {
+			if (updated.isLoaded(customMessage.getLocale())) {
+				updated = updated.withoutCustomMessage(customMessage.getCode(), customMessage.getLocale());
+			}
+		}
+		for (CustomMessage customMessage : saved) {
+			if (updated.isLoaded(customMessage.getLocale())) {
+				updated = updated.withCustomMessage(customMessage.getCode(), customMessage.getLocale(), customMessage
+				        .getMessage());
 			}
+			addAvailableLocale(customMessage.getLocale());
+		}
+		return updated;
+	}
+	
+	/**
+	 * Marks the cache to be at given version stamp if it follows the current one right away, must be
+	 * called while holding the snapshot lock
+	 */
+	private void advanceCacheVersion(long version) {
+		if (version == cacheVersion + 1) {
+			cacheVersion = version;
+		}
+	}
+	
+	/**
+	 * Refreshes the cache, merged from the custom source and the parent source. Only the locales
+	 * loaded so far are loaded again, the others are loaded on first use. New snapshot is built
+	 * aside and published at once, so readers keep using the previous one until then. The database
+	 * is read without holding the snapshot lock, so messages keep being changed during the build,
+	 * and these changes are applied to new snapshot again when it is published. This method builds
+	 * the snapshot on caller's thread, use {@link #requestRefresh()} to build it in background.
+	 */
+	public void refreshCache() {
+		synchronized (refreshLock) {
+			long start = System.currentTimeMillis();
+			MessagesSnapshot previous = beginBuild();
+			MessagesSnapshot built = null;
+			long version;
+			try {
+				// read the stamp first, so changes made during the build are picked up by the next check
+				version = getCustomMessageService().getCacheVersion();
+				availableLocales = loadAvailableLocales();
+				Locale fallbackLocale = getFallbackLocale();
+				MessageStorage storage = getMessageStorage();
+				if (previous != null && previous.getLoadedLocales() == null) {
+					built = MessagesSnapshot.build(getCustomMessageService().getPresentationMessagesByLocale(),
+					    getMutableParentSource().getPresentations(), fallbackLocale, storage);
+				} else {
+					MessagesSnapshot empty = MessagesSnapshot.build(new HashMap<Locale, PresentationMessageMap>(),
+					    new ArrayList<PresentationMessage>(), fallbackLocale, storage, new HashSet<Locale>());
+					built = withAllCodes(previous == null ? empty : loadLocales(empty, previous.getLoadedLocales()));
+				}
+			}
+			finally {
+				if (built == null) {
+					discardPendingChanges();
+				}
+			}
+			publish(built, version, start, true);
 		}
 		updateShowMessageCode();
+		startVersionPolling();
+	}
+	
+	/**
+	 * Loads the snapshot from the snapshot file, if that has been written in the same state of
+	 * database and started modules. Nothing is loaded when the snapshot is already available.
+	 * 
+	 * @return true if the snapshot is available afterwards
+	 */
+	public boolean loadPersistedSnapshot() {
+		synchronized (refreshLock) {
+			if (snapshot != null) {
+				return true;
+			}
+			long start = System.currentTimeMillis();
+			beginBuild();
+			MessagesSnapshot loaded = null;
+			long version;
+			try {
+				version = getCustomMessageService().getCacheVersion();
+				availableLocales = loadAvailableLocales();
+				try {
+					loaded = SnapshotFile.read(getSnapshotFile(), getCacheFingerprint(version), getFallbackLocale(),
+					    getMessageStorage());
+				}
+				catch (IOException e) {
+					log.warn("Unable to read custom messages snapshot file, messages are loaded from database", e);
+				}
+				if (loaded != null) {
+					loaded = withAllCodes(loaded);
+				}
+			}
+			finally {
+				if (loaded == null) {
+					discardPendingChanges();
+				}
+			}
+			if (loaded == null) {
+				return false;
+			}
+			publish(loaded, version, start, false);
+		}
+		updateShowMessageCode();
+		startVersionPolling();
+		return true;
+	}
+	
+	/**
+	 * Starts recording changes made while whole snapshot is being built
+	 * 
+	 * @return the current snapshot, which may be null
+	 */
+	private MessagesSnapshot beginBuild() {
+		synchronized (snapshotLock) {
+			pendingChanges = new ArrayList<PendingChange>();
+			return snapshot;
+		}
+	}
+	
+	/**
+	 * Stops recording changes when the build of whole snapshot has not completed
+	 */
+	private void discardPendingChanges() {
+		synchronized (snapshotLock) {
+			pendingChanges = null;
+		}
+	}
+	
+	/**
+	 * Publishes built snapshot, together with changes recorded while it has been built
+	 * 
+	 * @param built the built snapshot
+	 * @param version the version stamp read before the build
+	 * @param start the time the build has started at
+	 * @param persist true if published snapshot is to be written to the snapshot file
+	 */
+	private void publish(MessagesSnapshot built, long version, long start, boolean persist) {
+		synchronized (snapshotLock) {
+			cacheVersion = version;
+			for (PendingChange change : pendingChanges) {
+				built = change.applyTo(built);
+				advanceCacheVersion(change.version);
+			}
+			pendingChanges = null;
+			snapshot = built;
+			lastRefreshDuration = System.currentTimeMillis() - start;
+			lastRefreshTime = new Date();
+			if (persist) {
+				persistSnapshot(built, getCacheFingerprint(cacheVersion));
+			}
+		}
+	}
+	
+	/**
+	 * Creates copy of given snapshot which holds messages of given locales and the rest of their
+	 * fallback chains. Only custom and parent messages of locales which have any messages and have
+	 * not been loaded yet are read.
+	 */
+	private MessagesSnapshot loadLocales(MessagesSnapshot current, Collection<Locale> locales) {
+		Set<Locale> toLoad = new HashSet<Locale>();
+		for (Locale locale : locales) {
+			toLoad.addAll(LocaleFallbackTable.getFallbackChain(locale, current.getFallbackLocale()));
+		}
+		Map<Locale, PresentationMessageMap> customs = new HashMap<Locale, PresentationMessageMap>();
+		Collection<PresentationMessage> parents = new ArrayList<PresentationMessage>();
+		for (Locale locale : toLoad) {
+			if (!current.isLoaded(locale) && availableLocales.contains(locale)) {
+				customs.put(locale, getCustomMessageService().getPresentationMessagesForLocale(locale));
+				parents.addAll(getMutableParentSource().getPresentationsInLocale(locale));
+			}
+		}
+		return current.withLocales(toLoad, customs, parents);
+	}
+	
+	/**
+	 * Gives snapshot which holds only some locales the filter of codes of all locales, so lookups of
+	 * unknown codes are rejected without loading messages of the other locales. Only the codes are
+	 * read, messages are left to be loaded on first use of their locale.
+	 */
+	private MessagesSnapshot withAllCodes(MessagesSnapshot partial) {
+		if (partial.getLoadedLocales() == null || partial.getCodeFilter() != null) {
+			return partial;
+		}
+		final Set<String> codes = new HashSet<String>();
+		for (PresentationMessage pm : getMutableParentSource().getPresentations()) {
+			codes.add(pm.getCode());
+		}
+		getCustomMessageService().streamCustomMessages(null, null, new CustomMessageHandler() {
+			
+			public void handle(String code, Locale locale, String message, String locationId) {
+				codes.add(code);
+			}
+		});
+		return partial.withCodeFilter(MessageCodeFilter.build(codes));
+	}
+	
+	/**
+	 * Reads the locales which have any custom or parent messages
+	 */
+	private Set<Locale> loadAvailableLocales() {
+		Set<Locale> locales = new HashSet<Locale>(getMutableParentSource().getLocales());
+		locales.addAll(getCustomMessageService().getCustomMessageLocales());
+		return Collections.unmodifiableSet(locales);
+	}
+	
+	/**
+	 * Adds given locale to available locales, must be called while holding the snapshot lock
+	 */
+	private void addAvailableLocale(Locale locale) {
+		if (!availableLocales.contains(locale)) {
+			Set<Locale> locales = new HashSet<Locale>(availableLocales);
+			locales.add(locale);
+			availableLocales = Collections.unmodifiableSet(locales);
+		}
+	}
+	
+	/**
+	 * @return the file the snapshot is persisted to, in the application data directory
+	 */
+	public File getSnapshotFile() {
+		return new File(new File(OpenmrsUtil.getApplicationDataDirectory(), "custommessage"), "snapshot.bin");
+	}
+	
+	/**
+	 * Creates the fingerprint of state the snapshot is built in. It consists of OpenMRS version,
+	 * version stamp of custom messages, versions of started modules, which provide the messages of
+	 * parent source, and fallback locale, which decides the locales loaded together.
+	 * 
+	 * @param version the version stamp of custom messages
+	 * @return the fingerprint
+	 */
+	public String getCacheFingerprint(long version) {
+		Set<String> modules = new TreeSet<String>();
+		for (Module module : ModuleFactory.getStartedModules()) {
+			modules.add(module.getModuleId() + ":" + module.getVersion());
+		}
+		return OpenmrsConstants.OPENMRS_VERSION_SHORT + "|" + version + "|" + StringUtils.join(modules.toArray(), ",")
+		        + "|" + getFallbackLocale();
+	}
+	
+	/**
+	 * Writes given snapshot to the snapshot file on the refresh thread, so the caller does not wait
+	 * for it
+	 */
+	private void persistSnapshot(final MessagesSnapshot toPersist, final String fingerprint) {
+		try {
+			refreshExecutor.execute(new Runnable() {
+				
+				public void run() {
+					try {
+						SnapshotFile.write(getSnapshotFile(), fingerprint, toPersist);
+					}
+					catch (IOException e) {
+						log.warn("Unable to write custom messages snapshot file", e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// message source is being destroyed, the snapshot is written by the next run
+		}
+	}
+	
+	/**
+	 * Schedules the first check of version stamp, unless it has been scheduled already
+	 */
+	private void startVersionPolling() {
+		if (versionPollingStarted.compareAndSet(false, true)) {
+			scheduleVersionCheck(DEFAULT_CACHE_VERSION_POLL_INTERVAL);
+		}
+	}
+	
+	/**
+	 * Refreshes the cache if custom messages have been changed in database since the current
+	 * snapshot was built, e.g. by another server sharing the same database
+	 * 
+	 * @return true if the cache has been refreshed
+	 */
+	public boolean checkCacheVersion() {
+		if (getCustomMessageService().getCacheVersion() == cacheVersion) {
+			return false;
+		}
+		refreshCache();
+		return true;
+	}
+	
+	/**
+	 * @return the interval in seconds to check version stamp of custom messages in, zero or less
+	 *         means that checking is disabled
+	 */
+	public int getCacheVersionPollInterval() {
+		String interval = Context.getAdministrationService().getGlobalProperty(GLOBAL_PROPERTY_CACHE_VERSION_POLL_INTERVAL,
+		    String.valueOf(DEFAULT_CACHE_VERSION_POLL_INTERVAL));
+		try {
+			return Integer.parseInt(interval.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value of global property " + GLOBAL_PROPERTY_CACHE_VERSION_POLL_INTERVAL + ": " + interval);
+			return DEFAULT_CACHE_VERSION_POLL_INTERVAL;
+		}
+	}
+	
+	/**
+	 * Schedules the next check of version stamp on the refresh thread. When checking is disabled,
+	 * only the configured interval is read again after default interval.
+	 */
+	private void scheduleVersionCheck(long delay) {
+		try {
+			refreshExecutor.schedule(new Runnable() {
+				
+				public void run() {
+					int interval = DEFAULT_CACHE_VERSION_POLL_INTERVAL;
+					Context.openSession();
+					try {
+						interval = getCacheVersionPollInterval();
+						if (interval > 0) {
+							checkCacheVersion();
+						}
+					}
+					catch (RuntimeException e) {
+						log.warn("Unable to check version of custom messages", e);
+					}
+					finally {
+						Context.closeSession();
+					}
+					scheduleVersionCheck(interval > 0 ? interval : DEFAULT_CACHE_VERSION_POLL_INTERVAL);
+				}
+			}, delay, TimeUnit.SECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			// message source is being destroyed, there is nothing to check anymore
+		}
+	}
+	
+	/**
+	 * Requests refresh of the cache in background. The current snapshot keeps being served until the
+	 * new one is built. Requests made before queued refresh starts are coalesced into that refresh,
+	 * while requests made during the rebuild queue one more refresh, so changes they were made for
+	 * are not missed.
+	 */
+	public void requestRefresh() {
+		if (refreshQueued.compareAndSet(false, true)) {
+			try {
+				refreshExecutor.execute(new Runnable() {
+					
+					public void run() {
+						refreshQueued.set(false);
+						Context.openSession();
+						try {
+							refreshCache();
+						}
+						catch (RuntimeException e) {
+							log.error("Unable to refresh custom messages cache", e);
+						}
+						finally {
+							Context.closeSession();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// message source is being destroyed, there is nothing to refresh anymore
+				refreshQueued.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * @return the time in milliseconds the last refresh of the cache took, or -1 if the cache has
+	 *         not been refreshed yet
+	 */
+	public long getLastRefreshDuration() {
+		return lastRefreshDuration;
+	}
+	
+	/**
+	 * @return the time the last refresh of the cache finished at, or null if the cache has not been
+	 *         refreshed yet
+	 */
+	public Date getLastRefreshTime() {
+		Date time = lastRefreshTime;
+		return time == null ? null : new Date(time.getTime());
+	}
+	
+	/**
+	 * Stops the background refresh thread, together with checking of version stamp
+	 * 
+	 * @see DisposableBean#destroy()
+	 */
+	public void destroy() {
+		refreshExecutor.shutdownNow();
 	}
 	
 	/**
 	 * Updates the showMessageCode variable based on the global property configuration
 	 */
 	public void updateShowMessageCode() {
-		showMessageCode = "true".equals(Context.getAdministrationService().getGlobalProperty(GLOBAL_PROPERTY_SHOW_MESSAGE_CODES, "false"));
+		setShowMessageCode("true".equals(Context.getAdministrationService().getGlobalProperty(GLOBAL_PROPERTY_SHOW_MESSAGE_CODES, "false")));
+	}
+	
+	/**
+	 * @param showMessageCode true if codes are to be shown instead of messages
+	 */
+	public void setShowMessageCode(boolean showMessageCode) {
+		this.showMessageCode = showMessageCode;
 	}
 
+	/**
+	 * @return the locale configured to resolve messages in when there is no message in requested
+	 *         locale nor in its language, or null if it is not configured
+	 */
+	public Locale getFallbackLocale() {
+		String fallbackLocale = Context.getAdministrationService().getGlobalProperty(GLOBAL_PROPERTY_FALLBACK_LOCALE, "");
+		if (StringUtils.isBlank(fallbackLocale)) {
+			return null;
+		}
+		return LocaleUtility.fromSpecification(fallbackLocale.trim());
+	}
+	
+	/**
+	 * @return the storage configured to keep effective messages in, messages are kept on heap unless
+	 *         direct or mapped storage is configured
+	 */
+	public MessageStorage getMessageStorage() {
+		String mode = Context.getAdministrationService().getGlobalProperty(GLOBAL_PROPERTY_MESSAGE_STORAGE,
+		    MessageStorage.MODE_HEAP).trim();
+		if (MessageStorage.MODE_DIRECT.equalsIgnoreCase(mode)) {
+			return MessageStorage.DIRECT;
+		} else if (MessageStorage.MODE_MAPPED.equalsIgnoreCase(mode)) {
+			return MessageStorage.mapped(new File(OpenmrsUtil.getApplicationDataDirectory(), "custommessage"));
+		}
+		return MessageStorage.HEAP;
+	}
+	
 	/**
 	 * @see MutableMessageSource#getLocales()
 	 */
@@ -141,7 +781,9 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	public Collection<Locale> getLocales() {
 		MutableMessageSource m = getMutableParentSource();
 		Set<Locale> s = new HashSet<Locale>(m.getLocales());
-		s.addAll(cache.keySet());
+		// available locales are known without loading their messages
+		getSnapshot();
+		s.addAll(availableLocales);
 		return s;
 	}
 
@@ -159,9 +801,10 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	 */
 	@Override
 	public Collection<PresentationMessage> getPresentations() {
+		MessagesSnapshot current = getCompleteSnapshot();
 		Collection<PresentationMessage> ret = new ArrayList<PresentationMessage>();
-		for (PresentationMessageMap pmm : getCachedMessages().values()) {
-			ret.addAll(pmm.values());
+		for (Locale locale : current.getTable().getLocales()) {
+			ret.addAll(current.getMessages(locale).values());
 		}
 		return ret;
 	}
@@ -171,11 +814,7 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	 */
 	@Override
 	public Collection<PresentationMessage> getPresentationsInLocale(Locale locale) {
-		PresentationMessageMap pmm = getCachedMessages().get(locale);
-		if (pmm == null) {
-			return new HashSet<PresentationMessage>();
-		}
-		return pmm.values();
+		return getSnapshot(locale).getMessages(locale).values();
 	}
 
 	/**
@@ -191,21 +830,28 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	 */
 	@Override
 	public PresentationMessage getPresentation(String code, Locale locale) {
-		PresentationMessageMap pmm = getCachedMessages().get(locale);
-		if (pmm == null) {
-			return null;
-		}
-		return pmm.get(code);
+		return getSnapshot(locale).getPresentation(code, locale);
 	}
 
 	/**
 	 * @see MutableMessageSource#removePresentation(PresentationMessage)
 	 */
 	@Override
-	public void removePresentation(PresentationMessage message) {
-		PresentationMessageMap pmm = getCachedMessages().get(message.getLocale());
-		if (pmm != null) {
-			pmm.remove(message.getCode());
+	public void removePresentation(final PresentationMessage message) {
+		// the first load takes the refresh lock, which must not be taken while holding the snapshot lock
+		getSnapshot();
+		synchronized (snapshotLock) {
+			snapshot = getSnapshot(message.getLocale()).withoutPresentation(message.getCode(), message.getLocale());
+			if (pendingChanges != null) {
+				pendingChanges.add(new PendingChange(-1) {
+					
+					@Override
+					MessagesSnapshot applyTo(MessagesSnapshot built) {
+						return loadLocales(built, Collections.singleton(message.getLocale())).withoutPresentation(
+						    message.getCode(), message.getLocale());
+					}
+				});
+			}
 		}
 		getMutableParentSource().removePresentation(message);
 	}
@@ -220,45 +866,109 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 
 	/**
 	 * @see AbstractMessageSource#resolveCode(String, Locale)
+	 * @should reuse format cached in snapshot
+	 * @should drop cached formats when snapshot is replaced
 	 */
 	@Override
 	protected MessageFormat resolveCode(String code, Locale locale) {
 		if (showMessageCode) {
 			return new MessageFormat(code);
 		}
-		PresentationMessage pm = getPresentation(code, locale); // Check exact match
-		if (pm == null) {
-			if (locale.getVariant() != null) {
-				pm = getPresentation(code, new Locale(locale.getLanguage(), locale.getCountry())); // Try to match language and country
-				if (pm == null) {
-					pm = getPresentation(code, new Locale(locale.getLanguage())); // Try to match language only
-				}
+		MessagesSnapshot current = getSnapshot(locale); // Use the same snapshot for all lookups
+		MessageFormat format = current.getMessageFormat(code, locale);
+		if (format == null) {
+			String message = current.getMessage(code, locale);
+			if (message == null) {
+				return null;
 			}
+			format = new MessageFormat(message);
+			current.putMessageFormat(code, locale, format);
 		}
-		if (pm != null) {
-			return new MessageFormat(pm.getMessage());
+		return format;
+	}
+	
+	/**
+	 * Returns the cached text directly when formatting it without arguments would not change it,
+	 * so no message format has to be created or looked up for the most of messages
+	 * 
+	 * @see AbstractMessageSource#resolveCodeWithoutArguments(String, Locale)
+	 * @should return plain message without compiling format
+	 * @should format messages with quotes or placeholders
+	 * @should return null for unknown code
+	 */
+	@Override
+	protected String resolveCodeWithoutArguments(String code, Locale locale) {
+		if (showMessageCode) {
+			return code;
 		}
-		return null;
+		String message = getSnapshot(locale).getMessage(code, locale);
+		if (message == null) {
+			return null;
+		}
+		if (message.indexOf('\'') < 0 && message.indexOf('{') < 0) {
+			return message;
+		}
+		// message has quotes or placeholders, so let message format handle them as before
+		return super.resolveCodeWithoutArguments(code, locale);
 	}
-
+	
 	/**
-	 * For some reason, this is needed to get the default text option in message tags working properly
+	 * For some reason, this is needed to get the default text option in message tags working properly.
+	 * Codes that are not known in any locale skip the cached messages and their locale fallback
+	 * chain. They are still looked up in common messages and in the parent message source, as the
+	 * filter of known codes changes only when the snapshot is rebuilt, so it can miss messages added
+	 * since then, e.g. by module started meanwhile.
+	 * 
 	 * @see AbstractMessageSource#getMessageInternal(String, Object[], Locale)
+	 * @should count lookups of codes unknown in any locale
+	 * @should resolve codes unknown to cache from parent source
+	 * @should not reject codes when message codes are shown
 	 */
 	@Override
 	protected String getMessageInternal(String code, Object[] args, Locale locale) {
-		String s = super.getMessageInternal(code, args, locale);
+		String s;
+		if (code != null && !showMessageCode && !getSnapshot().mightContainCode(code)) {
+			rejectedCodeCount.incrementAndGet();
+			s = getUncachedMessage(code, args, locale);
+		} else {
+			s = super.getMessageInternal(code, args, locale);
+		}
 		if (s == null || s.equals(code)) {
 			return null;
 		}
 		return s;
 	}
+	
+	/**
+	 * Resolves message the way {@link AbstractMessageSource#getMessageInternal(String, Object[], Locale)}
+	 * does once the code has not been found among cached messages
+	 */
+	private String getUncachedMessage(String code, Object[] args, Locale locale) {
+		Properties commonMessages = getCommonMessages();
+		if (commonMessages != null) {
+			String commonMessage = commonMessages.getProperty(code);
+			if (commonMessage != null) {
+				return formatMessage(commonMessage, args, locale);
+			}
+		}
+		return getMessageFromParent(code, resolveArguments(args, locale), locale);
+	}
+
+	/**
+	 * @return the number of lookups rejected because their code is not known in any locale
+	 */
+	public long getRejectedCodeCount() {
+		return rejectedCodeCount.get();
+	}
 
 	/**
 	 * @see GlobalPropertyListener#supportsPropertyName(String)
 	 */
     public boolean supportsPropertyName(String property) {   	
-	    return property != null && property.equals(CustomMessageSource.GLOBAL_PROPERTY_SHOW_MESSAGE_CODES);
+	    return property != null
+	            && (property.equals(CustomMessageSource.GLOBAL_PROPERTY_SHOW_MESSAGE_CODES)
+	                    || property.equals(CustomMessageSource.GLOBAL_PROPERTY_FALLBACK_LOCALE) || property
+	                        .equals(CustomMessageSource.GLOBAL_PROPERTY_MESSAGE_STORAGE));
     }
 	
 	/**
@@ -268,6 +978,10 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 		if (property.getProperty() != null) {
 			if (property.getProperty().equals(CustomMessageSource.GLOBAL_PROPERTY_SHOW_MESSAGE_CODES)) {
 				updateShowMessageCode();
+			} else if (property.getProperty().equals(CustomMessageSource.GLOBAL_PROPERTY_FALLBACK_LOCALE)
+			        || property.getProperty().equals(CustomMessageSource.GLOBAL_PROPERTY_MESSAGE_STORAGE)) {
+				// fallback tables are part of the snapshot, so it has to be rebuilt
+				refreshCache();
 			}
 		}
 	    
@@ -277,7 +991,10 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	 * @see GlobalPropertyListener#globalPropertyDeleted(String)
 	 */
     public void globalPropertyDeleted(String property) {
-    	// Do nothing
+    	if (CustomMessageSource.GLOBAL_PROPERTY_FALLBACK_LOCALE.equals(property)
+    	        || CustomMessageSource.GLOBAL_PROPERTY_MESSAGE_STORAGE.equals(property)) {
+    		refreshCache();
+    	}
     }
 	
 	/**
@@ -293,4 +1010,26 @@ public class CustomMessageSource extends AbstractMessageSource implements Mutabl
 	public CustomMessageService getCustomMessageService() {
 		return Context.getService(CustomMessageService.class);
 	}
+	
+	/**
+	 * Change of cached messages made while whole snapshot is being built, which is applied to the
+	 * built snapshot again before it is published
+	 */
+	private abstract class PendingChange {
+		
+		/** The version stamp of custom messages produced by the change, -1 if it produces none */
+		final long version;
+		
+		PendingChange(long version) {
+			this.version = version;
+		}
+		
+		/**
+		 * Applies the change to given snapshot, called while holding the snapshot lock
+		 * 
+		 * @param built the built snapshot
+		 * @return the snapshot with the change applied
+		 */
+		abstract MessagesSnapshot applyTo(MessagesSnapshot built);
+	}
 }
@@ -15,23 +15,27 @@ package org.openmrs.module.custommessage;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.module.Activator;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.BaseModuleActivator;
 import org.openmrs.module.ModuleException;
+import org.openmrs.module.custommessage.service.CustomMessageService;
 import org.openmrs.web.taglib.OpenmrsMessageTag;
+import org.springframework.context.MessageSource;
 
 /**
  * This class contains the logic that is run every time this module
- * is either started or shutdown
+ * is either started or shutdown, and every time application context
+ * is refreshed because some module has been started or stopped
  */
-public class ModuleActivator implements Activator {
+public class ModuleActivator extends BaseModuleActivator {
 
 	private static final Log LOG = LogFactory.getLog(ModuleActivator.class);
 
 	/**
-	 * @see org.openmrs.module.Activator#startup()
+	 * @see org.openmrs.module.BaseModuleActivator#willStart()
 	 */
 	@Override
-	public void startup() {
+	public void willStart() {
 		
 		// try to define if there is a support for openmrs:message
 		// by instantiating org.openmrs.web.taglib.OpenmrsMessageTag
@@ -41,6 +45,13 @@ public class ModuleActivator implements Activator {
 			LOG.error("Unable to start module because openmrs:message tag is not supported by the system");
 			throw new ModuleException("Unable to start module because openmrs:message tag is not supported by this version of system");
 		}
+	}
+
+	/**
+	 * @see org.openmrs.module.BaseModuleActivator#started()
+	 */
+	@Override
+	public void started() {
 
 		// customize tag writer behavior for openmrs:message tag if openmrs
 		// messaging support is provided via used version of OpenMRS framework
@@ -50,10 +61,27 @@ public class ModuleActivator implements Activator {
 	}
 
 	/**
-	 * @see org.openmrs.module.Activator#shutdown()
+	 * @see org.openmrs.module.BaseModuleActivator#contextRefreshed()
+	 */
+	@Override
+	public void contextRefreshed() {
+
+		// context is refreshed every time some module is started or stopped,
+		// so started modules known to service are outdated
+		Context.getService(CustomMessageService.class).startedModulesChanged();
+
+		// and so are cached messages, which include messages of started modules
+		MessageSource messageSource = Context.getMessageSourceService().getActiveMessageSource();
+		if (messageSource instanceof CustomMessageSource) {
+			((CustomMessageSource) messageSource).requestRefresh();
+		}
+	}
+
+	/**
+	 * @see org.openmrs.module.BaseModuleActivator#stopped()
 	 */
 	@Override
-	public void shutdown() {
+	public void stopped() {
 
 		// reset openmrs:message tag writer behavior when module is stopped
 		OpenmrsMessageTag.setTagWriterBehavior(OpenmrsMessageTag.DEFAULT_WRITER_BEHAVIOUR);
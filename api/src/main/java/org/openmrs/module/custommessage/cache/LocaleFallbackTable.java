@@ -0,0 +1,258 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Holds the effective text of every message for each locale that has messages, already resolved
+ * along the locale fallback chain: exact locale, then language and country, then language only and
+ * finally optional fallback locale. Effective messages of each locale are kept as column indexed
+ * by code id of {@link MessageTable}, which holds for every code the position of locale in the
+ * chain the text comes from, together with references to the columns of message table along the
+ * chain, so texts are never copied out of the message table and stay in its storage. A requested
+ * locale is mapped once to the column of the first locale of its chain that has messages, so
+ * resolving message afterwards is a lookup of code id followed by array reads, which does not
+ * allocate anything.
+ */
+public class LocaleFallbackTable {
+
+	/** Column used for locales which have no messages in any locale of their chain */
+	private static final ResolvedColumn NO_MESSAGES = new ResolvedColumn(new Locale[0], new MessageColumn[0],
+	        new byte[0]);
+
+	/**
+	 * The maximum number of requested locales whose columns are remembered. Requested locales come
+	 * from callers, so they are not bounded by the locales that have messages.
+	 */
+	private static final int MAX_REQUESTED_LOCALES = 256;
+
+	/** The locale used as the last resort, may be null */
+	private final Locale fallbackLocale;
+
+	/** The table of messages effective messages are resolved from */
+	private final MessageTable messages;
+
+	/** Effective messages, for each locale that has messages */
+	private final Map<Locale, ResolvedColumn> columns;
+
+	/** Columns already chosen for requested locales, holding at most {@link #MAX_REQUESTED_LOCALES} */
+	private final ConcurrentMap<Locale, ResolvedColumn> columnsByRequestedLocale = new ConcurrentHashMap<Locale, ResolvedColumn>();
+
+	/**
+	 * Creates new table with given effective messages
+	 */
+	private LocaleFallbackTable(Locale fallbackLocale, MessageTable messages, Map<Locale, ResolvedColumn> columns) {
+		this.fallbackLocale = fallbackLocale;
+		this.messages = messages;
+		this.columns = columns;
+	}
+
+	/**
+	 * Builds effective messages for every locale of given messages
+	 *
+	 * @param messages the table of messages to build effective messages from
+	 * @param fallbackLocale the locale to be used when there is no message in any more specific
+	 *            locale, may be null
+	 * @return the built table
+	 * @should resolve messages along fallback chain
+	 * @should use fallback locale as last resort
+	 */
+	public static LocaleFallbackTable build(MessageTable messages, Locale fallbackLocale) {
+		Map<Locale, ResolvedColumn> columns = new HashMap<Locale, ResolvedColumn>();
+		for (Locale locale : messages.getLocales()) {
+			columns.put(locale, ResolvedColumn.build(messages, getFallbackChain(locale, fallbackLocale)));
+		}
+		return new LocaleFallbackTable(fallbackLocale, messages, columns);
+	}
+
+	/**
+	 * Creates the list of locales to look for message in, from the most specific to the least
+	 * specific one
+	 *
+	 * @param locale the requested locale
+	 * @param fallbackLocale the locale to be used as the last resort, may be null
+	 * @return the fallback chain of given locale
+	 * @should not contain duplicate locales
+	 */
+	public static List<Locale> getFallbackChain(Locale locale, Locale fallbackLocale) {
+		List<Locale> chain = new ArrayList<Locale>(4);
+		chain.add(locale);
+		if (StringUtils.isNotEmpty(locale.getVariant())) {
+			chain.add(new Locale(locale.getLanguage(), locale.getCountry()));
+		}
+		if (StringUtils.isNotEmpty(locale.getCountry())) {
+			chain.add(new Locale(locale.getLanguage()));
+		}
+		if (fallbackLocale != null && !chain.contains(fallbackLocale)) {
+			chain.add(fallbackLocale);
+		}
+		return chain;
+	}
+
+	/**
+	 * @return the locale used as the last resort, may be null
+	 */
+	public Locale getFallbackLocale() {
+		return fallbackLocale;
+	}
+
+	/**
+	 * Gets the effective text of message in given locale
+	 *
+	 * @param code the code of message
+	 * @param locale the requested locale
+	 * @return the text of message or null if there is no such message in any locale of the chain
+	 * @should resolve messages of more requested locales than are remembered
+	 */
+	public String getMessage(String code, Locale locale) {
+		ResolvedColumn column = columnsByRequestedLocale.get(locale);
+		if (column == null) {
+			column = columns.get(locale);
+			if (column == null) {
+				column = NO_MESSAGES;
+				for (Locale candidate : getFallbackChain(locale, fallbackLocale)) {
+					// the chain of candidate is the rest of requested chain, so its column answers for both
+					ResolvedColumn candidateColumn = columns.get(candidate);
+					if (candidateColumn != null) {
+						column = candidateColumn;
+						break;
+					}
+				}
+			}
+			// once the limit is reached, other locales are resolved along their chain on every lookup
+			if (columnsByRequestedLocale.size() < MAX_REQUESTED_LOCALES) {
+				columnsByRequestedLocale.putIfAbsent(locale, column);
+			}
+		}
+		if (column == NO_MESSAGES) {
+			return null;
+		}
+		return column.getMessage(messages.getCodeId(code));
+	}
+
+	/**
+	 * Creates copy of this table that reflects change of single message. Only the columns of
+	 * locales whose chain includes changed locale are copied.
+	 *
+	 * @param changed the table of messages after the change
+	 * @param code the code of changed message
+	 * @param changedLocale the locale of changed message
+	 * @return the new table
+	 * @should update tables of more specific locales
+	 * @should keep messages of locales whose chain does not include changed locale
+	 */
+	public LocaleFallbackTable withChange(MessageTable changed, String code, Locale changedLocale) {
+		int id = changed.getCodeId(code);
+		Map<Locale, ResolvedColumn> copy = new HashMap<Locale, ResolvedColumn>(columns);
+		for (Locale locale : changed.getLocales()) {
+			List<Locale> chain = getFallbackChain(locale, fallbackLocale);
+			if (id >= 0 && chain.contains(changedLocale)) {
+				ResolvedColumn column = columns.get(locale);
+				copy.put(locale, column == null ? ResolvedColumn.build(changed, chain) : column.withChange(changed, id));
+			}
+		}
+		return new LocaleFallbackTable(fallbackLocale, changed, copy);
+	}
+
+	/**
+	 * Effective messages of single locale. For every code id it holds the position of locale in
+	 * the fallback chain increased by one, which the text of message is read from, zero marks code
+	 * without message in any locale of the chain. The column may be shorter than the number of
+	 * codes, codes added after it was built have no message.
+	 */
+	private static class ResolvedColumn {
+
+		/** The fallback chain of the locale */
+		private final Locale[] chain;
+
+		/** The columns of message table by position in chain, null for locales without messages */
+		private final MessageColumn[] chainColumns;
+
+		/** The positions in chain increased by one, by code id */
+		private final byte[] positions;
+
+		ResolvedColumn(Locale[] chain, MessageColumn[] chainColumns, byte[] positions) {
+			this.chain = chain;
+			this.chainColumns = chainColumns;
+			this.positions = positions;
+		}
+
+		/**
+		 * Resolves effective messages of all codes along given chain
+		 */
+		static ResolvedColumn build(MessageTable messages, List<Locale> chain) {
+			Locale[] locales = chain.toArray(new Locale[chain.size()]);
+			MessageColumn[] chainColumns = getColumns(messages, locales);
+			byte[] positions = new byte[messages.getCodeCount()];
+			for (int id = 0; id < positions.length; id++) {
+				positions[id] = resolve(chainColumns, id);
+			}
+			return new ResolvedColumn(locales, chainColumns, positions);
+		}
+
+		/**
+		 * Creates copy of this column with effective message of given code resolved again, which
+		 * refers to the columns of given messages
+		 */
+		ResolvedColumn withChange(MessageTable messages, int id) {
+			MessageColumn[] changedColumns = getColumns(messages, chain);
+			byte[] copy = Arrays.copyOf(positions, Math.max(positions.length, id + 1));
+			copy[id] = resolve(changedColumns, id);
+			return new ResolvedColumn(chain, changedColumns, copy);
+		}
+
+		/**
+		 * Reads the effective message of given code id
+		 */
+		String getMessage(int id) {
+			if (id < 0 || id >= positions.length || positions[id] == 0) {
+				return null;
+			}
+			return chainColumns[positions[id] - 1].get(id);
+		}
+
+		/**
+		 * Gets the columns of given messages for every locale of given chain
+		 */
+		private static MessageColumn[] getColumns(MessageTable messages, Locale[] chain) {
+			MessageColumn[] chainColumns = new MessageColumn[chain.length];
+			for (int position = 0; position < chain.length; position++) {
+				chainColumns[position] = messages.getColumn(chain[position]);
+			}
+			return chainColumns;
+		}
+
+		/**
+		 * Finds the position of the first column of the chain which has message of given code
+		 */
+		private static byte resolve(MessageColumn[] chainColumns, int id) {
+			for (int position = 0; position < chainColumns.length; position++) {
+				if (chainColumns[position] != null && chainColumns[position].get(id) != null) {
+					return (byte) (position + 1);
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Compact bloom filter over message codes. It answers whether code is definitely unknown, so
+ * lookups of codes that do not exist in any locale can be rejected without walking the locale
+ * fallback chain and the parent message source. It may report unknown code as known with small
+ * probability, but it never reports known code as unknown. Instances are immutable.
+ */
+public class MessageCodeFilter {
+
+	/** Number of bits reserved per expected code, gives about 1% of false positives */
+	private static final int BITS_PER_CODE = 10;
+
+	/** Number of bits checked per code */
+	private static final int HASH_FUNCTIONS = 7;
+
+	/** The bits of this filter */
+	private final long[] bits;
+
+	/** The number of usable bits */
+	private final int size;
+
+	/**
+	 * Creates new filter with given bits
+	 */
+	private MessageCodeFilter(long[] bits, int size) {
+		this.bits = bits;
+		this.size = size;
+	}
+
+	/**
+	 * Builds filter containing given codes
+	 *
+	 * @param codes the codes to be added to filter
+	 * @return the built filter
+	 * @should contain all given codes
+	 * @should reject most of unknown codes
+	 */
+	public static MessageCodeFilter build(Collection<String> codes) {
+		int size = Math.max(64, codes.size() * BITS_PER_CODE);
+		MessageCodeFilter filter = new MessageCodeFilter(new long[(size + 63) / 64], size);
+		for (String code : codes) {
+			filter.add(code);
+		}
+		return filter;
+	}
+
+	/**
+	 * @param code the code to check
+	 * @return false if given code has definitely not been added to this filter, true if it might
+	 *         have been added
+	 */
+	public boolean mightContain(String code) {
+		int hash = code.hashCode();
+		int step = secondaryHash(hash);
+		for (int i = 0; i < HASH_FUNCTIONS; i++) {
+			int index = index(hash, step, i);
+			if ((bits[index >>> 6] & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates copy of this filter which contains also given code
+	 *
+	 * @param code the code to add
+	 * @return the new filter or this filter if it might contain given code already
+	 * @should not modify original filter
+	 */
+	public MessageCodeFilter with(String code) {
+		if (mightContain(code)) {
+			return this;
+		}
+		MessageCodeFilter copy = new MessageCodeFilter(bits.clone(), size);
+		copy.add(code);
+		return copy;
+	}
+
+	/**
+	 * Writes bits of this filter to given output
+	 *
+	 * @param out the output to write to
+	 * @throws IOException if I/O error occurs
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(bits.length);
+		for (long word : bits) {
+			out.writeLong(word);
+		}
+	}
+
+	/**
+	 * Reads filter written by {@link #write(DataOutput)}
+	 *
+	 * @param in the input to read from
+	 * @return the read filter
+	 * @throws IOException if I/O error occurs
+	 */
+	public static MessageCodeFilter read(DataInput in) throws IOException {
+		int size = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.readLong();
+		}
+		return new MessageCodeFilter(bits, size);
+	}
+
+	/**
+	 * Sets the bits of given code, used only while filter is not published yet
+	 */
+	private void add(String code) {
+		int hash = code.hashCode();
+		int step = secondaryHash(hash);
+		for (int i = 0; i < HASH_FUNCTIONS; i++) {
+			int index = index(hash, step, i);
+			bits[index >>> 6] |= 1L << index;
+		}
+	}
+
+	/**
+	 * Calculates the position of i-th bit of code using double hashing
+	 */
+	private int index(int hash, int step, int i) {
+		long combined = hash + (long) i * step;
+		return (int) ((combined & Long.MAX_VALUE) % size);
+	}
+
+	/**
+	 * Derives second independent hash from the hash code of string
+	 */
+	private static int secondaryHash(int hash) {
+		int h = hash * 0x9E3779B9;
+		h ^= h >>> 16;
+		return h | 1;
+	}
+}
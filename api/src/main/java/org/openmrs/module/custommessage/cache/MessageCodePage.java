@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Single page of message codes matching search criteria, found in {@link MessagesSnapshot}. Codes
+ * are walked in the sorted order the table keeps, or in the order of relevance returned by the
+ * index of words, counting the matching ones, and only the codes of requested page are collected,
+ * so nothing is allocated for codes outside of it. Instances are immutable.
+ */
+public class MessageCodePage {
+
+	/** The codes of this page in requested order */
+	private final List<String> codes;
+
+	/** The number of codes having message in at least one locale */
+	private final int totalCount;
+
+	/** The number of codes matching search criteria */
+	private final int matchingCount;
+
+	/**
+	 * Creates new page with given codes and counts
+	 */
+	private MessageCodePage(List<String> codes, int totalCount, int matchingCount) {
+		this.codes = codes;
+		this.totalCount = totalCount;
+		this.matchingCount = matchingCount;
+	}
+
+	/**
+	 * Finds page of codes matching given criteria. Codes which have no message in any locale, left
+	 * in the table after their messages have been removed, are not counted at all.
+	 * <p>
+	 * Without text to search for, codes are ordered by code. With such text, codes are searched in
+	 * the index of words of the snapshot and are ordered from best to worst matching.
+	 *
+	 * @param snapshot the snapshot to search messages in
+	 * @param matchingText the words that code or its message in any locale have to contain, or part
+	 *            of code if no code matches the words, null or blank for any code
+	 * @param missingInLocale the locale that must have no message for the code, null for any code
+	 * @param descending true to order codes from last to first, ignored when searching text
+	 * @param offset the number of matching codes to skip
+	 * @param limit the maximum number of codes in the page, negative for no limit
+	 * @return the page of matching codes
+	 * @should return codes of requested page in order of codes
+	 * @should return codes in descending order
+	 * @should count all and matching codes
+	 * @should return codes matching text ranked by relevance
+	 * @should return only codes missing in given locale
+	 * @should skip codes without any message
+	 */
+	public static MessageCodePage find(MessagesSnapshot snapshot, String matchingText, Locale missingInLocale,
+	        boolean descending, int offset, int limit) {
+		MessageTable table = snapshot.getTable();
+		MessageCoverage coverage = snapshot.getCoverage();
+		boolean searching = StringUtils.isNotBlank(matchingText);
+		int[] ids = searching ? snapshot.searchCodes(matchingText) : table.getSortedCodeIds();
+		// codes to walk are tested against single set, either codes with messages or the missing ones
+		BitSet accepted = missingInLocale != null ? coverage.getMissingCodes(missingInLocale, null, null) : coverage
+		        .getCodes(null);
+		int end = limit < 0 ? Integer.MAX_VALUE : offset + Math.min(limit, Integer.MAX_VALUE - offset);
+		List<String> codes = new ArrayList<String>(Math.max(0, Math.min(end - offset, ids.length)));
+		int matchingCount = 0;
+		for (int i = 0; i < ids.length; i++) {
+			int id = ids[descending && !searching ? ids.length - 1 - i : i];
+			if (!accepted.get(id)) {
+				continue;
+			}
+			if (matchingCount >= offset && matchingCount < end) {
+				codes.add(table.getCode(id));
+			}
+			matchingCount++;
+		}
+		return new MessageCodePage(Collections.unmodifiableList(codes), coverage.getCodeCount(null), matchingCount);
+	}
+
+	/**
+	 * @return the unmodifiable list of codes of this page
+	 */
+	public List<String> getCodes() {
+		return codes;
+	}
+
+	/**
+	 * @return the number of codes having message in at least one locale
+	 */
+	public int getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * @return the number of codes matching search criteria, over all pages
+	 */
+	public int getMatchingCount() {
+		return matchingCount;
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.util.Arrays;
+
+/**
+ * Texts of messages of single locale indexed by code id of {@link MessageTable}. Column may be
+ * shorter than the number of codes, missing texts are null. Columns are immutable, modifications
+ * produce new column. Depending on {@link MessageStorage}, texts are either kept as strings on heap
+ * or packed into single buffer, see {@link PackedMessageColumn}.
+ */
+public abstract class MessageColumn {
+
+	/**
+	 * Creates column holding given texts in given storage
+	 *
+	 * @param texts the texts of messages by code id, owned by created column afterwards
+	 * @param storage the storage to keep texts in
+	 * @return the new column
+	 */
+	public static MessageColumn of(String[] texts, MessageStorage storage) {
+		return storage.isPacked() ? PackedMessageColumn.pack(texts, storage) : new HeapColumn(texts);
+	}
+
+	/**
+	 * Creates column without any text, which keeps texts put into it in given storage
+	 *
+	 * @param storage the storage to keep texts in
+	 * @return the new column
+	 */
+	public static MessageColumn empty(MessageStorage storage) {
+		return of(new String[0], storage);
+	}
+
+	/**
+	 * @param id the id of code
+	 * @return the text of message or null if there is no such message
+	 */
+	public abstract String get(int id);
+
+	/**
+	 * Creates copy of this column with given text put into it
+	 *
+	 * @param id the id of code
+	 * @param message the text of message, or null to remove it
+	 * @return the new column
+	 */
+	public abstract MessageColumn with(int id, String message);
+
+	/**
+	 * Column keeping texts as strings on heap
+	 */
+	private static class HeapColumn extends MessageColumn {
+
+		private final String[] texts;
+
+		HeapColumn(String[] texts) {
+			this.texts = texts;
+		}
+
+		@Override
+		public String get(int id) {
+			return id < 0 || id >= texts.length ? null : texts[id];
+		}
+
+		@Override
+		public MessageColumn with(int id, String message) {
+			String[] copy = Arrays.copyOf(texts, Math.max(texts.length, id + 1));
+			copy[id] = message;
+			return new HeapColumn(copy);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable coverage of codes of {@link MessageTable} by messages of every locale. Each locale has
+ * bit set over dense code ids of the table, bit of code being set if the locale has message for it,
+ * so counting messages, listing missing codes and comparing locales are bitwise operations over
+ * the sets rather than lookups of every code. Sets of codes of single location may be given to
+ * restrict any of these to that location.
+ * <p>
+ * Change of single message copies only the set of its locale and the set of codes having any
+ * message. Returned sets are always new ones, so they can be modified by caller.
+ */
+public class MessageCoverage {
+
+	/** The codes having message by locale */
+	private final Map<Locale, BitSet> codesByLocale;
+
+	/** The codes having message in at least one locale */
+	private final BitSet codes;
+
+	/**
+	 * Creates new coverage from given sets
+	 */
+	private MessageCoverage(Map<Locale, BitSet> codesByLocale, BitSet codes) {
+		this.codesByLocale = codesByLocale;
+		this.codes = codes;
+	}
+
+	/**
+	 * Builds coverage of codes of given table
+	 *
+	 * @param table the table of messages
+	 * @return the built coverage
+	 * @should set codes having message in every locale
+	 */
+	public static MessageCoverage build(MessageTable table) {
+		Map<Locale, BitSet> codesByLocale = new HashMap<Locale, BitSet>();
+		BitSet codes = new BitSet(table.getCodeCount());
+		for (Locale locale : table.getLocales()) {
+			BitSet forLocale = new BitSet(table.getCodeCount());
+			for (int id = 0; id < table.getCodeCount(); id++) {
+				if (table.getMessage(id, locale) != null) {
+					forLocale.set(id);
+				}
+			}
+			codesByLocale.put(locale, forLocale);
+			codes.or(forLocale);
+		}
+		return new MessageCoverage(codesByLocale, codes);
+	}
+
+	/**
+	 * Creates copy of this coverage for table which differs from the covered one by single message
+	 *
+	 * @param merged the changed table
+	 * @param code the code of changed message
+	 * @param locale the locale of changed message
+	 * @return the new coverage
+	 * @should cover added and removed messages only in new coverage
+	 */
+	public MessageCoverage withChange(MessageTable merged, String code, Locale locale) {
+		int id = merged.getCodeId(code);
+		if (id < 0) {
+			return this;
+		}
+		BitSet forLocale = codesByLocale.get(locale);
+		forLocale = forLocale == null ? new BitSet(merged.getCodeCount()) : (BitSet) forLocale.clone();
+		forLocale.set(id, merged.getMessage(id, locale) != null);
+		Map<Locale, BitSet> copy = new HashMap<Locale, BitSet>(codesByLocale);
+		copy.put(locale, forLocale);
+		BitSet copyOfCodes = (BitSet) codes.clone();
+		copyOfCodes.set(id, merged.hasMessages(id));
+		return new MessageCoverage(copy, copyOfCodes);
+	}
+
+	/**
+	 * @param id the id of code
+	 * @return true if there is message for given code in at least one locale
+	 */
+	public boolean hasMessages(int id) {
+		return codes.get(id);
+	}
+
+	/**
+	 * @param id the id of code
+	 * @param locale the exact locale of message
+	 * @return true if there is message for given code in given locale
+	 */
+	public boolean hasMessage(int id, Locale locale) {
+		BitSet forLocale = codesByLocale.get(locale);
+		return forLocale != null && forLocale.get(id);
+	}
+
+	/**
+	 * @param within the codes to count, null for all codes
+	 * @return the number of given codes which have message in at least one locale
+	 */
+	public int getCodeCount(BitSet within) {
+		return getCodes(within).cardinality();
+	}
+
+	/**
+	 * @param within the codes to look for, null for all codes
+	 * @return the new set of given codes which have message in at least one locale
+	 */
+	public BitSet getCodes(BitSet within) {
+		BitSet result = (BitSet) codes.clone();
+		if (within != null) {
+			result.and(within);
+		}
+		return result;
+	}
+
+	/**
+	 * @param locale the exact locale of messages
+	 * @param within the codes to count, null for all codes
+	 * @return the number of given codes which have message in given locale
+	 * @should count messages of locale within given codes
+	 */
+	public int getMessageCount(Locale locale, BitSet within) {
+		BitSet forLocale = codesByLocale.get(locale);
+		if (forLocale == null) {
+			return 0;
+		}
+		if (within == null) {
+			return forLocale.cardinality();
+		}
+		BitSet result = (BitSet) forLocale.clone();
+		result.and(within);
+		return result.cardinality();
+	}
+
+	/**
+	 * Gets codes which have no message in given locale, but have message in compared locale, or in
+	 * any locale if there is no compared one
+	 *
+	 * @param locale the exact locale messages are missing in
+	 * @param comparedTo the exact locale which has to have message for the code, null for any locale
+	 * @param within the codes to look for, null for all codes
+	 * @return the new set of missing codes
+	 * @should return codes missing in locale within given codes
+	 * @should return codes missing in locale but present in compared locale
+	 */
+	public BitSet getMissingCodes(Locale locale, Locale comparedTo, BitSet within) {
+		BitSet result;
+		if (comparedTo == null) {
+			result = getCodes(within);
+		} else {
+			BitSet compared = codesByLocale.get(comparedTo);
+			result = compared == null ? new BitSet() : (BitSet) compared.clone();
+			if (within != null) {
+				result.and(within);
+			}
+		}
+		BitSet forLocale = codesByLocale.get(locale);
+		if (forLocale != null) {
+			result.andNot(forLocale);
+		}
+		return result;
+	}
+}
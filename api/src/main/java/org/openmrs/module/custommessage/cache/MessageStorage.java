@@ -0,0 +1,145 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Describes where the texts of {@link MessageTable} are kept. By default they are held as strings
+ * on heap. Packed storage modes encode texts of each locale as UTF-8 into single buffer, which is
+ * either allocated outside of heap or memory-mapped from a file, see {@link PackedMessageColumn}.
+ * Every effective message is read from these columns, so with packed storage the heap keeps only
+ * codes, offsets and the few objects per customized message: the custom messages themselves and the
+ * defaults they shadow. The parent message source keeps its own copy of default messages whatever
+ * the storage is.
+ */
+public class MessageStorage {
+
+	protected static final Log log = LogFactory.getLog(MessageStorage.class);
+
+	/** The name of storage mode keeping messages as strings on heap */
+	public static final String MODE_HEAP = "heap";
+
+	/** The name of storage mode keeping packed messages in direct buffers */
+	public static final String MODE_DIRECT = "direct";
+
+	/** The name of storage mode keeping packed messages in files mapped to memory */
+	public static final String MODE_MAPPED = "mapped";
+
+	/** The storage keeping messages as strings on heap */
+	public static final MessageStorage HEAP = new MessageStorage(MODE_HEAP, null);
+
+	/** The storage keeping packed messages in direct buffers */
+	public static final MessageStorage DIRECT = new MessageStorage(MODE_DIRECT, null);
+
+	/** The name of this storage mode */
+	private final String mode;
+
+	/** The directory to create mapped files in, used only by mapped mode */
+	private final File directory;
+
+	/**
+	 * Creates new storage of given mode
+	 */
+	private MessageStorage(String mode, File directory) {
+		this.mode = mode;
+		this.directory = directory;
+	}
+
+	/**
+	 * Creates storage that keeps packed messages in files mapped to memory
+	 *
+	 * @param directory the directory to create files in
+	 * @return the mapped storage
+	 */
+	public static MessageStorage mapped(File directory) {
+		return new MessageStorage(MODE_MAPPED, directory);
+	}
+
+	/**
+	 * @return the name of this storage mode
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return true if messages are packed into buffers by this storage
+	 */
+	public boolean isPacked() {
+		return !MODE_HEAP.equals(mode);
+	}
+
+	/**
+	 * Stores given packed data into buffer of this storage mode. If mapped file can not be created,
+	 * direct buffer is used instead.
+	 *
+	 * @param data the packed data to store
+	 * @return the read-only buffer holding given data
+	 * @should store data in direct buffer
+	 */
+	public ByteBuffer store(byte[] data) {
+		if (MODE_MAPPED.equals(mode)) {
+			try {
+				return map(data);
+			}
+			catch (IOException e) {
+				log.warn("Unable to map packed messages to file in " + directory + ", using direct buffer instead", e);
+			}
+		} else if (!MODE_DIRECT.equals(mode)) {
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data);
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes given data to new file and maps it to memory. The file is deleted right away when the
+	 * platform allows it, otherwise when virtual machine exits.
+	 */
+	private ByteBuffer map(byte[] data) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		File file = File.createTempFile("messages", ".bin", directory);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.write(data);
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, data.length);
+		}
+		finally {
+			raf.close();
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return mode;
+	}
+}
@@ -0,0 +1,421 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable columnar table of message texts. Every code is interned once to dense integer id
+ * through primitive open addressing index, and each locale is a column of texts indexed by code id,
+ * so neither code nor locale is repeated for every message. Ids of codes known when table is built
+ * follow alphabetical order of codes, and the order of all ids by code is kept, so the codes can be
+ * walked sorted without sorting them again. Codes are also partitioned by their prefix, the part
+ * before the first dot, so codes of single location can be walked without scanning the others.
+ * <p>
+ * Modifications produce new table which shares everything but the changed column, and the code
+ * index when new code is added. Columns may be shorter than the number of codes, missing texts
+ * are null. Columns are kept in {@link MessageStorage} the table is built with, so with packed
+ * storage the texts of all messages live in buffers outside of the heap.
+ */
+public class MessageTable {
+
+	/** The codes by their id */
+	private final String[] codes;
+
+	/** The number of codes */
+	private final int codeCount;
+
+	/** The ids of codes increased by one by slot, zero marks empty slot */
+	private final int[] slots;
+
+	/** The ids of all codes ordered by code */
+	private final int[] sortedIds;
+
+	/** The texts of messages by locale, indexed by code id */
+	private final Map<Locale, MessageColumn> columns;
+
+	/** The storage columns are kept in */
+	private final MessageStorage storage;
+
+	/**
+	 * The positions in sorted ids of codes by code prefix, built on first use and shared by tables
+	 * that know the same codes
+	 */
+	private volatile Map<String, int[]> sortedPositionsByPrefix;
+
+	/**
+	 * Creates new table from given parts
+	 */
+	private MessageTable(String[] codes, int codeCount, int[] slots, int[] sortedIds,
+	    Map<Locale, MessageColumn> columns, MessageStorage storage, Map<String, int[]> sortedPositionsByPrefix) {
+		this.codes = codes;
+		this.codeCount = codeCount;
+		this.slots = slots;
+		this.sortedIds = sortedIds;
+		this.columns = columns;
+		this.storage = storage;
+		this.sortedPositionsByPrefix = sortedPositionsByPrefix;
+	}
+
+	/**
+	 * Builds table from given texts of messages
+	 *
+	 * @param messages the texts of messages by code, by locale
+	 * @return the built table
+	 * @should assign ids in alphabetical order of codes
+	 * @should keep texts of every locale
+	 */
+	public static MessageTable build(Map<Locale, ? extends Map<String, String>> messages) {
+		return build(messages, MessageStorage.HEAP);
+	}
+
+	/**
+	 * Builds table from given texts of messages, keeping the texts in given storage
+	 *
+	 * @param messages the texts of messages by code, by locale
+	 * @param storage the storage to keep texts in
+	 * @return the built table
+	 * @should keep texts in packed storage
+	 */
+	public static MessageTable build(Map<Locale, ? extends Map<String, String>> messages, MessageStorage storage) {
+		Set<String> sortedCodes = new TreeSet<String>();
+		for (Map<String, String> forLocale : messages.values()) {
+			sortedCodes.addAll(forLocale.keySet());
+		}
+		String[] codes = sortedCodes.toArray(new String[sortedCodes.size()]);
+		int[] slots = new int[capacityFor(codes.length)];
+		int[] sortedIds = new int[codes.length];
+		for (int id = 0; id < codes.length; id++) {
+			insert(slots, codes[id], id);
+			sortedIds[id] = id;
+		}
+		Map<Locale, MessageColumn> columns = new HashMap<Locale, MessageColumn>();
+		for (Map.Entry<Locale, ? extends Map<String, String>> entry : messages.entrySet()) {
+			String[] texts = new String[codes.length];
+			for (Map.Entry<String, String> message : entry.getValue().entrySet()) {
+				texts[find(slots, codes, message.getKey())] = message.getValue();
+			}
+			columns.put(entry.getKey(), MessageColumn.of(texts, storage));
+		}
+		return new MessageTable(codes, codes.length, slots, sortedIds, columns, storage, null);
+	}
+
+	/**
+	 * @param code the code to look for
+	 * @return the id of given code or -1 if this table does not know it
+	 */
+	public int getCodeId(String code) {
+		return find(slots, codes, code);
+	}
+
+	/**
+	 * @param id the id of code
+	 * @return the code with given id
+	 */
+	public String getCode(int id) {
+		return codes[id];
+	}
+
+	/**
+	 * @return the number of codes known to this table, some of them may have no message in any
+	 *         locale after messages have been removed
+	 */
+	public int getCodeCount() {
+		return codeCount;
+	}
+
+	/**
+	 * @return the ids of all codes ordered by code, returned array must not be modified
+	 */
+	public int[] getSortedCodeIds() {
+		return sortedIds;
+	}
+
+	/**
+	 * @return the unmodifiable set of prefixes of all codes, the prefix is the part of code before
+	 *         the first dot, or the whole code if it has no dot
+	 */
+	public Set<String> getCodePrefixes() {
+		return Collections.unmodifiableSet(getSortedPositionsByPrefix().keySet());
+	}
+
+	/**
+	 * Gets ids of codes with given prefixes. Only codes with these prefixes are visited, so the cost
+	 * depends on the number of returned codes rather than on the number of all codes.
+	 *
+	 * @param prefixes the prefixes of codes, as returned by {@link #getCodePrefixes()}
+	 * @return the ids of codes with any of given prefixes ordered by code
+	 * @should return ids of codes with given prefix ordered by code
+	 * @should merge codes of several prefixes in order of codes
+	 * @should include codes added after table was built
+	 */
+	public int[] getSortedCodeIds(Collection<String> prefixes) {
+		Map<String, int[]> positionsByPrefix = getSortedPositionsByPrefix();
+		List<int[]> parts = new ArrayList<int[]>(prefixes.size());
+		int count = 0;
+		for (String prefix : prefixes) {
+			int[] positions = positionsByPrefix.get(prefix);
+			if (positions != null) {
+				parts.add(positions);
+				count += positions.length;
+			}
+		}
+		int[] merged = new int[count];
+		int offset = 0;
+		for (int[] positions : parts) {
+			System.arraycopy(positions, 0, merged, offset, positions.length);
+			offset += positions.length;
+		}
+		// positions of single prefix are sorted already, those of several ones just need to be merged
+		if (parts.size() > 1) {
+			Arrays.sort(merged);
+		}
+		for (int i = 0; i < merged.length; i++) {
+			merged[i] = sortedIds[merged[i]];
+		}
+		return merged;
+	}
+
+	/**
+	 * @return the unmodifiable set of locales which have messages
+	 */
+	public Set<Locale> getLocales() {
+		return Collections.unmodifiableSet(columns.keySet());
+	}
+
+	/**
+	 * @param locale the locale to check
+	 * @return true if this table has column for given locale
+	 */
+	public boolean hasLocale(Locale locale) {
+		return columns.containsKey(locale);
+	}
+
+	/**
+	 * @return the storage texts of this table are kept in
+	 */
+	public MessageStorage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * @param locale the exact locale
+	 * @return the column of texts of given locale or null if this table has no such column
+	 */
+	MessageColumn getColumn(Locale locale) {
+		return columns.get(locale);
+	}
+
+	/**
+	 * @param id the id of code
+	 * @param locale the exact locale of message
+	 * @return the text of message or null if there is no such message
+	 */
+	public String getMessage(int id, Locale locale) {
+		MessageColumn column = columns.get(locale);
+		return column == null ? null : column.get(id);
+	}
+
+	/**
+	 * @param code the code of message
+	 * @param locale the exact locale of message
+	 * @return the text of message or null if there is no such message
+	 */
+	public String getMessage(String code, Locale locale) {
+		MessageColumn column = columns.get(locale);
+		return column == null ? null : column.get(getCodeId(code));
+	}
+
+	/**
+	 * @param id the id of code
+	 * @return true if there is message for given code in at least one locale
+	 */
+	public boolean hasMessages(int id) {
+		for (MessageColumn column : columns.values()) {
+			if (column.get(id) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates copy of this table with given message put into it
+	 *
+	 * @param code the code of message
+	 * @param locale the locale of message
+	 * @param message the text of message
+	 * @return the new table
+	 * @should add new code in sorted order
+	 * @should not modify original table
+	 */
+	public MessageTable with(String code, Locale locale, String message) {
+		int id = getCodeId(code);
+		if (id < 0) {
+			return withNewCode(code).with(code, locale, message);
+		}
+		MessageColumn column = columns.get(locale);
+		if (column == null) {
+			column = MessageColumn.empty(storage);
+		}
+		Map<Locale, MessageColumn> copy = new HashMap<Locale, MessageColumn>(columns);
+		copy.put(locale, column.with(id, message));
+		return new MessageTable(codes, codeCount, slots, sortedIds, copy, storage, sortedPositionsByPrefix);
+	}
+
+	/**
+	 * Creates copy of this table without given message. The code keeps its id.
+	 *
+	 * @param code the code of message
+	 * @param locale the locale of message
+	 * @return the new table or this table if there is no such message
+	 * @should remove message only from new table
+	 */
+	public MessageTable without(String code, Locale locale) {
+		if (getMessage(code, locale) == null) {
+			return this;
+		}
+		Map<Locale, MessageColumn> copy = new HashMap<Locale, MessageColumn>(columns);
+		copy.put(locale, columns.get(locale).with(getCodeId(code), null));
+		return new MessageTable(codes, codeCount, slots, sortedIds, copy, storage, sortedPositionsByPrefix);
+	}
+
+	/**
+	 * Creates copy of this table which knows given new code, columns are shared as they are
+	 */
+	private MessageTable withNewCode(String code) {
+		int id = codeCount;
+		String[] newCodes = Arrays.copyOf(codes, id + 1);
+		newCodes[id] = code;
+		int[] newSlots;
+		if (capacityFor(id + 1) != slots.length) {
+			newSlots = new int[capacityFor(id + 1)];
+			for (int i = 0; i < id; i++) {
+				insert(newSlots, newCodes[i], i);
+			}
+		} else {
+			newSlots = slots.clone();
+		}
+		insert(newSlots, code, id);
+		// keep ids ordered by code, the new one goes to its insertion point
+		int low = 0;
+		int high = sortedIds.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (codes[sortedIds[middle]].compareTo(code) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		int[] newSortedIds = new int[sortedIds.length + 1];
+		System.arraycopy(sortedIds, 0, newSortedIds, 0, low);
+		newSortedIds[low] = id;
+		System.arraycopy(sortedIds, low, newSortedIds, low + 1, sortedIds.length - low);
+		return new MessageTable(newCodes, id + 1, newSlots, newSortedIds, columns, storage, null);
+	}
+
+	/**
+	 * Gets the partition of codes by prefix, building it in single pass over sorted codes when it is
+	 * used for the first time
+	 */
+	private Map<String, int[]> getSortedPositionsByPrefix() {
+		Map<String, int[]> positionsByPrefix = sortedPositionsByPrefix;
+		if (positionsByPrefix == null) {
+			Map<String, int[]> builder = new HashMap<String, int[]>();
+			Map<String, Integer> sizes = new HashMap<String, Integer>();
+			for (int position = 0; position < sortedIds.length; position++) {
+				String prefix = getPrefix(codes[sortedIds[position]]);
+				int[] positions = builder.get(prefix);
+				Integer size = sizes.get(prefix);
+				if (positions == null) {
+					positions = new int[4];
+					size = 0;
+				} else if (size == positions.length) {
+					positions = Arrays.copyOf(positions, size * 2);
+				}
+				positions[size] = position;
+				builder.put(prefix, positions);
+				sizes.put(prefix, size + 1);
+			}
+			positionsByPrefix = new HashMap<String, int[]>(builder.size() * 2);
+			for (Map.Entry<String, int[]> entry : builder.entrySet()) {
+				positionsByPrefix.put(entry.getKey(), Arrays.copyOf(entry.getValue(), sizes.get(entry.getKey())));
+			}
+			// concurrent builds produce equal partitions, so whichever is kept does not matter
+			sortedPositionsByPrefix = positionsByPrefix;
+		}
+		return positionsByPrefix;
+	}
+
+	/**
+	 * @return the part of given code before the first dot, or the whole code if it has no dot
+	 */
+	private static String getPrefix(String code) {
+		int dot = code.indexOf('.');
+		return dot < 0 ? code : code.substring(0, dot);
+	}
+
+	/**
+	 * Finds the id of given code in given index
+	 */
+	private static int find(int[] slots, String[] codes, String code) {
+		int mask = slots.length - 1;
+		for (int slot = spread(code.hashCode()) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			if (codes[slots[slot] - 1].equals(code)) {
+				return slots[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Puts given id of code into first free slot of given index
+	 */
+	private static void insert(int[] slots, String code, int id) {
+		int mask = slots.length - 1;
+		int slot = spread(code.hashCode()) & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = id + 1;
+	}
+
+	/**
+	 * Gets the number of slots for given number of codes, keeping at least half of slots free
+	 */
+	private static int capacityFor(int count) {
+		int capacity = 2;
+		while (capacity < count * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads higher bits of hash code to lower ones, which are used to choose slot
+	 */
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,371 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable inverted index of words of message codes and of message texts of every locale of
+ * {@link MessageTable}. Codes and texts are split into lower case words at every character that is
+ * not letter nor digit and at every change from lower to upper case letter, so both "Find Patient"
+ * and "findPatient" consist of words "find" and "patient". Words are kept sorted, so all words
+ * starting with searched one are found by binary search.
+ * <p>
+ * Every posting is single int that combines code id with column, column zero being the code itself
+ * and the others the locales of table, so there is one posting list per word for all locales.
+ * <p>
+ * Changes of messages do not rebuild the index. Changed messages, codes added after the index was
+ * built and locales it does not know are searched by splitting their current texts, and the
+ * postings of changed messages are ignored. Once there are too many changes, the index is not
+ * carried over to changed table anymore and has to be built again.
+ */
+public class MessageTextIndex {
+
+	/** The number of changed messages after which the index is rather built again */
+	private static final int MAX_CHANGES = 1000;
+
+	/** The score of word matching whole word, word matching only its start scores one */
+	private static final int EXACT_WORD_SCORE = 2;
+
+	/** The multiplier of score of word found in code, codes are what users usually search for */
+	private static final int CODE_SCORE_FACTOR = 3;
+
+	/** The column of code itself */
+	private static final int CODE_COLUMN = 0;
+
+	/** The columns of indexed locales by locale, starting at one */
+	private final Map<Locale, Integer> columnsByLocale;
+
+	/** The number of columns, including the column of codes */
+	private final int columnCount;
+
+	/** The number of codes indexed, codes with greater ids have been added afterwards */
+	private final int codeCount;
+
+	/** All words sorted */
+	private final String[] words;
+
+	/** The ascending postings of words, in the same order as words */
+	private final int[][] postings;
+
+	/** The postings of messages changed since the index was built */
+	private final Set<Integer> changed;
+
+	/**
+	 * Creates new index from given parts
+	 */
+	private MessageTextIndex(Map<Locale, Integer> columnsByLocale, int codeCount, String[] words, int[][] postings,
+	    Set<Integer> changed) {
+		this.columnsByLocale = columnsByLocale;
+		this.columnCount = columnsByLocale.size() + 1;
+		this.codeCount = codeCount;
+		this.words = words;
+		this.postings = postings;
+		this.changed = changed;
+	}
+
+	/**
+	 * Builds index of codes and texts of given table
+	 *
+	 * @param table the table to index
+	 * @return the built index
+	 * @should find codes by words of code
+	 * @should find codes by words of messages in any locale
+	 */
+	public static MessageTextIndex build(MessageTable table) {
+		Map<Locale, Integer> columnsByLocale = new HashMap<Locale, Integer>();
+		List<Locale> locales = new ArrayList<Locale>(table.getLocales());
+		for (Locale locale : locales) {
+			columnsByLocale.put(locale, columnsByLocale.size() + 1);
+		}
+		int columnCount = locales.size() + 1;
+		// postings are collected in ascending order, first slot of each array holds its size
+		Map<String, int[]> collected = new HashMap<String, int[]>();
+		for (int id = 0; id < table.getCodeCount(); id++) {
+			collect(collected, table.getCode(id), id * columnCount + CODE_COLUMN);
+			for (int column = 1; column < columnCount; column++) {
+				String message = table.getMessage(id, locales.get(column - 1));
+				if (message != null) {
+					collect(collected, message, id * columnCount + column);
+				}
+			}
+		}
+		String[] words = collected.keySet().toArray(new String[collected.size()]);
+		Arrays.sort(words);
+		int[][] postings = new int[words.length][];
+		for (int i = 0; i < words.length; i++) {
+			int[] list = collected.get(words[i]);
+			postings[i] = Arrays.copyOfRange(list, 1, list[0] + 1);
+		}
+		return new MessageTextIndex(columnsByLocale, table.getCodeCount(), words, postings, Collections
+		        .<Integer> emptySet());
+	}
+
+	/**
+	 * Creates copy of this index for table which differs from the indexed one by single message
+	 *
+	 * @param merged the changed table
+	 * @param code the code of changed message
+	 * @param locale the locale of changed message
+	 * @return the new index or null if there are too many changes and index has to be built again
+	 * @should find changed message by its new text only
+	 * @should find message added with new code
+	 */
+	public MessageTextIndex withChange(MessageTable merged, String code, Locale locale) {
+		int id = merged.getCodeId(code);
+		Integer column = columnsByLocale.get(locale);
+		if (id < 0 || id >= codeCount || column == null) {
+			// texts of codes and locales unknown to this index are always searched directly
+			return this;
+		}
+		if (changed.size() >= MAX_CHANGES) {
+			return null;
+		}
+		Set<Integer> copy = new HashSet<Integer>(changed);
+		copy.add(id * columnCount + column);
+		return new MessageTextIndex(columnsByLocale, codeCount, words, postings, Collections.unmodifiableSet(copy));
+	}
+
+	/**
+	 * Searches codes whose code or message in any locale contains every word of given text, or word
+	 * starting with it. Codes are ranked by sum of scores of matching words: word matching whole
+	 * word scores more than word matching only its start, word found in code scores more than the
+	 * one found in message, and word found in more locales scores more.
+	 * <p>
+	 * If no code matches the words, or the text has no word at all, like "." or "_", codes
+	 * containing the text anywhere, ignoring case, are returned instead, ordered by code. This finds
+	 * parts of codes which do not start any word of code.
+	 *
+	 * @param table the table this index has been built for, or any of its changes
+	 * @param text the text to search for
+	 * @return the ids of matching codes from best to worst matching, ties ordered by code
+	 * @should rank codes matching whole words above codes matching start of words
+	 * @should require every word of searched text
+	 * @should ignore case and split words of code at upper case letters
+	 * @should find codes containing text when no word matches
+	 */
+	public int[] search(MessageTable table, String text) {
+		List<String> searched = split(text);
+		int[] ranked = searched.isEmpty() ? new int[0] : searchWords(table, searched);
+		if (ranked.length == 0) {
+			return searchCodes(table, text.trim());
+		}
+		return ranked;
+	}
+
+	/**
+	 * Searches codes whose code or message in any locale contains every given word, ranked by
+	 * score
+	 */
+	private int[] searchWords(final MessageTable table, List<String> searched) {
+		Map<Integer, Integer> scores = null;
+		for (String word : searched) {
+			Map<Integer, Integer> wordScores = new HashMap<Integer, Integer>();
+			searchIndexed(word, wordScores);
+			searchUnindexed(table, word, wordScores);
+			if (scores == null) {
+				scores = wordScores;
+			} else {
+				// only codes matching every word are kept
+				Map<Integer, Integer> both = new HashMap<Integer, Integer>();
+				for (Map.Entry<Integer, Integer> entry : wordScores.entrySet()) {
+					Integer score = scores.get(entry.getKey());
+					if (score != null) {
+						both.put(entry.getKey(), score + entry.getValue());
+					}
+				}
+				scores = both;
+			}
+			if (scores.isEmpty()) {
+				break;
+			}
+		}
+		final Map<Integer, Integer> finalScores = scores;
+		List<Integer> ids = new ArrayList<Integer>(finalScores.keySet());
+		Collections.sort(ids, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer first, Integer second) {
+				int byScore = finalScores.get(second).compareTo(finalScores.get(first));
+				return byScore != 0 ? byScore : table.getCode(first).compareTo(table.getCode(second));
+			}
+		});
+		int[] ranked = new int[ids.size()];
+		for (int i = 0; i < ranked.length; i++) {
+			ranked[i] = ids.get(i);
+		}
+		return ranked;
+	}
+
+	/**
+	 * Searches codes containing given text, ignoring case
+	 */
+	private static int[] searchCodes(MessageTable table, String text) {
+		if (text.length() == 0) {
+			return new int[0];
+		}
+		String lowerCaseText = text.toLowerCase(Locale.ENGLISH);
+		int[] sortedIds = table.getSortedCodeIds();
+		int[] found = new int[sortedIds.length];
+		int count = 0;
+		for (int id : sortedIds) {
+			if (table.getCode(id).toLowerCase(Locale.ENGLISH).contains(lowerCaseText)) {
+				found[count++] = id;
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Adds scores of indexed postings of words starting with given word, skipping the changed ones
+	 */
+	private void searchIndexed(String word, Map<Integer, Integer> scores) {
+		// the best score of every posting, word may be start of several words of the same text
+		Map<Integer, Integer> postingScores = new HashMap<Integer, Integer>();
+		int i = Arrays.binarySearch(words, word);
+		for (i = i < 0 ? -i - 1 : i; i < words.length && words[i].startsWith(word); i++) {
+			int score = words[i].length() == word.length() ? EXACT_WORD_SCORE : 1;
+			for (int posting : postings[i]) {
+				if (!changed.contains(posting)) {
+					Integer best = postingScores.get(posting);
+					if (best == null || best < score) {
+						postingScores.put(posting, score);
+					}
+				}
+			}
+		}
+		for (Map.Entry<Integer, Integer> entry : postingScores.entrySet()) {
+			int column = entry.getKey() % columnCount;
+			add(scores, entry.getKey() / columnCount, column == CODE_COLUMN ? entry.getValue() * CODE_SCORE_FACTOR
+			        : entry.getValue());
+		}
+	}
+
+	/**
+	 * Adds scores of texts which are not indexed, that is changed messages, codes added after the
+	 * index was built and locales it does not know
+	 */
+	private void searchUnindexed(MessageTable table, String word, Map<Integer, Integer> scores) {
+		for (int posting : changed) {
+			Locale locale = getLocale(posting % columnCount);
+			addScore(scores, posting / columnCount, table.getMessage(posting / columnCount, locale), word, 1);
+		}
+		for (int id = codeCount; id < table.getCodeCount(); id++) {
+			addScore(scores, id, table.getCode(id), word, CODE_SCORE_FACTOR);
+			for (Locale locale : columnsByLocale.keySet()) {
+				addScore(scores, id, table.getMessage(id, locale), word, 1);
+			}
+		}
+		for (Locale locale : table.getLocales()) {
+			if (!columnsByLocale.containsKey(locale)) {
+				for (int id = 0; id < table.getCodeCount(); id++) {
+					addScore(scores, id, table.getMessage(id, locale), word, 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the locale of given column of this index
+	 */
+	private Locale getLocale(int column) {
+		for (Map.Entry<Locale, Integer> entry : columnsByLocale.entrySet()) {
+			if (entry.getValue() == column) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds score of given text to given code, if any word of the text starts with given word
+	 */
+	private static void addScore(Map<Integer, Integer> scores, int id, String text, String word, int factor) {
+		if (text == null) {
+			return;
+		}
+		int best = 0;
+		for (String textWord : split(text)) {
+			if (textWord.equals(word)) {
+				best = EXACT_WORD_SCORE;
+				break;
+			}
+			if (textWord.startsWith(word)) {
+				best = 1;
+			}
+		}
+		if (best > 0) {
+			add(scores, id, best * factor);
+		}
+	}
+
+	/**
+	 * Adds given score to the score of given code
+	 */
+	private static void add(Map<Integer, Integer> scores, int id, int score) {
+		Integer current = scores.get(id);
+		scores.put(id, current == null ? score : current + score);
+	}
+
+	/**
+	 * Appends given posting to posting lists of every word of given text
+	 */
+	private static void collect(Map<String, int[]> collected, String text, int posting) {
+		for (String word : split(text)) {
+			int[] list = collected.get(word);
+			if (list == null) {
+				list = new int[4];
+			} else if (list[0] + 1 == list.length) {
+				list = Arrays.copyOf(list, list.length * 2);
+			}
+			list[++list[0]] = posting;
+			collected.put(word, list);
+		}
+	}
+
+	/**
+	 * Splits given text into distinct lower case words
+	 *
+	 * @param text the text to split
+	 * @return the words of given text in order of their first occurrence
+	 */
+	private static List<String> split(String text) {
+		Set<String> words = new LinkedHashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			boolean wordChar = Character.isLetterOrDigit(c);
+			boolean caseChange = wordChar && start >= 0 && Character.isUpperCase(c)
+			        && Character.isLowerCase(text.charAt(i - 1));
+			if (start >= 0 && (!wordChar || caseChange)) {
+				words.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+				start = -1;
+			}
+			if (wordChar && start < 0) {
+				start = i;
+			}
+		}
+		return new ArrayList<String>(words);
+	}
+}
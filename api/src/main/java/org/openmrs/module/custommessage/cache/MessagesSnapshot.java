@@ -0,0 +1,707 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openmrs.messagesource.PresentationMessage;
+import org.openmrs.messagesource.PresentationMessageMap;
+
+/**
+ * Immutable view of all messages known to the custom message source, merged from the custom
+ * messages stored in database and the messages of the parent message source. Instances of this
+ * class are never changed once they have been built, so they can be safely shared between threads
+ * without any locking. Any modification produces new snapshot instance, which copies only the
+ * messages of affected locale. Merged messages are kept in columnar {@link MessageTable}, so code
+ * and locale are not repeated for every message.
+ * <p>
+ * Snapshot may hold only some of locales, which are loaded on first use. Snapshot that holds
+ * requested locale holds all locales of its fallback chain as well.
+ * <p>
+ * The only mutable parts are the cache of compiled message formats, which is thread-safe and is
+ * shared by snapshots derived by changes of single messages, and the index of words used to search
+ * messages and the coverage of codes by locales, which are built on first use. Every cached format
+ * remembers the text it was compiled from and it is used only while the snapshot resolves the same
+ * text, so it never outlives the message it was compiled from.
+ */
+public class MessagesSnapshot {
+
+	/** Merged messages, custom ones take precedence over the ones of parent source */
+	private final MessageTable table;
+
+	/** Custom messages by locale, these are the ones that take precedence in merged messages */
+	private final Map<Locale, PresentationMessageMap> customs;
+
+	/** Messages of parent source by locale, which are hidden by custom messages with the same code */
+	private final Map<Locale, PresentationMessageMap> shadowedDefaults;
+
+	/** Effective messages resolved along locale fallback chains */
+	private final LocaleFallbackTable fallbackTable;
+
+	/**
+	 * Membership filter of codes known in any locale, used to reject unknown codes quickly, or null
+	 * if only some locales are loaded and no filter of codes of all locales has been given
+	 */
+	private final MessageCodeFilter codeFilter;
+
+	/** Compiled formats of messages that are resolved with arguments, by code and requested locale */
+	private final ConcurrentMap<String, ConcurrentMap<Locale, CompiledFormat>> formats;
+
+	/** The locales whose messages are loaded, or null if messages of all locales are loaded */
+	private final Set<Locale> loadedLocales;
+
+	/** The index of words of codes and texts, built on first search and carried over to changes */
+	private volatile MessageTextIndex textIndex;
+
+	/** The coverage of codes by locales, built on first use and carried over to changes */
+	private volatile MessageCoverage coverage;
+
+	/**
+	 * Creates new snapshot that takes ownership of given maps of messages
+	 *
+	 * @param table the merged messages to be held by this snapshot
+	 * @param customs the custom messages by locale
+	 * @param shadowedDefaults the parent messages hidden by custom ones
+	 * @param fallbackTable the effective messages built from given merged messages
+	 * @param codeFilter the filter containing every code of all locales, null to reject no code
+	 * @param formats the compiled message formats, shared with snapshots of the same messages
+	 * @param loadedLocales the locales whose messages are loaded, null for all locales
+	 * @param textIndex the index of words of given merged messages, null to build it on first search
+	 * @param coverage the coverage of given merged messages, null to build it on first use
+	 */
+	private MessagesSnapshot(MessageTable table, Map<Locale, PresentationMessageMap> customs,
+	    Map<Locale, PresentationMessageMap> shadowedDefaults, LocaleFallbackTable fallbackTable,
+	    MessageCodeFilter codeFilter, ConcurrentMap<String, ConcurrentMap<Locale, CompiledFormat>> formats,
+	    Set<Locale> loadedLocales, MessageTextIndex textIndex, MessageCoverage coverage) {
+		this.table = table;
+		this.customs = customs;
+		this.shadowedDefaults = shadowedDefaults;
+		this.fallbackTable = fallbackTable;
+		this.codeFilter = codeFilter;
+		this.formats = formats;
+		this.loadedLocales = loadedLocales;
+		this.textIndex = textIndex;
+		this.coverage = coverage;
+	}
+
+	/**
+	 * Builds new snapshot by merging given custom messages with messages of parent source. Custom
+	 * messages always take precedence over the parent ones.
+	 *
+	 * @param customMessages the custom messages by locale, this map is owned by built snapshot
+	 *            afterwards and must not be used by caller anymore
+	 * @param parentMessages the messages of parent message source
+	 * @param fallbackLocale the locale to resolve messages in when there is no message in requested
+	 *            locale nor in its language, may be null
+	 * @return the built snapshot
+	 * @should prefer custom messages over parent ones
+	 * @should skip parent messages with commented out codes
+	 */
+	public static MessagesSnapshot build(Map<Locale, PresentationMessageMap> customMessages,
+	        Collection<PresentationMessage> parentMessages, Locale fallbackLocale) {
+		return build(customMessages, parentMessages, fallbackLocale, MessageStorage.HEAP);
+	}
+
+	/**
+	 * Builds new snapshot by merging given custom messages with messages of parent source, keeping
+	 * effective messages in given storage
+	 *
+	 * @param customMessages the custom messages by locale, this map is owned by built snapshot
+	 *            afterwards and must not be used by caller anymore
+	 * @param parentMessages the messages of parent message source
+	 * @param fallbackLocale the locale to resolve messages in when there is no message in requested
+	 *            locale nor in its language, may be null
+	 * @param storage the storage to keep effective messages in
+	 * @return the built snapshot
+	 */
+	public static MessagesSnapshot build(Map<Locale, PresentationMessageMap> customMessages,
+	        Collection<PresentationMessage> parentMessages, Locale fallbackLocale, MessageStorage storage) {
+		return build(customMessages, parentMessages, fallbackLocale, storage, null);
+	}
+
+	/**
+	 * Builds new snapshot which holds messages of given locales only. Given messages must contain
+	 * all messages of these locales.
+	 *
+	 * @param customMessages the custom messages by locale, this map is owned by built snapshot
+	 *            afterwards and must not be used by caller anymore
+	 * @param parentMessages the messages of parent message source
+	 * @param fallbackLocale the locale to resolve messages in when there is no message in requested
+	 *            locale nor in its language, may be null
+	 * @param storage the storage to keep effective messages in
+	 * @param loadedLocales the locales given messages have been loaded for, or null if they are
+	 *            messages of all locales
+	 * @return the built snapshot
+	 */
+	public static MessagesSnapshot build(Map<Locale, PresentationMessageMap> customMessages,
+	        Collection<PresentationMessage> parentMessages, Locale fallbackLocale, MessageStorage storage,
+	        Set<Locale> loadedLocales) {
+		return build(customMessages, parentMessages, fallbackLocale, storage, loadedLocales, null);
+	}
+
+	/**
+	 * Builds new snapshot which holds messages of given locales only, using given filter of codes
+	 * of all locales. Filter is built from given messages when they are messages of all locales,
+	 * otherwise snapshot without given filter rejects no code.
+	 */
+	private static MessagesSnapshot build(Map<Locale, PresentationMessageMap> customMessages,
+	        Collection<PresentationMessage> parentMessages, Locale fallbackLocale, MessageStorage storage,
+	        Set<Locale> loadedLocales, MessageCodeFilter codeFilter) {
+		Map<Locale, Map<String, String>> merged = new HashMap<Locale, Map<String, String>>();
+		for (Map.Entry<Locale, PresentationMessageMap> entry : customMessages.entrySet()) {
+			Map<String, String> texts = new HashMap<String, String>();
+			for (PresentationMessage pm : entry.getValue().values()) {
+				texts.put(pm.getCode(), pm.getMessage());
+			}
+			merged.put(entry.getKey(), texts);
+		}
+		Map<Locale, PresentationMessageMap> shadowed = new HashMap<Locale, PresentationMessageMap>();
+		for (PresentationMessage pm : parentMessages) {
+			if (!pm.getCode().contains("<!--")) {
+				PresentationMessageMap custom = customMessages.get(pm.getLocale());
+				if (custom != null && custom.get(pm.getCode()) != null) {
+					// remember hidden parent message, so it can be restored when custom one is removed
+					PresentationMessageMap pmm = shadowed.get(pm.getLocale());
+					if (pmm == null) {
+						pmm = new PresentationMessageMap(pm.getLocale());
+						shadowed.put(pm.getLocale(), pmm);
+					}
+					if (pmm.get(pm.getCode()) == null) {
+						pmm.put(pm.getCode(), pm);
+					}
+				} else {
+					Map<String, String> texts = merged.get(pm.getLocale());
+					if (texts == null) {
+						texts = new HashMap<String, String>();
+						merged.put(pm.getLocale(), texts);
+					}
+					if (!texts.containsKey(pm.getCode())) {
+						texts.put(pm.getCode(), pm.getMessage());
+					}
+				}
+			}
+		}
+		if (loadedLocales == null && codeFilter == null) {
+			// messages of all locales hold all codes
+			Set<String> codes = new HashSet<String>();
+			for (Map<String, String> texts : merged.values()) {
+				codes.addAll(texts.keySet());
+			}
+			codeFilter = MessageCodeFilter.build(codes);
+		}
+		MessageTable table = MessageTable.build(merged, storage);
+		return new MessagesSnapshot(table, customMessages, shadowed, LocaleFallbackTable.build(table, fallbackLocale),
+		        codeFilter, new ConcurrentHashMap<String, ConcurrentMap<Locale, CompiledFormat>>(),
+		        loadedLocales == null ? null : Collections.unmodifiableSet(new HashSet<Locale>(loadedLocales)), null, null);
+	}
+
+	/**
+	 * Creates copy of this snapshot which holds messages of given locales as well. Only messages of
+	 * newly loaded locales are read from given messages, and whole snapshot is rebuilt only if there
+	 * are any.
+	 *
+	 * @param locales the locales to be loaded
+	 * @param customMessages the custom messages of given locales by locale
+	 * @param parentMessages the messages of parent message source in given locales
+	 * @return the new snapshot or this snapshot if all given locales are loaded already
+	 * @should keep messages of locales loaded before
+	 * @should mark locales without messages as loaded
+	 */
+	public MessagesSnapshot withLocales(Collection<Locale> locales, Map<Locale, PresentationMessageMap> customMessages,
+	        Collection<PresentationMessage> parentMessages) {
+		if (loadedLocales == null || loadedLocales.containsAll(locales)) {
+			return this;
+		}
+		Set<Locale> loaded = new HashSet<Locale>(loadedLocales);
+		loaded.addAll(locales);
+		Map<Locale, PresentationMessageMap> mergedCustoms = new HashMap<Locale, PresentationMessageMap>(customs);
+		List<PresentationMessage> mergedDefaults = null;
+		for (Locale locale : locales) {
+			if (!loadedLocales.contains(locale)) {
+				PresentationMessageMap pmm = customMessages.get(locale);
+				if (pmm != null && !pmm.isEmpty()) {
+					mergedCustoms.put(locale, pmm);
+				}
+			}
+		}
+		for (PresentationMessage pm : parentMessages) {
+			if (!loadedLocales.contains(pm.getLocale())) {
+				if (mergedDefaults == null) {
+					mergedDefaults = getDefaultMessages();
+				}
+				mergedDefaults.add(pm);
+			}
+		}
+		if (mergedDefaults == null && mergedCustoms.size() == customs.size()) {
+			// nothing to merge, the locales are only remembered as loaded
+			return new MessagesSnapshot(table, customs, shadowedDefaults, fallbackTable, codeFilter, formats,
+			        Collections.unmodifiableSet(loaded), textIndex, coverage);
+		}
+		if (mergedDefaults == null) {
+			mergedDefaults = getDefaultMessages();
+		}
+		return build(mergedCustoms, mergedDefaults, fallbackTable.getFallbackLocale(), table.getStorage(), loaded,
+		    codeFilter);
+	}
+
+	/**
+	 * Creates copy of this snapshot which rejects codes using given filter. Snapshot holding only
+	 * some locales does not know codes of the others, so it rejects no code until it is given filter
+	 * of codes of all locales.
+	 *
+	 * @param filter the filter containing every code of all locales
+	 * @return the new snapshot
+	 * @should reject codes unknown to given filter
+	 */
+	public MessagesSnapshot withCodeFilter(MessageCodeFilter filter) {
+		return new MessagesSnapshot(table, customs, shadowedDefaults, fallbackTable, filter, formats, loadedLocales,
+		        textIndex, coverage);
+	}
+
+	/**
+	 * @return the filter of codes known in any locale, or null if this snapshot rejects no code
+	 */
+	public MessageCodeFilter getCodeFilter() {
+		return codeFilter;
+	}
+
+	/**
+	 * Checks whether messages of given requested locale can be resolved from this snapshot
+	 *
+	 * @param locale the requested locale
+	 * @return true if given locale and the rest of its fallback chain are loaded
+	 */
+	public boolean isLoaded(Locale locale) {
+		return loadedLocales == null || loadedLocales.contains(locale);
+	}
+
+	/**
+	 * @return the unmodifiable set of locales whose messages are loaded, or null if messages of all
+	 *         locales are loaded
+	 */
+	public Set<Locale> getLoadedLocales() {
+		return loadedLocales;
+	}
+
+	/**
+	 * @return the locale messages are resolved in when there is no message in requested locale nor
+	 *         in its language, may be null
+	 */
+	public Locale getFallbackLocale() {
+		return fallbackTable.getFallbackLocale();
+	}
+
+	/**
+	 * @return the table of merged messages
+	 */
+	public MessageTable getTable() {
+		return table;
+	}
+
+	/**
+	 * Searches codes whose code or message in any locale contains words of given text, see
+	 * {@link MessageTextIndex#search(MessageTable, String)}. The index of words is built on first
+	 * search and updated by changes of this snapshot, so searching does not scan all messages.
+	 *
+	 * @param text the text to search for
+	 * @return the ids of matching codes in the table of this snapshot, from best to worst matching
+	 * @should find codes by words of messages
+	 * @should find messages changed after first search
+	 */
+	public int[] searchCodes(String text) {
+		MessageTextIndex index = textIndex;
+		if (index == null) {
+			// concurrent searches may build the index twice, both are equal
+			index = MessageTextIndex.build(table);
+			textIndex = index;
+		}
+		return index.search(table, text);
+	}
+
+	/**
+	 * Gets coverage of codes by messages of every locale, which is built on first use and updated
+	 * by changes of this snapshot
+	 *
+	 * @return the coverage of codes of the table of this snapshot
+	 * @should cover messages changed after first use
+	 */
+	public MessageCoverage getCoverage() {
+		MessageCoverage covered = coverage;
+		if (covered == null) {
+			covered = MessageCoverage.build(table);
+			coverage = covered;
+		}
+		return covered;
+	}
+
+	/**
+	 * Creates map of merged messages by locale from the table of this snapshot. Prefer reading the
+	 * table directly, this map holds new message object for every message.
+	 *
+	 * @return the new map of merged messages by locale
+	 * @should contain every merged message
+	 */
+	public Map<Locale, PresentationMessageMap> getMessages() {
+		Map<Locale, PresentationMessageMap> messages = new HashMap<Locale, PresentationMessageMap>();
+		for (Locale locale : table.getLocales()) {
+			messages.put(locale, getMessages(locale));
+		}
+		return messages;
+	}
+
+	/**
+	 * Creates map of merged messages in given locale from the table of this snapshot
+	 *
+	 * @param locale the exact locale of messages
+	 * @return the new map of messages in given locale, it is empty if there are no such messages
+	 */
+	public PresentationMessageMap getMessages(Locale locale) {
+		PresentationMessageMap pmm = new PresentationMessageMap(locale);
+		if (table.hasLocale(locale)) {
+			for (int id = 0; id < table.getCodeCount(); id++) {
+				String message = table.getMessage(id, locale);
+				if (message != null) {
+					pmm.put(table.getCode(id), new PresentationMessage(table.getCode(id), locale, message, null));
+				}
+			}
+		}
+		return pmm;
+	}
+
+	/**
+	 * @return the unmodifiable map of custom messages by locale
+	 */
+	public Map<Locale, PresentationMessageMap> getCustomMessages() {
+		return Collections.unmodifiableMap(customs);
+	}
+
+	/**
+	 * Collects the messages of parent source held by this snapshot, both the visible ones and the
+	 * ones hidden by custom messages. Together with custom messages they are enough to build this
+	 * snapshot again.
+	 *
+	 * @return the new list of parent messages
+	 * @should return visible and shadowed parent messages
+	 */
+	public List<PresentationMessage> getDefaultMessages() {
+		List<PresentationMessage> defaults = new ArrayList<PresentationMessage>();
+		for (Locale locale : table.getLocales()) {
+			for (int id = 0; id < table.getCodeCount(); id++) {
+				String message = table.getMessage(id, locale);
+				if (message != null && !isCustomized(table.getCode(id), locale)) {
+					defaults.add(new PresentationMessage(table.getCode(id), locale, message, null));
+				}
+			}
+		}
+		for (PresentationMessageMap pmm : shadowedDefaults.values()) {
+			defaults.addAll(pmm.values());
+		}
+		return defaults;
+	}
+
+	/**
+	 * @param code the code of message to look for
+	 * @param locale the exact locale of message to look for
+	 * @return the message for given code and locale or null if there is no such message
+	 */
+	public PresentationMessage getPresentation(String code, Locale locale) {
+		String message = table.getMessage(code, locale);
+		if (message == null) {
+			return null;
+		}
+		return new PresentationMessage(code, locale, message, null);
+	}
+
+	/**
+	 * Resolves the text of message, falling back to less specific locales when there is no message in
+	 * requested one
+	 *
+	 * @param code the code of message to resolve
+	 * @param locale the requested locale
+	 * @return the effective text of message or null if there is no such message
+	 * @should fall back to language of requested locale
+	 */
+	public String getMessage(String code, Locale locale) {
+		return fallbackTable.getMessage(code, locale);
+	}
+
+	/**
+	 * Checks whether there might be message with given code in any locale. Codes this method returns
+	 * false for are definitely unknown, so resolving them can be skipped.
+	 *
+	 * @param code the code of message to check
+	 * @return false if there is no message with given code in any locale
+	 * @should not reject any known code
+	 * @should reject unknown code
+	 * @should not reject codes of locales not loaded yet
+	 */
+	public boolean mightContainCode(String code) {
+		return codeFilter == null || codeFilter.mightContain(code);
+	}
+
+	/**
+	 * Looks up custom message of given code in custom messages of its locale, which are kept apart
+	 * from merged ones
+	 *
+	 * @param code the code of message
+	 * @param locale the exact locale of message
+	 * @return the text of custom message or null if there is no such custom message
+	 * @should return text of custom message only
+	 */
+	public String getCustomMessage(String code, Locale locale) {
+		PresentationMessage pm = get(customs, code, locale);
+		return pm == null ? null : pm.getMessage();
+	}
+
+	/**
+	 * Looks up message of parent source with given code, either the visible one or the one hidden by
+	 * custom message
+	 *
+	 * @param code the code of message
+	 * @param locale the exact locale of message
+	 * @return the text of parent message or null if there is no such message
+	 * @should return parent message hidden by custom one
+	 * @should return visible parent message
+	 */
+	public String getDefaultMessage(String code, Locale locale) {
+		if (isCustomized(code, locale)) {
+			PresentationMessage parent = get(shadowedDefaults, code, locale);
+			return parent == null ? null : parent.getMessage();
+		}
+		return table.getMessage(code, locale);
+	}
+
+	/**
+	 * @param code the code of message to check
+	 * @param locale the locale of message to check
+	 * @return true if message for given code and locale comes from custom messages
+	 */
+	public boolean isCustomized(String code, Locale locale) {
+		return get(customs, code, locale) != null;
+	}
+
+	/**
+	 * Creates copy of this snapshot with given message added to it
+	 *
+	 * @param pm the presentation message to add
+	 * @param override if true, should override any existing message
+	 * @return the new snapshot or this snapshot if nothing has to be changed
+	 * @should not modify original snapshot
+	 * @should not override existing message if override is false
+	 */
+	public MessagesSnapshot withPresentation(PresentationMessage pm, boolean override) {
+		if (table.getMessage(pm.getCode(), pm.getLocale()) != null && !override) {
+			return this;
+		}
+		return derive(table.with(pm.getCode(), pm.getLocale(), pm.getMessage()), customs, shadowedDefaults, pm.getCode(),
+		    pm.getLocale());
+	}
+
+	/**
+	 * Creates copy of this snapshot without message specified by given code and locale
+	 *
+	 * @param code the code of message to remove
+	 * @param locale the locale of message to remove
+	 * @return the new snapshot or this snapshot if there is no such message
+	 * @should remove message only from new snapshot
+	 */
+	public MessagesSnapshot withoutPresentation(String code, Locale locale) {
+		if (table.getMessage(code, locale) == null) {
+			return this;
+		}
+		return derive(table.without(code, locale), without(customs, code, locale), without(shadowedDefaults, code, locale),
+		    code, locale);
+	}
+
+	/**
+	 * Creates copy of this snapshot in which given custom message is added or updated. Message of
+	 * parent source hidden by it is remembered, so it can be restored later.
+	 *
+	 * @param code the code of custom message
+	 * @param locale the locale of custom message
+	 * @param message the text of custom message
+	 * @return the new snapshot
+	 * @should add new custom message
+	 * @should replace parent message
+	 */
+	public MessagesSnapshot withCustomMessage(String code, Locale locale, String message) {
+		PresentationMessage pm = new PresentationMessage(code, locale, message, null);
+		Map<Locale, PresentationMessageMap> shadowed = shadowedDefaults;
+		PresentationMessage parent = getPresentation(code, locale);
+		if (parent != null && !isCustomized(code, locale)) {
+			shadowed = with(shadowedDefaults, parent);
+		}
+		return derive(table.with(code, locale, message), with(customs, pm), shadowed, code, locale);
+	}
+
+	/**
+	 * Creates copy of this snapshot without given custom message. If there was a parent message
+	 * hidden by it, it becomes visible again.
+	 *
+	 * @param code the code of custom message
+	 * @param locale the locale of custom message
+	 * @return the new snapshot or this snapshot if there is no such custom message
+	 * @should revert to parent message
+	 * @should remove message without parent one
+	 */
+	public MessagesSnapshot withoutCustomMessage(String code, Locale locale) {
+		if (!isCustomized(code, locale)) {
+			return this;
+		}
+		PresentationMessage parent = get(shadowedDefaults, code, locale);
+		MessageTable merged = parent != null ? table.with(code, locale, parent.getMessage()) : table.without(code, locale);
+		return derive(merged, without(customs, code, locale), without(shadowedDefaults, code, locale), code, locale);
+	}
+
+	/**
+	 * @param code the code of resolved message
+	 * @param locale the locale message has been requested in
+	 * @return the message format compiled earlier for given code and locale, or null if there is no
+	 *         such format yet
+	 */
+	public MessageFormat getMessageFormat(String code, Locale locale) {
+		Map<Locale, CompiledFormat> forCode = formats.get(code);
+		if (forCode == null) {
+			return null;
+		}
+		CompiledFormat compiled = forCode.get(locale);
+		if (compiled == null || !compiled.message.equals(getMessage(code, locale))) {
+			// the format has been compiled by snapshot which resolved different text
+			return null;
+		}
+		return compiled.format;
+	}
+
+	/**
+	 * Remembers compiled message format for given code and locale, so it can be reused by
+	 * subsequent resolutions from this snapshot
+	 *
+	 * @param code the code of resolved message
+	 * @param locale the locale message has been requested in
+	 * @param format the compiled format of resolved message
+	 * @should cache format only within this snapshot and its unrelated changes
+	 */
+	public void putMessageFormat(String code, Locale locale, MessageFormat format) {
+		String message = getMessage(code, locale);
+		if (message == null) {
+			return;
+		}
+		ConcurrentMap<Locale, CompiledFormat> forCode = formats.get(code);
+		if (forCode == null) {
+			forCode = new ConcurrentHashMap<Locale, CompiledFormat>();
+			ConcurrentMap<Locale, CompiledFormat> existing = formats.putIfAbsent(code, forCode);
+			if (existing != null) {
+				forCode = existing;
+			}
+		}
+		forCode.put(locale, new CompiledFormat(message, format));
+	}
+
+	/**
+	 * Creates new snapshot from given messages, which differ from messages of this snapshot only by
+	 * single message. Derived data is updated for that message only.
+	 */
+	private MessagesSnapshot derive(MessageTable merged, Map<Locale, PresentationMessageMap> custom,
+	        Map<Locale, PresentationMessageMap> shadowed, String code, Locale locale) {
+		// formats of given code are the only ones that become invalid, formats put back meanwhile
+		// by readers of this snapshot are not used by the new one as they have different text
+		formats.remove(code);
+		// codes are never removed from the filter, stale entries only cost a regular lookup
+		MessageCodeFilter filter = codeFilter != null && merged.getMessage(code, locale) != null ? codeFilter.with(code)
+		        : codeFilter;
+		// index of words and coverage are carried over only if they have been built already
+		MessageTextIndex index = textIndex;
+		MessageCoverage covered = coverage;
+		return new MessagesSnapshot(merged, custom, shadowed, fallbackTable.withChange(merged, code, locale), filter,
+		        formats, loadedLocales, index != null ? index.withChange(merged, code, locale) : null,
+		        covered != null ? covered.withChange(merged, code, locale) : null);
+	}
+
+	/**
+	 * Compiled format together with the text it has been compiled from
+	 */
+	private static class CompiledFormat {
+
+		private final String message;
+
+		private final MessageFormat format;
+
+		CompiledFormat(String message, MessageFormat format) {
+			this.message = message;
+			this.format = format;
+		}
+	}
+
+	/**
+	 * Looks up message in given map of messages by locale
+	 */
+	private static PresentationMessage get(Map<Locale, PresentationMessageMap> source, String code, Locale locale) {
+		PresentationMessageMap pmm = source.get(locale);
+		if (pmm == null) {
+			return null;
+		}
+		return pmm.get(code);
+	}
+
+	/**
+	 * Creates copy of given map of messages by locale with given message put into it, only the map
+	 * of messages for locale of given message is copied
+	 */
+	private static Map<Locale, PresentationMessageMap> with(Map<Locale, PresentationMessageMap> source,
+	        PresentationMessage pm) {
+		PresentationMessageMap pmm = copyOf(pm.getLocale(), source.get(pm.getLocale()));
+		pmm.put(pm.getCode(), pm);
+		Map<Locale, PresentationMessageMap> copy = new HashMap<Locale, PresentationMessageMap>(source);
+		copy.put(pm.getLocale(), pmm);
+		return copy;
+	}
+
+	/**
+	 * Creates copy of given map of messages by locale with given message removed from it, source
+	 * map is returned as is if it does not contain such message
+	 */
+	private static Map<Locale, PresentationMessageMap> without(Map<Locale, PresentationMessageMap> source, String code,
+	        Locale locale) {
+		if (get(source, code, locale) == null) {
+			return source;
+		}
+		PresentationMessageMap pmm = copyOf(locale, source.get(locale));
+		pmm.remove(code);
+		Map<Locale, PresentationMessageMap> copy = new HashMap<Locale, PresentationMessageMap>(source);
+		copy.put(locale, pmm);
+		return copy;
+	}
+
+	/**
+	 * Creates modifiable copy of given messages map
+	 */
+	private static PresentationMessageMap copyOf(Locale locale, PresentationMessageMap source) {
+		PresentationMessageMap pmm = new PresentationMessageMap(locale);
+		if (source != null) {
+			pmm.putAll(source);
+		}
+		return pmm;
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Column of message texts, which keeps texts encoded as UTF-8 in single buffer of
+ * {@link MessageStorage}. Each text is stored as its byte length, its char length and its bytes,
+ * and is found through array of offsets indexed by code id, so lookup decodes only the text of found
+ * message. Changes of single messages are kept in small overlay on heap which shares the buffer with
+ * the original column, so the buffer is packed again only when the whole table is rebuilt.
+ */
+public class PackedMessageColumn extends MessageColumn {
+
+	/** The size of entry header: text bytes and text chars */
+	private static final int HEADER_SIZE = 8;
+
+	/** The buffer holding all texts, only absolute reads are used so it can be shared */
+	private final ByteBuffer buffer;
+
+	/** The offsets of texts increased by one by code id, zero marks missing text */
+	private final int[] offsets;
+
+	/** The ids of codes whose texts changed after packing, in ascending order */
+	private final int[] overlayIds;
+
+	/** The texts changed after packing by position of their id, null marks removed text */
+	private final String[] overlayTexts;
+
+	/**
+	 * Creates new column over given buffer and overlay
+	 */
+	private PackedMessageColumn(ByteBuffer buffer, int[] offsets, int[] overlayIds, String[] overlayTexts) {
+		this.buffer = buffer;
+		this.offsets = offsets;
+		this.overlayIds = overlayIds;
+		this.overlayTexts = overlayTexts;
+	}
+
+	/**
+	 * Packs given texts into buffer of given storage
+	 *
+	 * @param texts the texts of messages by code id, null for missing ones
+	 * @param storage the storage to keep packed data in
+	 * @return the packed column
+	 * @should find every packed message
+	 * @should keep non ascii texts
+	 */
+	public static PackedMessageColumn pack(String[] texts, MessageStorage storage) {
+		int[] offsets = new int[texts.length];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			for (int id = 0; id < texts.length; id++) {
+				if (texts[id] != null) {
+					offsets[id] = out.size() + 1;
+					byte[] text = utf8(texts[id]);
+					out.writeInt(text.length);
+					out.writeInt(texts[id].length());
+					out.write(text);
+				}
+			}
+			out.flush();
+		}
+		catch (IOException e) {
+			// writing to memory never fails
+			throw new IllegalStateException(e);
+		}
+		return new PackedMessageColumn(storage.store(bytes.toByteArray()), offsets, new int[0], new String[0]);
+	}
+
+	/**
+	 * @see org.openmrs.module.custommessage.cache.MessageColumn#get(int)
+	 */
+	@Override
+	public String get(int id) {
+		if (overlayIds.length > 0) {
+			int position = Arrays.binarySearch(overlayIds, id);
+			if (position >= 0) {
+				return overlayTexts[position];
+			}
+		}
+		if (id < 0 || id >= offsets.length || offsets[id] == 0) {
+			return null;
+		}
+		int offset = offsets[id] - 1;
+		return decode(offset + HEADER_SIZE, buffer.getInt(offset), buffer.getInt(offset + 4));
+	}
+
+	/**
+	 * Creates copy of this column that reflects change of single message. The copy shares the buffer
+	 * of this column and keeps changed message in its overlay.
+	 *
+	 * @see org.openmrs.module.custommessage.cache.MessageColumn#with(int, String)
+	 * @should keep changed messages without repacking
+	 * @should hide removed messages
+	 */
+	@Override
+	public PackedMessageColumn with(int id, String message) {
+		int position = Arrays.binarySearch(overlayIds, id);
+		if (position >= 0) {
+			String[] texts = overlayTexts.clone();
+			texts[position] = message;
+			return new PackedMessageColumn(buffer, offsets, overlayIds, texts);
+		}
+		position = -position - 1;
+		int[] ids = new int[overlayIds.length + 1];
+		String[] texts = new String[overlayTexts.length + 1];
+		System.arraycopy(overlayIds, 0, ids, 0, position);
+		System.arraycopy(overlayTexts, 0, texts, 0, position);
+		ids[position] = id;
+		texts[position] = message;
+		System.arraycopy(overlayIds, position, ids, position + 1, overlayIds.length - position);
+		System.arraycopy(overlayTexts, position, texts, position + 1, overlayTexts.length - position);
+		return new PackedMessageColumn(buffer, offsets, ids, texts);
+	}
+
+	/**
+	 * @return the number of messages changed after packing
+	 */
+	public int getOverlaySize() {
+		return overlayIds.length;
+	}
+
+	/**
+	 * Decodes UTF-8 bytes starting at given position
+	 *
+	 * @param position the position of first byte
+	 * @param length the number of bytes
+	 * @param chars the maximum number of decoded chars
+	 */
+	private String decode(int position, int length, int chars) {
+		char[] decoded = new char[chars];
+		int count = 0;
+		int end = position + length;
+		while (position < end) {
+			int b = buffer.get(position) & 0xff;
+			if (b < 0x80) {
+				decoded[count++] = (char) b;
+				position += 1;
+			} else if (b < 0xe0) {
+				decoded[count++] = (char) (((b & 0x1f) << 6) | (buffer.get(position + 1) & 0x3f));
+				position += 2;
+			} else if (b < 0xf0) {
+				decoded[count++] = (char) (((b & 0x0f) << 12) | ((buffer.get(position + 1) & 0x3f) << 6) | (buffer
+				        .get(position + 2) & 0x3f));
+				position += 3;
+			} else {
+				int codePoint = ((b & 0x07) << 18) | ((buffer.get(position + 1) & 0x3f) << 12)
+				        | ((buffer.get(position + 2) & 0x3f) << 6) | (buffer.get(position + 3) & 0x3f);
+				count += Character.toChars(codePoint, decoded, count);
+				position += 4;
+			}
+		}
+		return new String(decoded, 0, count);
+	}
+
+	/**
+	 * Encodes given string as UTF-8
+	 */
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			// every platform supports UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+}
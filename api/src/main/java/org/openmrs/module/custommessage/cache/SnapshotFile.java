@@ -0,0 +1,226 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.messagesource.PresentationMessage;
+import org.openmrs.messagesource.PresentationMessageMap;
+import org.openmrs.util.LocaleUtility;
+
+/**
+ * Reads and writes the messages of snapshot to compact binary file, so they can be loaded at
+ * startup without querying database and merging messages of parent source. File starts with format
+ * version and fingerprint of the state it was written in, then it holds the locales which were
+ * loaded, the filter of codes of all locales, custom messages and messages of parent source grouped
+ * by locale. File with different fingerprint is not loaded.
+ */
+public class SnapshotFile {
+
+	/** The version of file format, files of other versions are ignored */
+	private static final int FORMAT_VERSION = 3;
+
+	/**
+	 * Writes messages of given snapshot to given file. Data are written to temporary file first,
+	 * which then replaces given file, so readers never see partially written file.
+	 *
+	 * @param file the file to write to
+	 * @param fingerprint the fingerprint of the state given snapshot has been built in
+	 * @param snapshot the snapshot to write
+	 * @throws IOException if I/O error occurs
+	 * @should write snapshot that can be read with the same fingerprint
+	 * @should keep filter of codes of locales not loaded
+	 */
+	public static void write(File file, String fingerprint, MessagesSnapshot snapshot) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		File temporary = new File(directory, file.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(fingerprint);
+			Set<Locale> loadedLocales = snapshot.getLoadedLocales();
+			out.writeBoolean(loadedLocales != null);
+			if (loadedLocales != null) {
+				out.writeInt(loadedLocales.size());
+				for (Locale locale : loadedLocales) {
+					out.writeUTF(locale.toString());
+				}
+			}
+			MessageCodeFilter codeFilter = snapshot.getCodeFilter();
+			out.writeBoolean(codeFilter != null);
+			if (codeFilter != null) {
+				codeFilter.write(out);
+			}
+			writeMessages(out, snapshot.getCustomMessages().values());
+			Map<Locale, List<PresentationMessage>> defaults = new HashMap<Locale, List<PresentationMessage>>();
+			for (PresentationMessage pm : snapshot.getDefaultMessages()) {
+				List<PresentationMessage> forLocale = defaults.get(pm.getLocale());
+				if (forLocale == null) {
+					forLocale = new ArrayList<PresentationMessage>();
+					defaults.put(pm.getLocale(), forLocale);
+				}
+				forLocale.add(pm);
+			}
+			out.writeInt(defaults.size());
+			for (Map.Entry<Locale, List<PresentationMessage>> entry : defaults.entrySet()) {
+				writeLocale(out, entry.getKey(), entry.getValue());
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Unable to replace file " + file);
+		}
+		if (!temporary.renameTo(file)) {
+			throw new IOException("Unable to rename " + temporary + " to " + file);
+		}
+	}
+
+	/**
+	 * Reads snapshot from given file if it has been written with given fingerprint
+	 *
+	 * @param file the file to read from
+	 * @param fingerprint the fingerprint of the current state
+	 * @param fallbackLocale the locale to resolve messages in when there is no message in requested
+	 *            locale nor in its language, may be null
+	 * @param storage the storage to keep effective messages in
+	 * @return the snapshot built from read messages, or null if file does not exist or it has been
+	 *         written with different format or fingerprint
+	 * @throws IOException if I/O error occurs
+	 * @should return null if fingerprint differs
+	 */
+	public static MessagesSnapshot read(File file, String fingerprint, Locale fallbackLocale, MessageStorage storage)
+	        throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != FORMAT_VERSION || !fingerprint.equals(in.readUTF())) {
+				return null;
+			}
+			Set<Locale> loadedLocales = null;
+			if (in.readBoolean()) {
+				loadedLocales = new HashSet<Locale>();
+				for (int i = in.readInt(); i > 0; i--) {
+					loadedLocales.add(LocaleUtility.fromSpecification(in.readUTF()));
+				}
+			}
+			MessageCodeFilter codeFilter = in.readBoolean() ? MessageCodeFilter.read(in) : null;
+			Map<Locale, PresentationMessageMap> customs = new HashMap<Locale, PresentationMessageMap>();
+			int locales = in.readInt();
+			for (int i = 0; i < locales; i++) {
+				Locale locale = LocaleUtility.fromSpecification(in.readUTF());
+				PresentationMessageMap pmm = new PresentationMessageMap(locale);
+				for (PresentationMessage pm : readMessages(in, locale)) {
+					pmm.put(pm.getCode(), pm);
+				}
+				customs.put(locale, pmm);
+			}
+			Collection<PresentationMessage> defaults = new ArrayList<PresentationMessage>();
+			locales = in.readInt();
+			for (int i = 0; i < locales; i++) {
+				defaults.addAll(readMessages(in, LocaleUtility.fromSpecification(in.readUTF())));
+			}
+			MessagesSnapshot snapshot = MessagesSnapshot.build(customs, defaults, fallbackLocale, storage, loadedLocales);
+			return loadedLocales != null && codeFilter != null ? snapshot.withCodeFilter(codeFilter) : snapshot;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes given maps of messages, each preceded by its locale
+	 */
+	private static void writeMessages(DataOutputStream out, Collection<PresentationMessageMap> messages)
+	        throws IOException {
+		out.writeInt(messages.size());
+		for (PresentationMessageMap pmm : messages) {
+			writeLocale(out, pmm.getLocale(), pmm.values());
+		}
+	}
+
+	/**
+	 * Writes locale followed by codes and texts of given messages
+	 */
+	private static void writeLocale(DataOutputStream out, Locale locale, Collection<PresentationMessage> messages)
+	        throws IOException {
+		out.writeUTF(locale.toString());
+		out.writeInt(messages.size());
+		for (PresentationMessage pm : messages) {
+			writeString(out, pm.getCode());
+			writeString(out, pm.getMessage());
+		}
+	}
+
+	/**
+	 * Reads codes and texts of messages in given locale
+	 */
+	private static List<PresentationMessage> readMessages(DataInputStream in, Locale locale) throws IOException {
+		int count = in.readInt();
+		List<PresentationMessage> messages = new ArrayList<PresentationMessage>(count);
+		for (int i = 0; i < count; i++) {
+			String code = readString(in);
+			messages.add(new PresentationMessage(code, locale, readString(in), null));
+		}
+		return messages;
+	}
+
+	/**
+	 * Writes string as length prefixed UTF-8, unlike {@link DataOutputStream#writeUTF(String)} it is
+	 * not limited in length
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reads string written by {@link #writeString(DataOutputStream, String)}
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.service;
+
+import java.util.Locale;
+
+/**
+ * Receives custom messages read by
+ * {@link CustomMessageService#streamCustomMessages(String, Locale, CustomMessageHandler)} one by
+ * one, as plain values rather than entities
+ */
+public interface CustomMessageHandler {
+
+	/**
+	 * Handles single custom message
+	 *
+	 * @param code the code of custom message
+	 * @param locale the locale of custom message
+	 * @param message the text of custom message
+	 * @param locationId the identifier of location custom message belongs to
+	 */
+	public void handle(String code, Locale locale, String message, String locationId);
+}
@@ -0,0 +1,90 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.service;
+
+/**
+ * Counts of messages read by import of custom messages, by what has been done with them
+ */
+public class CustomMessageImportResult {
+
+	/** The number of custom messages created */
+	private int created;
+
+	/** The number of existing custom messages whose text has been changed */
+	private int updated;
+
+	/** The number of existing custom messages which already had imported text */
+	private int unchanged;
+
+	/** The number of blank messages and messages equal to default ones, which are not stored */
+	private int skipped;
+
+	/**
+	 * @return the number of custom messages created
+	 */
+	public int getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the number of existing custom messages whose text has been changed
+	 */
+	public int getUpdated() {
+		return updated;
+	}
+
+	/**
+	 * @return the number of existing custom messages which already had imported text
+	 */
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return the number of messages which are not stored as custom ones
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return the number of all messages read
+	 */
+	public int getTotal() {
+		return created + updated + unchanged + skipped;
+	}
+
+	/**
+	 * @return true if any custom message has been created or updated
+	 */
+	public boolean hasChanges() {
+		return created > 0 || updated > 0;
+	}
+
+	void addCreated() {
+		created++;
+	}
+
+	void addUpdated() {
+		updated++;
+	}
+
+	void addUnchanged() {
+		unchanged++;
+	}
+
+	void addSkipped() {
+		skipped++;
+	}
+}
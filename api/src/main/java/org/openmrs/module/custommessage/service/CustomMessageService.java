@@ -13,9 +13,13 @@
  */
 package org.openmrs.module.custommessage.service;
 
+import java.io.Reader;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipInputStream;
 
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.messagesource.PresentationMessageMap;
@@ -71,6 +75,7 @@ public interface CustomMessageService extends OpenmrsService {
 	 * @param customMessage the Custom Message to save to the database
 	 * @should create a new custom message in database
 	 * @should update existing custom message in database
+	 * @should add new custom message to messages of its location
 	 */
 	public void saveCustomMessage(CustomMessage customMessage);
 	
@@ -81,15 +86,127 @@ public interface CustomMessageService extends OpenmrsService {
 	 */
 	public void deleteCustomMessage(CustomMessage customMessage);
 	
+	/**
+	 * Saves given custom messages in single transaction. The session is flushed after each batch of
+	 * messages and the written messages are evicted from it, so any number of messages can be saved
+	 * at once. The cache of messages is updated once, after the transaction commits.
+	 * 
+	 * @param customMessages the custom messages to save
+	 * @should save all given custom messages
+	 * @should increase cache version only once
+	 */
+	public void saveCustomMessages(Collection<CustomMessage> customMessages);
+	
+	/**
+	 * Deletes given custom messages in single transaction, in batches like
+	 * {@link #saveCustomMessages(Collection)}
+	 * 
+	 * @param customMessages the custom messages to delete
+	 * @should delete all given custom messages
+	 */
+	public void deleteCustomMessages(Collection<CustomMessage> customMessages);
+	
+	/**
+	 * Saves the text of custom message with given code and locale. Existing message is updated in
+	 * place without reading it first, new one is created only when there is none yet. If another
+	 * transaction creates the same message in the meantime, the message it created is updated.
+	 * 
+	 * @param code the code of custom message
+	 * @param locale the locale of custom message
+	 * @param message the text of custom message
+	 * @should create new custom message if there is none for code and locale
+	 * @should update existing custom message without creating duplicate
+	 */
+	public void saveCustomMessage(String code, Locale locale, String message);
+	
+	/**
+	 * Deletes custom message with given code and locale without reading it first
+	 * 
+	 * @param code the code of custom message
+	 * @param locale the locale of custom message
+	 * @return true if there was such custom message
+	 * @should delete custom message with code and locale
+	 * @should return false if there is no such custom message
+	 */
+	public boolean deleteCustomMessage(String code, Locale locale);
+	
+	/**
+	 * Saves texts of custom messages of single code in all given locales in single transaction.
+	 * Existing custom messages of the code are read by one query, those with different text are
+	 * updated and those with blank text are deleted. New custom messages are created for the other
+	 * locales with non blank text, in location resolved once for the code.
+	 * 
+	 * @param code the code of custom messages
+	 * @param messages the texts of custom messages by locale, blank text to delete the message
+	 * @return the changed texts by locale, null text for deleted message
+	 * @should create update and delete custom messages of code
+	 * @should not change custom messages with the same text
+	 * @should increase cache version only once
+	 */
+	public Map<Locale, String> saveCustomMessagesForCode(String code, Map<Locale, String> messages);
+	
 	/**
 	 * @return all messages by locale
 	 */
 	public Map<Locale, PresentationMessageMap> getPresentationMessagesByLocale();
 	
 	/**
-	 * @return all custom messages by code
+	 * @param locale the exact locale of messages
+	 * @return custom messages in given locale, so single locale can be loaded without the others
+	 * @should return only custom messages in given locale
 	 */
-	public Map<String, Map<Locale, CustomMessage>> getCustomMessagesByCode();
+	public PresentationMessageMap getPresentationMessagesForLocale(Locale locale);
+	
+	/**
+	 * @return the locales which have at least one custom message
+	 * @should return locales of all custom messages
+	 */
+	public Set<Locale> getCustomMessageLocales();
+	
+	/**
+	 * Reads code, locale, text and location of custom messages and passes them to given handler one
+	 * by one, ordered by code. Messages are not loaded as entities, so any number of them is read in
+	 * constant memory.
+	 * 
+	 * @param locationId the identifier of location to read messages of, or null for all locations
+	 * @param locale the exact locale to read messages in, or null for all locales
+	 * @param handler the handler to pass messages to
+	 * @should pass every custom message to handler
+	 * @should pass only custom messages of given location and locale
+	 */
+	public void streamCustomMessages(String locationId, Locale locale, CustomMessageHandler handler);
+	
+	/**
+	 * Imports messages of single properties file as custom messages in given locale. Entries are
+	 * read and compared with existing custom messages in batches, and only new and changed messages
+	 * are written, so file of any size is imported with constant memory. Blank messages and
+	 * messages equal to default ones are not stored. The cache of messages is updated once, after
+	 * the transaction commits, and imports of many messages rebuild it in background instead.
+	 * 
+	 * @param reader the reader of properties file
+	 * @param locale the locale of messages in properties file
+	 * @param locationId the identifier of location new custom messages are assigned to
+	 * @return the counts of imported messages
+	 * @throws org.openmrs.api.APIException if properties file can not be read
+	 * @should create custom messages which do not exist yet
+	 * @should update only custom messages with different text
+	 * @should skip blank messages
+	 */
+	public CustomMessageImportResult importCustomMessages(Reader reader, Locale locale, String locationId);
+	
+	/**
+	 * Imports zip file in the layout produced by export, with properties file of each locale named
+	 * <code>messages_&lt;locale&gt;.properties</code> in folder named by location id. Each
+	 * properties file is imported like by {@link #importCustomMessages(Reader, Locale, String)}, all
+	 * of them in single transaction.
+	 * 
+	 * @param zip the zip input stream to import properties files from
+	 * @return the counts of imported messages of all properties files
+	 * @throws org.openmrs.api.APIException if zip file can not be read
+	 * @should import properties files of every location and locale
+	 * @should ignore other files
+	 */
+	public CustomMessageImportResult importCustomMessages(ZipInputStream zip);
 	
 	/**
 	 * Gets messages location by given string identifier of location.
@@ -154,10 +271,33 @@ public interface CustomMessageService extends OpenmrsService {
 	/**
 	 * Gets the map of available messages locations. Messages location id is used as key, and location
 	 * name - as value. Final map will be created as result of merging of messages locations from
-	 * database and modules, started in system
+	 * database and modules, started in system. The map is kept in memory until messages location is
+	 * saved or deleted, or module is started or stopped, so repeated calls do not query database.
 	 * 
-	 * @return map of messages locations available in system
+	 * @return unmodifiable map of messages locations available in system
 	 * @should return map as result of merge of messages locations and started modules
+	 * @should return the same map until messages locations change
+	 * @should include messages location saved after map was built
+	 * @should not include messages location deleted after map was built
 	 */
 	public Map<String, String> getAvailableMessagesLocationsMap();
+	
+	/**
+	 * Drops everything built from the list of started modules, so it is built again on next
+	 * request. Called by module activator every time application context is refreshed, which
+	 * happens whenever some module is started or stopped.
+	 * 
+	 * @should build map of available messages locations again
+	 */
+	public void startedModulesChanged();
+	
+	/**
+	 * Gets the version stamp of custom messages, which is increased with every save or delete of
+	 * custom message. Servers sharing the same database compare it with the stamp their cached
+	 * messages were built at.
+	 * 
+	 * @return the current version of custom messages
+	 * @should increase with every save and delete of custom message
+	 */
+	public long getCacheVersion();
 }
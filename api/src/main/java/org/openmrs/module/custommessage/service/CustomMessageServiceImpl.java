@@ -13,24 +13,49 @@
  */
 package org.openmrs.module.custommessage.service;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.messagesource.PresentationMessage;
 import org.openmrs.messagesource.PresentationMessageMap;
 import org.openmrs.module.Module;
 import org.openmrs.module.ModuleFactory;
 import org.openmrs.module.custommessage.CustomMessage;
 import org.openmrs.module.custommessage.CustomMessageConstants;
+import org.openmrs.module.custommessage.CustomMessageSource;
 import org.openmrs.module.custommessage.MessagesLocation;
 import org.openmrs.module.custommessage.service.db.CustomMessageDAO;
+import org.openmrs.module.custommessage.util.LocationPrefixIndex;
+import org.openmrs.module.custommessage.util.MessagesPropertiesReader;
+import org.openmrs.util.LocaleUtility;
+import org.springframework.context.MessageSource;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Interface for managing custom messages
@@ -38,8 +63,22 @@ import org.springframework.transaction.annotation.Transactional;
 @Transactional
 public class CustomMessageServiceImpl extends BaseOpenmrsService implements CustomMessageService {
 	
+	protected final Log log = LogFactory.getLog(getClass());
+	
+	/** The number of imported messages compared with existing custom messages at once */
+	private static final int IMPORT_BATCH_SIZE = 50;
+	
+	/** The pattern of properties file in exported zip, grouping location id and locale */
+	private static final Pattern IMPORT_ZIP_ENTRY_PATTERN = Pattern.compile("([^/]+)/messages_([^/]+)\\.properties");
+	
 	private CustomMessageDAO dao;
 	
+	/** The index of ids of started modules, used to resolve location of message code, dropped when modules change */
+	private volatile LocationPrefixIndex startedModulesIndex;
+	
+	/** The map of available messages locations, built on first request and dropped when locations or modules change */
+	private volatile Map<String, String> availableLocations;
+	
 	/**
 	 * @return the CustomMessage with the given id
 	 */
@@ -79,6 +118,7 @@ public class CustomMessageServiceImpl extends BaseOpenmrsService implements Cust
 		customMessage.setUpdatedBy(Context.getAuthenticatedUser());
 		customMessage.setUpdatedDatetime(new Date());
 		dao.saveCustomMessage(customMessage);
+		customMessagesChanged(Collections.singletonList(customMessage), Collections.<CustomMessage> emptyList());
 	}
 	
 	/**
@@ -89,6 +129,135 @@ public class CustomMessageServiceImpl extends BaseOpenmrsService implements Cust
 			throw new IllegalArgumentException("Can not delete null entity");
 		}
 		dao.deleteCustomMessage(customMessage);
+		customMessagesChanged(Collections.<CustomMessage> emptyList(), Collections.singletonList(customMessage));
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#saveCustomMessages(java.util.Collection)
+	 */
+	@Override
+	public void saveCustomMessages(Collection<CustomMessage> customMessages) {
+		if (customMessages.isEmpty()) {
+			return;
+		}
+		User user = Context.getAuthenticatedUser();
+		Date now = new Date();
+		for (CustomMessage customMessage : customMessages) {
+			customMessage.setUpdatedBy(user);
+			customMessage.setUpdatedDatetime(now);
+		}
+		dao.saveCustomMessages(customMessages);
+		// single cache update for the whole batch, given collection may be changed by caller until commit
+		customMessagesChanged(new ArrayList<CustomMessage>(customMessages), Collections.<CustomMessage> emptyList());
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#deleteCustomMessages(java.util.Collection)
+	 */
+	@Override
+	public void deleteCustomMessages(Collection<CustomMessage> customMessages) {
+		if (customMessages.isEmpty()) {
+			return;
+		}
+		dao.deleteCustomMessages(customMessages);
+		customMessagesChanged(Collections.<CustomMessage> emptyList(), new ArrayList<CustomMessage>(customMessages));
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#saveCustomMessage(java.lang.String,
+	 *      java.util.Locale, java.lang.String)
+	 */
+	@Override
+	public void saveCustomMessage(String code, Locale locale, String message) {
+		User user = Context.getAuthenticatedUser();
+		Date now = new Date();
+		CustomMessage customMessage = new CustomMessage();
+		customMessage.setCode(code);
+		customMessage.setLocale(locale);
+		customMessage.setMessage(message);
+		// update first, unique index on code and locale rejects concurrent second insert
+		if (dao.updateCustomMessage(code, locale, message, user, now) == 0) {
+			customMessage.setMessageLocation(resolveLocationForCode(code));
+			customMessage.setUpdatedBy(user);
+			customMessage.setUpdatedDatetime(now);
+			if (!dao.insertCustomMessage(customMessage)) {
+				// concurrent first save of the same message has won, this one overwrites it
+				dao.updateCustomMessage(code, locale, message, user, now);
+			}
+		}
+		customMessagesChanged(Collections.singletonList(customMessage), Collections.<CustomMessage> emptyList());
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#deleteCustomMessage(java.lang.String,
+	 *      java.util.Locale)
+	 */
+	@Override
+	public boolean deleteCustomMessage(String code, Locale locale) {
+		if (dao.deleteCustomMessage(code, locale) == 0) {
+			return false;
+		}
+		CustomMessage customMessage = new CustomMessage();
+		customMessage.setCode(code);
+		customMessage.setLocale(locale);
+		customMessagesChanged(Collections.<CustomMessage> emptyList(), Collections.singletonList(customMessage));
+		return true;
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#saveCustomMessagesForCode(java.lang.String,
+	 *      java.util.Map)
+	 */
+	@Override
+	public Map<Locale, String> saveCustomMessagesForCode(String code, Map<Locale, String> messages) {
+		Map<Locale, CustomMessage> existing = new HashMap<Locale, CustomMessage>();
+		for (CustomMessage customMessage : dao.getCustomMessagesForCode(code)) {
+			existing.put(customMessage.getLocale(), customMessage);
+		}
+		User user = Context.getAuthenticatedUser();
+		Date now = new Date();
+		MessagesLocation location = null;
+		List<CustomMessage> saved = new ArrayList<CustomMessage>();
+		List<CustomMessage> deleted = new ArrayList<CustomMessage>();
+		Map<Locale, String> changes = new HashMap<Locale, String>();
+		for (Map.Entry<Locale, String> entry : messages.entrySet()) {
+			CustomMessage customMessage = existing.get(entry.getKey());
+			String message = entry.getValue();
+			if (StringUtils.isBlank(message)) {
+				if (customMessage != null) {
+					deleted.add(customMessage);
+					changes.put(entry.getKey(), null);
+				}
+				continue;
+			}
+			if (customMessage == null) {
+				if (location == null) {
+					location = resolveLocationForCode(code);
+				}
+				customMessage = new CustomMessage();
+				customMessage.setCode(code);
+				customMessage.setLocale(entry.getKey());
+				customMessage.setMessageLocation(location);
+			} else if (message.equals(customMessage.getMessage())) {
+				continue;
+			}
+			customMessage.setMessage(message);
+			customMessage.setUpdatedBy(user);
+			customMessage.setUpdatedDatetime(now);
+			saved.add(customMessage);
+			changes.put(entry.getKey(), message);
+		}
+		if (changes.isEmpty()) {
+			return changes;
+		}
+		if (!deleted.isEmpty()) {
+			dao.deleteCustomMessages(deleted);
+		}
+		if (!saved.isEmpty()) {
+			dao.saveCustomMessages(saved);
+		}
+		customMessagesChanged(saved, deleted);
+		return changes;
 	}
 	
 	/**
@@ -96,35 +265,195 @@ public class CustomMessageServiceImpl extends BaseOpenmrsService implements Cust
 	 */
 	@Transactional(readOnly = true)
 	public Map<Locale, PresentationMessageMap> getPresentationMessagesByLocale() {
-		Map<Locale, PresentationMessageMap> ret = new HashMap<Locale, PresentationMessageMap>();
-		for (CustomMessage m : dao.getAllCustomMessages()) {
-			PresentationMessageMap pmm = ret.get(m.getLocale());
-			if (pmm == null) {
-				pmm = new PresentationMessageMap(m.getLocale());
-				ret.put(m.getLocale(), pmm);
+		final Map<Locale, PresentationMessageMap> ret = new HashMap<Locale, PresentationMessageMap>();
+		dao.streamCustomMessages(null, null, new CustomMessageHandler() {
+			
+			public void handle(String code, Locale locale, String message, String locationId) {
+				PresentationMessageMap pmm = ret.get(locale);
+				if (pmm == null) {
+					pmm = new PresentationMessageMap(locale);
+					ret.put(locale, pmm);
+				}
+				pmm.put(code, new PresentationMessage(code, locale, message, null));
 			}
-			pmm.put(m.getCode(), m.toPresentationMessage());
-		}
+		});
 		return ret;
 	}
 	
 	/**
-	 * @return all custom messages by code
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#getPresentationMessagesForLocale(java.util.Locale)
 	 */
+	@Override
 	@Transactional(readOnly = true)
-	public Map<String, Map<Locale, CustomMessage>> getCustomMessagesByCode() {
-		Map<String, Map<Locale, CustomMessage>> ret = new TreeMap<String, Map<Locale, CustomMessage>>();
-		for (CustomMessage m : dao.getAllCustomMessages()) {
-			Map<Locale, CustomMessage> pmm = ret.get(m.getCode());
-			if (pmm == null) {
-				pmm = new HashMap<Locale, CustomMessage>();
-				ret.put(m.getCode(), pmm);
+	public PresentationMessageMap getPresentationMessagesForLocale(Locale locale) {
+		final PresentationMessageMap ret = new PresentationMessageMap(locale);
+		dao.streamCustomMessages(null, locale, new CustomMessageHandler() {
+			
+			public void handle(String code, Locale locale, String message, String locationId) {
+				ret.put(code, new PresentationMessage(code, locale, message, null));
 			}
-			pmm.put(m.getLocale(), m);
-		}
+		});
 		return ret;
 	}
 	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#getCustomMessageLocales()
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public Set<Locale> getCustomMessageLocales() {
+		return new HashSet<Locale>(dao.getCustomMessageLocales());
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#streamCustomMessages(java.lang.String,
+	 *      java.util.Locale, org.openmrs.module.custommessage.service.CustomMessageHandler)
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public void streamCustomMessages(String locationId, Locale locale, CustomMessageHandler handler) {
+		dao.streamCustomMessages(locationId, locale, handler);
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#importCustomMessages(java.io.Reader,
+	 *      java.util.Locale, java.lang.String)
+	 */
+	@Override
+	public CustomMessageImportResult importCustomMessages(Reader reader, Locale locale, String locationId) {
+		CustomMessageImportResult result = new CustomMessageImportResult();
+		List<CustomMessage> imported = new ArrayList<CustomMessage>();
+		try {
+			importCustomMessages(reader, locale, locationId, result, imported);
+		}
+		catch (IOException e) {
+			throw new APIException("Unable to read messages to import", e);
+		}
+		if (result.hasChanges()) {
+			customMessagesChanged(imported, Collections.<CustomMessage> emptyList());
+		}
+		return result;
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#importCustomMessages(java.util.zip.ZipInputStream)
+	 */
+	@Override
+	public CustomMessageImportResult importCustomMessages(ZipInputStream zip) {
+		CustomMessageImportResult result = new CustomMessageImportResult();
+		List<CustomMessage> imported = new ArrayList<CustomMessage>();
+		try {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				Matcher matcher = IMPORT_ZIP_ENTRY_PATTERN.matcher(entry.getName());
+				if (!entry.isDirectory() && matcher.matches()) {
+					// reader is not closed, as it would close the whole zip
+					importCustomMessages(new InputStreamReader(zip, "UTF-8"), LocaleUtility.fromSpecification(matcher
+					        .group(2)), matcher.group(1), result, imported);
+				}
+				zip.closeEntry();
+			}
+		}
+		catch (IOException e) {
+			throw new APIException("Unable to read messages to import", e);
+		}
+		if (result.hasChanges()) {
+			customMessagesChanged(imported, Collections.<CustomMessage> emptyList());
+		}
+		return result;
+	}
+	
+	/**
+	 * Imports entries of properties file batch by batch, adding counts of imported messages to given
+	 * result and written messages to given list. The list keeps only one message more than the
+	 * cache applies one by one, as larger changes rebuild the cache anyway, so memory stays constant.
+	 */
+	private void importCustomMessages(Reader reader, Locale locale, String locationId, CustomMessageImportResult result,
+	        List<CustomMessage> imported) throws IOException {
+		MessagesLocation location = getOrCreateMessagesLocation(locationId);
+		MessagesPropertiesReader properties = new MessagesPropertiesReader(reader);
+		Map<String, String> batch = new LinkedHashMap<String, String>();
+		while (properties.next()) {
+			if (StringUtils.isBlank(properties.getValue())) {
+				result.addSkipped();
+			} else if (batch.put(properties.getKey(), properties.getValue()) != null) {
+				// the last of repeated entries wins, like in properties loaded by message source
+				result.addSkipped();
+			}
+			if (batch.size() == IMPORT_BATCH_SIZE) {
+				importBatch(batch, locale, location, result, imported);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			importBatch(batch, locale, location, result, imported);
+		}
+	}
+	
+	/**
+	 * Compares given messages with existing custom messages by code, and writes only those which
+	 * have changed
+	 */
+	private void importBatch(Map<String, String> batch, Locale locale, MessagesLocation location,
+	        CustomMessageImportResult result, List<CustomMessage> imported) {
+		User user = Context.getAuthenticatedUser();
+		Date now = new Date();
+		List<CustomMessage> changed = new ArrayList<CustomMessage>();
+		for (CustomMessage customMessage : dao.getCustomMessagesForCodes(batch.keySet(), locale)) {
+			String message = batch.remove(customMessage.getCode());
+			if (message == null) {
+				continue;
+			}
+			if (message.equals(customMessage.getMessage())) {
+				result.addUnchanged();
+			} else {
+				customMessage.setMessage(message);
+				customMessage.setUpdatedBy(user);
+				customMessage.setUpdatedDatetime(now);
+				changed.add(customMessage);
+				result.addUpdated();
+			}
+		}
+		// the rest has no custom message yet, exported default messages should not become custom ones
+		for (Map.Entry<String, String> entry : batch.entrySet()) {
+			PresentationMessage defaultMessage = Context.getMessageSourceService().getPresentation(entry.getKey(), locale);
+			if (defaultMessage != null && entry.getValue().equals(defaultMessage.getMessage())) {
+				result.addSkipped();
+			} else {
+				CustomMessage customMessage = new CustomMessage();
+				customMessage.setCode(entry.getKey());
+				customMessage.setLocale(locale);
+				customMessage.setMessage(entry.getValue());
+				customMessage.setMessageLocation(location);
+				customMessage.setUpdatedBy(user);
+				customMessage.setUpdatedDatetime(now);
+				changed.add(customMessage);
+				result.addCreated();
+			}
+		}
+		if (!changed.isEmpty()) {
+			dao.saveCustomMessages(changed);
+			for (int i = 0; i < changed.size() && imported.size() <= CustomMessageSource.BULK_REFRESH_THRESHOLD; i++) {
+				imported.add(changed.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * @return messages location with given id, new one is created if there is no such location yet
+	 */
+	private MessagesLocation getOrCreateMessagesLocation(String locationId) {
+		MessagesLocation location = dao.getMessagesLocation(locationId);
+		if (location == null) {
+			String name = CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_ID.equals(locationId) ? CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_NAME
+			        : getAvailableMessagesLocationsMap().get(locationId);
+			location = new MessagesLocation(locationId, name != null ? name : locationId);
+			dao.saveMessagesLocation(location);
+			invalidateAvailableLocations();
+		}
+		return location;
+	}
+	
 	/**
 	 * @return the dao
 	 */
@@ -182,6 +511,7 @@ public class CustomMessageServiceImpl extends BaseOpenmrsService implements Cust
 	@Override
 	public void saveMessagesLocation(MessagesLocation messagesLocation) {
 		dao.saveMessagesLocation(messagesLocation);
+		invalidateAvailableLocations();
 	}
 	
 	/**
@@ -190,6 +520,7 @@ public class CustomMessageServiceImpl extends BaseOpenmrsService implements Cust
 	@Override
 	public void deleteMessagesLocation(MessagesLocation messagesLocation) {
 		dao.deleteMessagesLocation(messagesLocation);
+		invalidateAvailableLocations();
 	}
 	
 	/**
@@ -204,17 +535,18 @@ public class CustomMessageServiceImpl extends BaseOpenmrsService implements Cust
 		if (StringUtils.isBlank(messageCode)) {
 			throw new IllegalArgumentException();
 		}
-		// iterate over the set of successfully started modules
-		for (Module module : ModuleFactory.getStartedModules()) {
-			if (messageCode.startsWith(module.getModuleId().concat("."))) {
-				messageLocation = customMessageService.getMessagesLocation(module.getModuleId());
-				if (messageLocation == null) {
-					// if location does not exist yet, create in and save into database
-					messageLocation = new MessagesLocation(module.getModuleId(), module.getName());
-					customMessageService.saveMessagesLocation(messageLocation);
-				}
-				return messageLocation;
+		// find the started module with the longest id the code starts with
+		String moduleId = getStartedModulesIndex().getLocationId(messageCode);
+		if (moduleId != null) {
+			// locations are in second-level cache, so existing one is usually found without database
+			messageLocation = customMessageService.getMessagesLocation(moduleId);
+			if (messageLocation == null) {
+				// if location does not exist yet, create in and save into database
+				Module module = ModuleFactory.getStartedModulesMap().get(moduleId);
+				messageLocation = new MessagesLocation(moduleId, module != null ? module.getName() : moduleId);
+				customMessageService.saveMessagesLocation(messageLocation);
 			}
+			return messageLocation;
 		}
 		// return default location meaning that it's core message as no matching module id is found
 		messageLocation = customMessageService.getMessagesLocation(CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_ID);
@@ -227,24 +559,122 @@ public class CustomMessageServiceImpl extends BaseOpenmrsService implements Cust
 		return messageLocation;
 	}
 
+	/**
+	 * Gets index of ids of started modules, building it if modules have been started or stopped
+	 * since it was built, see {@link #startedModulesChanged()}
+	 * 
+	 * @return the index of ids of started modules
+	 */
+	private LocationPrefixIndex getStartedModulesIndex() {
+		LocationPrefixIndex index = startedModulesIndex;
+		if (index == null) {
+			Collection<Module> startedModules = ModuleFactory.getStartedModules();
+			List<String> moduleIds = new ArrayList<String>(startedModules.size());
+			for (Module module : startedModules) {
+				moduleIds.add(module.getModuleId());
+			}
+			index = new LocationPrefixIndex(moduleIds);
+			startedModulesIndex = index;
+		}
+		return index;
+	}
+	
 	/**
 	 * @see org.openmrs.module.custommessage.service.CustomMessageService#getAvailableMessagesLocationsMap()
 	 */
 	@Override
 	@Transactional(readOnly = true)
 	public Map<String, String> getAvailableMessagesLocationsMap() {
-		// add map of locations to model to be used on export page
-		Map<String, String> locationMap = new TreeMap<String, String>();
-		List<MessagesLocation> messagesLocations = getAllMessagesLocations();
-		if (messagesLocations != null) {
-			for (MessagesLocation messagesLocation : messagesLocations) {
-				locationMap.put(messagesLocation.getLocationId(), messagesLocation.getName());
+		Map<String, String> locations = availableLocations;
+		if (locations == null) {
+			Map<String, String> locationMap = new TreeMap<String, String>();
+			List<MessagesLocation> messagesLocations = getAllMessagesLocations();
+			if (messagesLocations != null) {
+				for (MessagesLocation messagesLocation : messagesLocations) {
+					locationMap.put(messagesLocation.getLocationId(), messagesLocation.getName());
+				}
 			}
+			// merge messages locations with list of started modules which can be considered as potential messages locations
+			for (Module startedModule : ModuleFactory.getStartedModules()) {
+				locationMap.put(startedModule.getModuleId(), startedModule.getName());
+			}
+			locations = Collections.unmodifiableMap(locationMap);
+			availableLocations = locations;
 		}
-		// merge messages locations with list of started modules which can be considered as potential messages locations
-		for (Module startedModule : ModuleFactory.getStartedModules()) {
-			locationMap.put(startedModule.getModuleId(), startedModule.getName());
+		return locations;
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#startedModulesChanged()
+	 */
+	@Override
+	public void startedModulesChanged() {
+		startedModulesIndex = null;
+		availableLocations = null;
+	}
+	
+	/**
+	 * Drops the map of available messages locations, so it is built again on next request. When
+	 * called within transaction, the map is dropped once more after the transaction completes, as
+	 * the map could have been built meanwhile from the state that is not committed yet, or that is
+	 * rolled back.
+	 */
+	private void invalidateAvailableLocations() {
+		availableLocations = null;
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCompletion(int status) {
+					availableLocations = null;
+				}
+			});
 		}
-		return locationMap;
+	}
+	
+	/**
+	 * Increases the version stamp of custom messages and applies given changes to the cache of
+	 * active message source once the transaction commits, together with the stamp they produced.
+	 * Changes rolled back never reach the cache. If the cache can not be updated, it is rebuilt by
+	 * the next check of version stamp.
+	 */
+	private void customMessagesChanged(final Collection<CustomMessage> saved, final Collection<CustomMessage> deleted) {
+		final long version = dao.incrementCacheVersion();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCommit() {
+					updateMessageSource(saved, deleted, version);
+				}
+			});
+		} else {
+			updateMessageSource(saved, deleted, version);
+		}
+	}
+	
+	/**
+	 * Applies committed changes of custom messages to the cache of active message source
+	 */
+	private void updateMessageSource(Collection<CustomMessage> saved, Collection<CustomMessage> deleted, long version) {
+		try {
+			MessageSource messageSource = Context.getMessageSourceService().getActiveMessageSource();
+			if (messageSource instanceof CustomMessageSource) {
+				((CustomMessageSource) messageSource).updateCustomMessages(saved, deleted, version);
+			}
+		}
+		catch (RuntimeException e) {
+			// changes are committed already, so they must not fail the caller
+			log.warn("Unable to apply changed custom messages to the cache", e);
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.module.custommessage.service.CustomMessageService#getCacheVersion()
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public long getCacheVersion() {
+		return dao.getCacheVersion();
 	}
 }
@@ -13,11 +13,15 @@
  */
 package org.openmrs.module.custommessage.service.db;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
+import org.openmrs.User;
 import org.openmrs.module.custommessage.CustomMessage;
 import org.openmrs.module.custommessage.MessagesLocation;
+import org.openmrs.module.custommessage.service.CustomMessageHandler;
 import org.openmrs.module.custommessage.service.CustomMessageService;
 
 /**
@@ -40,6 +44,16 @@ public interface CustomMessageDAO {
 	 */
 	public List<CustomMessage> getAllCustomMessages();
 	
+	/**
+	 * {@link CustomMessageService#getCustomMessageLocales()}
+	 */
+	public List<Locale> getCustomMessageLocales();
+	
+	/**
+	 * {@link CustomMessageService#streamCustomMessages(String, Locale, CustomMessageHandler)}
+	 */
+	public void streamCustomMessages(String locationId, Locale locale, CustomMessageHandler handler);
+	
 	/**
 	 * @return all custom messages for the associated code
 	 */
@@ -55,11 +69,62 @@ public interface CustomMessageDAO {
 	 */
 	public void saveCustomMessage(CustomMessage customMessage);
 	
+	/**
+	 * Inserts given new custom message right away, unless custom message with the same code and
+	 * locale has been inserted concurrently
+	 * 
+	 * @param customMessage the new custom message to insert
+	 * @return true if the custom message has been inserted, false if unique index on code and
+	 *         locale has rejected it
+	 */
+	public boolean insertCustomMessage(CustomMessage customMessage);
+	
 	/**
 	 * @param customMessage the Custom Message to delete from the database
 	 */
 	public void deleteCustomMessage(CustomMessage customMessage);
 	
+	/**
+	 * @param codes the codes of custom messages to look for
+	 * @param locale the exact locale of custom messages to look for
+	 * @return custom messages with any of given codes in given locale, detached from the session,
+	 *         so changed ones have to be saved explicitly
+	 */
+	public List<CustomMessage> getCustomMessagesForCodes(Collection<String> codes, Locale locale);
+	
+	/**
+	 * Saves given custom messages, flushing the session and evicting the saved messages from it
+	 * after every batch of them and after the last one. Only the flush is batched for new messages,
+	 * as their ids are generated by the database on insert.
+	 * 
+	 * @param customMessages the custom messages to save
+	 */
+	public void saveCustomMessages(Collection<CustomMessage> customMessages);
+	
+	/**
+	 * Deletes given custom messages, flushing the session and evicting the deleted messages from it
+	 * after every batch of them and after the last one
+	 * 
+	 * @param customMessages the custom messages to delete
+	 */
+	public void deleteCustomMessages(Collection<CustomMessage> customMessages);
+	
+	/**
+	 * Updates the text of custom message with given code and locale in single statement, without
+	 * loading it first
+	 * 
+	 * @return the number of updated custom messages, zero if there is no such message yet
+	 */
+	public int updateCustomMessage(String code, Locale locale, String message, User updatedBy, Date updatedDatetime);
+	
+	/**
+	 * Deletes custom message with given code and locale in single statement, without loading it
+	 * first
+	 * 
+	 * @return the number of deleted custom messages
+	 */
+	public int deleteCustomMessage(String code, Locale locale);
+	
 	/**
 	 * {@link CustomMessageService#getMessagesLocation(String)}
 	 */
@@ -84,5 +149,18 @@ public interface CustomMessageDAO {
 	 * {@link CustomMessageService#deleteMessagesLocation(MessagesLocation)}
 	 */
 	public void deleteMessagesLocation(MessagesLocation messagesLocation);
+	
+	/**
+	 * {@link CustomMessageService#getCacheVersion()}
+	 */
+	public long getCacheVersion();
+	
+	/**
+	 * Increases the version stamp of custom messages by one in database
+	 * 
+	 * @return the increased version stamp, the row stays locked by current transaction, so no other
+	 *         change can be counted in between
+	 */
+	public long incrementCacheVersion();
 }
 
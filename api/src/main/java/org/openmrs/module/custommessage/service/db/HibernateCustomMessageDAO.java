@@ -13,16 +13,27 @@
  */
 package org.openmrs.module.custommessage.service.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.exception.ConstraintViolationException;
+import org.openmrs.User;
 import org.openmrs.module.custommessage.CustomMessage;
+import org.openmrs.module.custommessage.CustomMessageCacheVersion;
 import org.openmrs.module.custommessage.MessagesLocation;
+import org.openmrs.module.custommessage.service.CustomMessageHandler;
 
 /**
  * Core implementation of the DAO
@@ -30,6 +41,21 @@ import org.openmrs.module.custommessage.MessagesLocation;
 public class HibernateCustomMessageDAO implements CustomMessageDAO {
 	
 	protected final Log log = LogFactory.getLog(getClass());
+	
+	/** The number of rows fetched at once when custom messages are streamed */
+	private static final int STREAM_FETCH_SIZE = 500;
+	
+	/**
+	 * The number of custom messages written before the session is flushed and they are evicted
+	 * from it. Updates and deletes are sent in JDBC batches of this size where batching is enabled,
+	 * while inserts are not batched, as the native id generator maps to identity columns on MySQL
+	 * and each insert has to return its generated id.
+	 */
+	private static final int BATCH_SIZE = 50;
+	
+	/** The role of cached collection of custom messages of messages location */
+	private static final String CUSTOM_MESSAGES_ROLE = MessagesLocation.class.getName() + ".customMessages";
+	
     private SessionFactory sessionFactory;
 
 	/**
@@ -47,6 +73,7 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
 	public CustomMessage getCustomMessageByUuid(String uuid) {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(CustomMessage.class);
 		criteria.add(Restrictions.eq("uuid", uuid));
+		criteria.setCacheable(true);
 		return (CustomMessage)criteria.uniqueResult();
 	}
 
@@ -59,6 +86,48 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
 		return criteria.list();
 	}
 	
+	/**
+	 * @see CustomMessageDAO#getCustomMessageLocales()
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Locale> getCustomMessageLocales() {
+		return sessionFactory.getCurrentSession().createQuery("select distinct m.locale from CustomMessage m").list();
+	}
+	
+	/**
+	 * @see CustomMessageDAO#streamCustomMessages(String, Locale, CustomMessageHandler)
+	 */
+	public void streamCustomMessages(String locationId, Locale locale, CustomMessageHandler handler) {
+		// projection of plain columns, so no entity, user or location is loaded into the session
+		StringBuilder hql = new StringBuilder(
+		        "select m.code, m.locale, m.message, m.messageLocation.locationId from CustomMessage m");
+		if (locationId != null) {
+			hql.append(" where m.messageLocation.locationId = :locationId");
+		}
+		if (locale != null) {
+			hql.append(locationId != null ? " and" : " where").append(" m.locale = :locale");
+		}
+		hql.append(" order by m.code");
+		Query query = sessionFactory.getCurrentSession().createQuery(hql.toString());
+		if (locationId != null) {
+			query.setString("locationId", locationId);
+		}
+		if (locale != null) {
+			query.setParameter("locale", locale);
+		}
+		query.setFetchSize(STREAM_FETCH_SIZE);
+		ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				handler.handle((String) results.get(0), (Locale) results.get(1), (String) results.get(2),
+				    (String) results.get(3));
+			}
+		}
+		finally {
+			results.close();
+		}
+	}
+	
 	/**
 	 * @see CustomMessageDAO#getCustomMessagesForCode(String)
 	 */
@@ -66,15 +135,57 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
 	public List<CustomMessage> getCustomMessagesForCode(String code) {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(CustomMessage.class);
 		criteria.add(Restrictions.eq("code", code));
+		criteria.setCacheable(true);
 		return criteria.list();
 	}
 	
+	/**
+	 * @see CustomMessageDAO#getCustomMessagesForCodes(Collection, Locale)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<CustomMessage> getCustomMessagesForCodes(Collection<String> codes, Locale locale) {
+		Session session = sessionFactory.getCurrentSession();
+		Criteria criteria = session.createCriteria(CustomMessage.class);
+		criteria.add(Restrictions.in("code", codes));
+		criteria.add(Restrictions.eq("locale", locale));
+		List<CustomMessage> customMessages = criteria.list();
+		// callers compare them batch by batch, so the session must not grow with each batch
+		for (CustomMessage customMessage : customMessages) {
+			session.evict(customMessage);
+		}
+		return customMessages;
+	}
+	
 	/**
 	 * 
 	 * @see CustomMessageDAO#saveCustomMessage(CustomMessage)
 	 */
 	public void saveCustomMessage(CustomMessage customMessage) {
 		sessionFactory.getCurrentSession().saveOrUpdate(customMessage);
+		evictCustomMessagesCollections();
+	}
+	
+	/**
+	 * Flushes the insert at once, so violation of unique index is reported here rather than when
+	 * the transaction is committed. MySQL rolls back only the rejected statement, so the caller can
+	 * go on in the same transaction.
+	 * 
+	 * @see CustomMessageDAO#insertCustomMessage(CustomMessage)
+	 */
+	public boolean insertCustomMessage(CustomMessage customMessage) {
+		Session session = sessionFactory.getCurrentSession();
+		try {
+			session.save(customMessage);
+			session.flush();
+		}
+		catch (ConstraintViolationException e) {
+			// the rejected message must not be flushed again with the rest of the session
+			session.evict(customMessage);
+			log.debug("Custom message " + customMessage.getCode() + " has been inserted concurrently", e);
+			return false;
+		}
+		evictCustomMessagesCollections();
+		return true;
 	}
 	
 	/**
@@ -82,6 +193,77 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
 	 */
 	public void deleteCustomMessage(CustomMessage customMessage) {
 		sessionFactory.getCurrentSession().delete(customMessage);
+		evictCustomMessagesCollections();
+	}
+	
+	/**
+	 * @see CustomMessageDAO#saveCustomMessages(Collection)
+	 */
+	public void saveCustomMessages(Collection<CustomMessage> customMessages) {
+		Session session = sessionFactory.getCurrentSession();
+		List<CustomMessage> batch = new ArrayList<CustomMessage>(BATCH_SIZE);
+		for (CustomMessage customMessage : customMessages) {
+			session.saveOrUpdate(customMessage);
+			batch.add(customMessage);
+			if (batch.size() == BATCH_SIZE) {
+				// send the batch and release saved entities, so the session does not grow with collection
+				flushAndEvict(session, batch);
+			}
+		}
+		flushAndEvict(session, batch);
+		evictCustomMessagesCollections();
+	}
+	
+	/**
+	 * @see CustomMessageDAO#deleteCustomMessages(Collection)
+	 */
+	public void deleteCustomMessages(Collection<CustomMessage> customMessages) {
+		Session session = sessionFactory.getCurrentSession();
+		List<CustomMessage> batch = new ArrayList<CustomMessage>(BATCH_SIZE);
+		for (CustomMessage customMessage : customMessages) {
+			session.delete(customMessage);
+			batch.add(customMessage);
+			if (batch.size() == BATCH_SIZE) {
+				flushAndEvict(session, batch);
+			}
+		}
+		flushAndEvict(session, batch);
+		evictCustomMessagesCollections();
+	}
+	
+	/**
+	 * Flushes the session and evicts given custom messages from it, other entities of the session
+	 * are left untouched. Given list is emptied afterwards.
+	 */
+	private void flushAndEvict(Session session, List<CustomMessage> batch) {
+		session.flush();
+		for (CustomMessage customMessage : batch) {
+			// deleted messages are no longer in the session
+			if (session.contains(customMessage)) {
+				session.evict(customMessage);
+			}
+		}
+		batch.clear();
+	}
+	
+	/**
+	 * @see CustomMessageDAO#updateCustomMessage(String, Locale, String, User, Date)
+	 */
+	public int updateCustomMessage(String code, Locale locale, String message, User updatedBy, Date updatedDatetime) {
+		return sessionFactory.getCurrentSession().createQuery(
+		    "update CustomMessage set message = :message, updatedBy = :updatedBy, updatedDatetime = :updatedDatetime"
+		            + " where code = :code and locale = :locale").setString("message", message).setParameter(
+		    "updatedBy", updatedBy).setParameter("updatedDatetime", updatedDatetime).setString("code", code).setParameter(
+		    "locale", locale).executeUpdate();
+	}
+	
+	/**
+	 * @see CustomMessageDAO#deleteCustomMessage(String, Locale)
+	 */
+	public int deleteCustomMessage(String code, Locale locale) {
+		return sessionFactory.getCurrentSession().createQuery(
+		    "delete from CustomMessage where code = :code and locale = :locale").setString("code", code).setParameter(
+		    "locale", locale).executeUpdate();
 	}
     
 	/**
@@ -94,21 +276,15 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
     /**
      * @see org.openmrs.module.custommessage.service.db.CustomMessageDAO#getCustomMessagesForCode(java.lang.String, java.util.Locale)
      */
-	@SuppressWarnings("unchecked")
     @Override
     public CustomMessage getCustomMessagesForCode(String code, Locale locale) {
-		CustomMessage customMessage = null;
 		// build criteria for fetching custom messages with
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(CustomMessage.class);
 		criteria.add(Restrictions.eq("code", code));
 		criteria.add(Restrictions.eq("locale", locale));
-		List<CustomMessage> result = criteria.list();
-		
-		// if list is not null and not empty get the first element
-		if (result != null && !result.isEmpty()) {
-			customMessage = result.get(0);
-		}
-	    return customMessage;
+		criteria.setCacheable(true);
+		// unique index on code and locale guarantees there is at most one such message
+		return (CustomMessage) criteria.uniqueResult();
     }
 
 	/**
@@ -126,6 +302,7 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
     public MessagesLocation getMessagesLocationByUuid(String uuid) {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(MessagesLocation.class);
 		criteria.add(Restrictions.eq("uuid", uuid));
+		criteria.setCacheable(true);
 		return (MessagesLocation)criteria.uniqueResult();
     }
 
@@ -136,6 +313,7 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
     @Override
     public List<MessagesLocation> getAllMessagesLocations() {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(MessagesLocation.class);
+		criteria.setCacheable(true);
 		return criteria.list();
     }
 
@@ -154,4 +332,41 @@ public class HibernateCustomMessageDAO implements CustomMessageDAO {
     public void deleteMessagesLocation(MessagesLocation messagesLocation) {
 		sessionFactory.getCurrentSession().delete(messagesLocation);
     }
-}
\ No newline at end of file
+
+	/**
+	 * @see org.openmrs.module.custommessage.service.db.CustomMessageDAO#getCacheVersion()
+	 */
+	@Override
+	public long getCacheVersion() {
+		// query bypasses the session, so version changed by other servers is always seen
+		Number version = (Number) sessionFactory.getCurrentSession()
+		        .createQuery("select v.version from CustomMessageCacheVersion v where v.id = :id")
+		        .setInteger("id", CustomMessageCacheVersion.ID).uniqueResult();
+		return version == null ? 0 : version.longValue();
+	}
+
+	/**
+	 * @see org.openmrs.module.custommessage.service.db.CustomMessageDAO#incrementCacheVersion()
+	 */
+	@Override
+	public long incrementCacheVersion() {
+		// single update statement, so concurrent changes from several servers are all counted
+		int updated = sessionFactory.getCurrentSession()
+		        .createQuery("update CustomMessageCacheVersion set version = version + 1 where id = :id")
+		        .setInteger("id", CustomMessageCacheVersion.ID).executeUpdate();
+		if (updated == 0) {
+			// the row is created by liquibase, but it may be missing in databases created otherwise
+			sessionFactory.getCurrentSession().save(new CustomMessageCacheVersion(CustomMessageCacheVersion.ID, 1L));
+			return 1L;
+		}
+		return getCacheVersion();
+	}
+	
+	/**
+	 * Evicts cached collections of custom messages of all locations. Collection is the inverse side
+	 * of the association, so saving or deleting single message does not update it in the cache.
+	 */
+	private void evictCustomMessagesCollections() {
+		sessionFactory.evictCollection(CUSTOM_MESSAGES_ROLE);
+	}
+}
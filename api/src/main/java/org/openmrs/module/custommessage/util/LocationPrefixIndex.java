@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.util;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable index resolving message code to the location it belongs to. Code belongs to location
+ * whose id followed by a dot is the longest prefix of code, so codes of module with id containing
+ * dots are not mistaken for codes of module whose id is the first part of it.
+ * <p>
+ * Location ids are stored as trie of their dot separated parts, every part being a key of single
+ * map. Resolution walks the dots of code and stops at the first part no location id continues
+ * with, so it takes time proportional to the length of code, regardless of the number of
+ * locations.
+ */
+public class LocationPrefixIndex {
+
+	/** Every dot separated prefix of location ids, mapped to true if it is location id itself */
+	private final Map<String, Boolean> prefixes;
+
+	/** The number of location ids in this index */
+	private final int size;
+
+	/**
+	 * Creates new index of given location ids
+	 *
+	 * @param locationIds the ids of locations, i.e. ids of modules
+	 */
+	public LocationPrefixIndex(Collection<String> locationIds) {
+		prefixes = new HashMap<String, Boolean>(locationIds.size() * 4);
+		for (String locationId : locationIds) {
+			for (int dot = locationId.indexOf('.'); dot > 0; dot = locationId.indexOf('.', dot + 1)) {
+				String prefix = locationId.substring(0, dot);
+				if (!prefixes.containsKey(prefix)) {
+					prefixes.put(prefix, Boolean.FALSE);
+				}
+			}
+			prefixes.put(locationId, Boolean.TRUE);
+		}
+		size = locationIds.size();
+	}
+
+	/**
+	 * Resolves location of message with given code
+	 *
+	 * @param code the code of message
+	 * @return the id of location given code belongs to, or null if it belongs to none of them
+	 * @should return id of location code starts with
+	 * @should return longest matching location id
+	 * @should return null if code does not start with any location id followed by dot
+	 */
+	public String getLocationId(String code) {
+		String locationId = null;
+		for (int dot = code.indexOf('.'); dot > 0; dot = code.indexOf('.', dot + 1)) {
+			Boolean isLocationId = prefixes.get(code.substring(0, dot));
+			if (isLocationId == null) {
+				// no location id continues with this part, so there can not be longer match
+				break;
+			}
+			if (isLocationId) {
+				locationId = code.substring(0, dot);
+			}
+		}
+		return locationId;
+	}
+
+	/**
+	 * @return the number of location ids in this index
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads entries of messages properties file one by one. Unlike {@link java.util.Properties}, it
+ * does not keep entries already read, so files of any size can be read with constant memory. The
+ * syntax is the one of {@link java.util.Properties#load(Reader)}, including comments, line
+ * continuations and escapes.
+ */
+public class MessagesPropertiesReader {
+
+	private final BufferedReader reader;
+
+	private String key;
+
+	private String value;
+
+	/**
+	 * Creates new reader of entries of given properties file. The reader is not closed by this
+	 * class, so entries of zip file can be read without closing the whole zip.
+	 *
+	 * @param reader the reader of properties file
+	 */
+	public MessagesPropertiesReader(Reader reader) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+	}
+
+	/**
+	 * Reads next entry of properties file
+	 *
+	 * @return false if there are no more entries
+	 * @throws IOException if any I/O related error occurs
+	 * @should read entries separated by equals sign, colon or whitespace
+	 * @should skip comments and blank lines
+	 * @should join continued lines
+	 * @should unescape special characters and unicode escapes
+	 */
+	public boolean next() throws IOException {
+		String line = readLogicalLine();
+		if (line == null) {
+			key = null;
+			value = null;
+			return false;
+		}
+		int length = line.length();
+		int keyEnd = 0;
+		boolean escaped = false;
+		// key ends at first unescaped separator
+		while (keyEnd < length) {
+			char c = line.charAt(keyEnd);
+			if (escaped) {
+				escaped = false;
+			} else if (c == '\\') {
+				escaped = true;
+			} else if (c == '=' || c == ':' || Character.isWhitespace(c)) {
+				break;
+			}
+			keyEnd++;
+		}
+		int valueStart = keyEnd;
+		// skip whitespace around separator, and at most one separator itself
+		while (valueStart < length && Character.isWhitespace(line.charAt(valueStart))) {
+			valueStart++;
+		}
+		if (valueStart < length && (line.charAt(valueStart) == '=' || line.charAt(valueStart) == ':')) {
+			valueStart++;
+			while (valueStart < length && Character.isWhitespace(line.charAt(valueStart))) {
+				valueStart++;
+			}
+		}
+		key = unescape(line.substring(0, keyEnd));
+		value = unescape(line.substring(valueStart));
+		return true;
+	}
+
+	/**
+	 * @return the key of current entry
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the value of current entry
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * Reads next line which is neither blank nor comment, joined with lines it is continued with
+	 *
+	 * @return the logical line without leading whitespace or null at the end of file
+	 * @throws IOException if any I/O related error occurs
+	 */
+	private String readLogicalLine() throws IOException {
+		String line;
+		do {
+			line = reader.readLine();
+			if (line == null) {
+				return null;
+			}
+			line = trimLeading(line);
+		} while (line.length() == 0 || line.charAt(0) == '#' || line.charAt(0) == '!');
+		StringBuilder logicalLine = new StringBuilder(line);
+		while (endsWithContinuation(logicalLine)) {
+			logicalLine.setLength(logicalLine.length() - 1);
+			String continuation = reader.readLine();
+			if (continuation == null) {
+				break;
+			}
+			logicalLine.append(trimLeading(continuation));
+		}
+		return logicalLine.toString();
+	}
+
+	/**
+	 * @return true if line ends with odd number of backslashes
+	 */
+	private static boolean endsWithContinuation(CharSequence line) {
+		int backslashes = 0;
+		for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+			backslashes++;
+		}
+		return backslashes % 2 == 1;
+	}
+
+	private static String trimLeading(String line) {
+		int start = 0;
+		while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+			start++;
+		}
+		return line.substring(start);
+	}
+
+	/**
+	 * Replaces escape sequences in given string with characters they stand for
+	 */
+	private static String unescape(String s) {
+		if (s.indexOf('\\') < 0) {
+			return s;
+		}
+		StringBuilder result = new StringBuilder(s.length());
+		int i = 0;
+		while (i < s.length()) {
+			char c = s.charAt(i++);
+			if (c != '\\' || i == s.length()) {
+				result.append(c);
+				continue;
+			}
+			c = s.charAt(i++);
+			switch (c) {
+				case 't':
+					result.append('\t');
+					break;
+				case 'n':
+					result.append('\n');
+					break;
+				case 'r':
+					result.append('\r');
+					break;
+				case 'f':
+					result.append('\f');
+					break;
+				case 'u':
+					if (i + 4 > s.length()) {
+						throw new IllegalArgumentException("Malformed \\uxxxx escape in: " + s);
+					}
+					try {
+						result.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+					}
+					catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Malformed \\uxxxx escape in: " + s, e);
+					}
+					i += 4;
+					break;
+				default:
+					result.append(c);
+			}
+		}
+		return result.toString();
+	}
+}
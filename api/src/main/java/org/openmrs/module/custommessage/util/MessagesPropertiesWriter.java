@@ -0,0 +1,90 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage.util;
+
+import java.io.PrintWriter;
+
+/**
+ * Writes entries of messages properties file one by one, escaping keys and values the way
+ * {@link java.util.Properties#store(java.io.Writer, String)} does, so they are read back unchanged
+ * by {@link MessagesPropertiesReader} and by {@link java.util.Properties#load(java.io.Reader)}.
+ * Characters outside of ASCII are written as they are, so the file has to be written in encoding
+ * it is read in. Like {@link PrintWriter}, it does not throw, errors are checked by the owner of
+ * the writer.
+ */
+public class MessagesPropertiesWriter {
+
+	private final PrintWriter writer;
+
+	/**
+	 * Creates new writer of entries to given writer. The writer is not closed by this class, so
+	 * entries can be written to zip file without closing the whole zip.
+	 *
+	 * @param writer the writer of properties file
+	 */
+	public MessagesPropertiesWriter(PrintWriter writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Writes single entry on its own line
+	 *
+	 * @param key the key of entry
+	 * @param value the value of entry
+	 * @should write entries read back unchanged by properties reader
+	 * @should write entries read back unchanged by java properties
+	 */
+	public void write(String key, String value) {
+		writer.write(escape(key, true) + " = " + escape(value, false) + System.getProperty("line.separator"));
+	}
+
+	/**
+	 * Escapes characters of given key or value which would be read as something else. Whitespace
+	 * separates key from value and it is skipped at the start of value, so it is escaped everywhere
+	 * in key and at the start of value.
+	 */
+	private static String escape(String s, boolean key) {
+		StringBuilder result = new StringBuilder(s.length() + 16);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '\t':
+					result.append("\\t");
+					break;
+				case '\n':
+					result.append("\\n");
+					break;
+				case '\r':
+					result.append("\\r");
+					break;
+				case '\f':
+					result.append("\\f");
+					break;
+				case '\\':
+				case '=':
+				case ':':
+				case '#':
+				case '!':
+					result.append('\\').append(c);
+					break;
+				default:
+					if (Character.isWhitespace(c) && (key || i == 0)) {
+						result.append('\\');
+					}
+					result.append(c);
+			}
+		}
+		return result.toString();
+	}
+}
@@ -41,6 +41,8 @@ public class AdministrationPageExtension extends AdministrationSectionExt {
 		Map<String, String> map = new LinkedHashMap<String, String>();
 		map.put("module/custommessage/index.form", "custommessage.manageMessages");
 		map.put("module/custommessage/export.form", "custommessage.exportMessages");
+		map.put("module/custommessage/import.form", "custommessage.importMessages");
+		map.put("module/custommessage/coverage.form", "custommessage.coverageMessages");
 		return map;
 	}
 	
@@ -1,38 +1,49 @@
 package org.openmrs.module.custommessage.web.controller;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.api.context.Context;
-import org.openmrs.messagesource.MutableMessageSource;
-import org.openmrs.messagesource.PresentationMessage;
-import org.openmrs.messagesource.PresentationMessageMap;
-import org.openmrs.module.custommessage.CustomMessage;
 import org.openmrs.module.custommessage.CustomMessageConstants;
 import org.openmrs.module.custommessage.CustomMessageSource;
 import org.openmrs.module.custommessage.MessagesLocation;
+import org.openmrs.module.custommessage.cache.MessageCodePage;
+import org.openmrs.module.custommessage.cache.MessageCoverage;
+import org.openmrs.module.custommessage.cache.MessageTable;
+import org.openmrs.module.custommessage.cache.MessagesSnapshot;
+import org.openmrs.module.custommessage.service.CustomMessageHandler;
+import org.openmrs.module.custommessage.service.CustomMessageImportResult;
 import org.openmrs.module.custommessage.service.CustomMessageService;
-import org.openmrs.module.custommessage.util.InMemoryZipStream;
+import org.openmrs.module.custommessage.util.LocationPrefixIndex;
+import org.openmrs.module.custommessage.util.MessagesPropertiesWriter;
 import org.openmrs.util.LocaleUtility;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.multipart.MultipartFile;
 
 @Controller
 public class CustomMessageController {
@@ -40,26 +51,7 @@ public class CustomMessageController {
 	@RequestMapping("/module/custommessage/index.form")
 	public void viewIndex(ModelMap model, @RequestParam(value = "missingInLocale", required = false) Locale missingInLocale,
 	        @RequestParam(value = "matchingText", required = false) String matchingText) throws Exception {
-		
-		MutableMessageSource mms = Context.getMessageSourceService().getActiveMessageSource();
-		CustomMessageSource cms = (CustomMessageSource) mms;
-		cms.refreshCache();
-		
-		List<String> codes = new ArrayList<String>();
-		Map<String, Map<Locale, PresentationMessage>> messagesByLocale = cms.getAllMessagesByCode();
-		if (missingInLocale == null && StringUtils.isBlank(matchingText)) {
-			codes.addAll(messagesByLocale.keySet());
-		} else {
-			for (String code : messagesByLocale.keySet()) {
-				Map<Locale, PresentationMessage> forCode = messagesByLocale.get(code);
-				boolean codeMatches = StringUtils.isBlank(matchingText) || code.contains(matchingText);
-				boolean localeMatches = missingInLocale == null || forCode.get(missingInLocale) == null;
-				if (codeMatches && localeMatches) {
-					codes.add(code);
-				}
-			}
-		}
-		model.addAttribute("codes", codes);
+		// codes are not put into the page, the table fetches them page by page from findCodes.form
 		model.addAttribute("missingInLocale", missingInLocale);
 		model.addAttribute("matchingText", matchingText);
 		
@@ -70,31 +62,154 @@ public class CustomMessageController {
 		model.addAttribute("supportedLocales", localeMap);
 	}
 	
-	@RequestMapping("/module/custommessage/getMessagesForCode.form")
-	public void getMessagesForCode(HttpServletResponse response, @RequestParam("code") String code) throws Exception {
+	/**
+	 * Serves page of message codes to the table of index page, following server-side processing
+	 * protocol of dataTables. Codes are searched in the current snapshot of messages, so neither
+	 * database nor the map of all messages is touched. Codes matching text are ranked by relevance.
+	 * The request counter is sent back, so the table drops responses that arrive out of order.
+	 */
+	@RequestMapping("/module/custommessage/findCodes.form")
+	public void findCodes(HttpServletResponse response,
+	        @RequestParam(value = "sEcho", required = false) Integer echo,
+	        @RequestParam(value = "iDisplayStart", required = false) Integer displayStart,
+	        @RequestParam(value = "iDisplayLength", required = false) Integer displayLength,
+	        @RequestParam(value = "iSortDir_0", required = false) String sortDirection,
+	        @RequestParam(value = "missingInLocale", required = false) Locale missingInLocale,
+	        @RequestParam(value = "matchingText", required = false) String matchingText) throws Exception {
 		response.setContentType("text/json");
 		response.setCharacterEncoding("UTF-8");
+		
+		CustomMessageSource cms = (CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource();
+		MessageCodePage page = MessageCodePage.find(cms.getCompleteSnapshot(), matchingText,
+		    missingInLocale, "desc".equals(sortDirection), displayStart != null ? Math.max(0, displayStart) : 0,
+		    displayLength != null ? displayLength : -1);
+		
+		List<String[]> rows = new ArrayList<String[]>(page.getCodes().size());
+		for (String code : page.getCodes()) {
+			rows.add(new String[] { code });
+		}
 		Map<String, Object> ret = new HashMap<String, Object>();
+		ret.put("sEcho", echo != null ? echo : 0);
+		ret.put("iTotalRecords", page.getTotalCount());
+		ret.put("iTotalDisplayRecords", page.getMatchingCount());
+		ret.put("aaData", rows);
 		
-		MutableMessageSource mms = Context.getMessageSourceService().getActiveMessageSource();
-		CustomMessageSource cms = (CustomMessageSource) mms;
+		response.getWriter().write(new ObjectMapper().writeValueAsString(ret));
+	}
+	
+	/**
+	 * Shows how many codes of every messages location have message in every locale. If location and
+	 * locale are given, the codes of that location missing in that locale are listed as well,
+	 * optionally only those which have message in compared locale.
+	 */
+	@RequestMapping("/module/custommessage/coverage.form")
+	public void viewCoverage(ModelMap model, @RequestParam(value = "location", required = false) String locationId,
+	        @RequestParam(value = "locale", required = false) Locale locale,
+	        @RequestParam(value = "comparedTo", required = false) Locale comparedTo) {
+		CustomMessageSource cms = (CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource();
+		MessagesSnapshot snapshot = cms.getCompleteSnapshot();
+		MessageTable table = snapshot.getTable();
+		MessageCoverage coverage = snapshot.getCoverage();
+		addLocalesAndLocations(model);
+		Map<Locale, Integer> totalCounts = new HashMap<Locale, Integer>();
+		for (Locale l : Context.getAdministrationService().getPresentationLocales()) {
+			totalCounts.put(l, coverage.getMessageCount(l, null));
+		}
+		model.addAttribute("codeCount", coverage.getCodeCount(null));
+		model.addAttribute("messageCounts", totalCounts);
+		model.addAttribute("lastRefreshTime", cms.getLastRefreshTime());
+		model.addAttribute("lastRefreshDuration", cms.getLastRefreshDuration());
+		model.addAttribute("rejectedCodeCount", cms.getRejectedCodeCount());
 		
-		Map<String, String> defaults = new HashMap<String, String>();
-		for (PresentationMessage pm : cms.getMutableParentSource().getPresentations()) {
-			if (code.equals(pm.getCode())) {
-				defaults.put(pm.getLocale().toString(), pm.getMessage());
+		Map<String, BitSet> codesByLocation = getCodesByLocation(table, coverage, new LocationPrefixIndex(Context
+		        .getService(CustomMessageService.class).getAvailableMessagesLocationsMap().keySet()));
+		Map<String, Integer> locationCodeCounts = new TreeMap<String, Integer>();
+		Map<String, Map<Locale, Integer>> locationMessageCounts = new HashMap<String, Map<Locale, Integer>>();
+		for (Map.Entry<String, BitSet> entry : codesByLocation.entrySet()) {
+			locationCodeCounts.put(entry.getKey(), entry.getValue().cardinality());
+			Map<Locale, Integer> counts = new HashMap<Locale, Integer>();
+			for (Locale l : totalCounts.keySet()) {
+				counts.put(l, coverage.getMessageCount(l, entry.getValue()));
 			}
+			locationMessageCounts.put(entry.getKey(), counts);
 		}
-		ret.put("defaults", defaults);
+		model.addAttribute("locationCodeCounts", locationCodeCounts);
+		model.addAttribute("locationMessageCounts", locationMessageCounts);
 		
+		if (locationId != null && locale != null && codesByLocation.containsKey(locationId)) {
+			BitSet missing = coverage.getMissingCodes(locale, comparedTo, codesByLocation.get(locationId));
+			List<String> missingCodes = new ArrayList<String>(missing.cardinality());
+			for (int id : table.getSortedCodeIds()) {
+				if (missing.get(id)) {
+					missingCodes.add(table.getCode(id));
+				}
+			}
+			model.addAttribute("missingCodes", missingCodes);
+			model.addAttribute("location", locationId);
+			model.addAttribute("locale", locale);
+			model.addAttribute("comparedTo", comparedTo);
+		}
+	}
+	
+	/**
+	 * Partitions codes having any message by location they belong to, in single pass over codes
+	 * 
+	 * @param table the table of messages
+	 * @param coverage the coverage of given table
+	 * @param locationIndex the index of available messages locations
+	 * @return the codes by location id, codes not belonging to any location are in core location
+	 */
+	private Map<String, BitSet> getCodesByLocation(MessageTable table, MessageCoverage coverage,
+	        LocationPrefixIndex locationIndex) {
+		Map<String, BitSet> codesByLocation = new HashMap<String, BitSet>();
+		for (int id = 0; id < table.getCodeCount(); id++) {
+			if (coverage.hasMessages(id)) {
+				String locationId = locationIndex.getLocationId(table.getCode(id));
+				if (locationId == null) {
+					locationId = CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_ID;
+				}
+				BitSet codes = codesByLocation.get(locationId);
+				if (codes == null) {
+					codes = new BitSet(table.getCodeCount());
+					codesByLocation.put(locationId, codes);
+				}
+				codes.set(id);
+			}
+		}
+		return codesByLocation;
+	}
+	
+	@RequestMapping("/module/custommessage/getMessagesForCode.form")
+	public void getMessagesForCode(HttpServletResponse response, @RequestParam("code") String code) throws Exception {
+		response.setContentType("text/json");
+		response.setCharacterEncoding("UTF-8");
+		Map<String, Object> ret = new HashMap<String, Object>();
+		
+		// snapshot keeps parent and custom messages apart, so each locale is single lookup by code
+		CustomMessageSource cms = (CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource();
+		MessagesSnapshot snapshot = cms.getCompleteSnapshot();
+		Map<String, String> defaults = new HashMap<String, String>();
 		Map<String, Map<String, String>> customs = new HashMap<String, Map<String, String>>();
-		for (CustomMessage cm : Context.getService(CustomMessageService.class).getCustomMessagesForCode(code)) {
-			Map<String, String> custom = new HashMap<String, String>();
-			custom.put("id", cm.getId().toString());
-			custom.put("message", cm.getMessage());
-			customs.put(cm.getLocale().toString(), custom);
+		Map<String, String> effective = new HashMap<String, String>();
+		for (Locale locale : snapshot.getTable().getLocales()) {
+			String defaultMessage = snapshot.getDefaultMessage(code, locale);
+			if (defaultMessage != null) {
+				defaults.put(locale.toString(), defaultMessage);
+			}
+			String customMessage = snapshot.getCustomMessage(code, locale);
+			if (customMessage != null) {
+				Map<String, String> custom = new HashMap<String, String>();
+				custom.put("message", customMessage);
+				customs.put(locale.toString(), custom);
+			}
+			String message = snapshot.getMessage(code, locale);
+			if (message != null) {
+				effective.put(locale.toString(), message);
+			}
 		}
+		ret.put("defaults", defaults);
 		ret.put("customs", customs);
+		ret.put("effective", effective);
 		
 		response.getWriter().write(new ObjectMapper().writeValueAsString(ret));
 	}
@@ -102,47 +217,65 @@ public class CustomMessageController {
 	@RequestMapping("/module/custommessage/saveMessagesForCode.form")
 	public void saveMessagesForCode(HttpServletRequest request, HttpServletResponse response,
 	        @RequestParam("code") String code) {
-		CustomMessageService cms = Context.getService(CustomMessageService.class);
-		boolean hasChanged = false;
+		// locales not present in the form are left as they are, blank text deletes the message
+		Map<Locale, String> messages = new HashMap<Locale, String>();
 		for (Locale l : Context.getAdministrationService().getPresentationLocales()) {
-			String id = request.getParameter("id" + l.toString());
 			String message = request.getParameter("message" + l.toString());
-			if (StringUtils.isNotBlank(id)) {
-				CustomMessage msg = cms.getCustomMessage(Integer.parseInt(id));
-				if (StringUtils.isNotBlank(message)) { // Update existing message
-					msg.setMessage(message);
-					cms.saveCustomMessage(msg);
-					hasChanged = true;
-				} else { // Delete existing message
-					cms.deleteCustomMessage(msg);
-					hasChanged = true;
-				}
-			} else {
-				if (StringUtils.isNotBlank(message)) { // Insert new message
-					CustomMessage msg = new CustomMessage();
-					msg.setCode(code);
-					msg.setLocale(l);
-					msg.setMessage(message);
-					msg.setMessageLocation(cms.resolveLocationForCode(code));
-					cms.saveCustomMessage(msg);
-					hasChanged = true;
-				}
+			if (message != null) {
+				messages.put(l, message);
 			}
 		}
-		if (hasChanged) {
-			((CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource()).refreshCache();
-		}
+		// the service applies the changes to the cache once they are committed
+		Context.getService(CustomMessageService.class).saveCustomMessagesForCode(code, messages);
 	}
 	
 	@RequestMapping(method = RequestMethod.GET, value = "/module/custommessage/export.form")
 	public void exportMessagePage(ModelMap model) {
-		// add map of supported locale to model to be used on export page 
+		addLocalesAndLocations(model);
+	}
+	
+	@RequestMapping(method = RequestMethod.GET, value = "/module/custommessage/import.form")
+	public void importMessagePage(ModelMap model) {
+		addLocalesAndLocations(model);
+	}
+	
+	@RequestMapping(method = RequestMethod.POST, value = "/module/custommessage/import.form")
+	public void importMessageSubmit(ModelMap model, @RequestParam("file") MultipartFile file,
+	        @RequestParam(value = "locale", required = false) String locale,
+	        @RequestParam(value = "location", required = false) String locationId) throws IOException {
+		CustomMessageService customMessageService = Context.getService(CustomMessageService.class);
+		CustomMessageImportResult result;
+		InputStream inputStream = file.getInputStream();
+		try {
+			// zip carries location and locale of each file in its layout, single file needs them passed in
+			if (String.valueOf(file.getOriginalFilename()).toLowerCase().endsWith(".zip")) {
+				result = customMessageService.importCustomMessages(new ZipInputStream(inputStream));
+			} else if (StringUtils.isNotBlank(locale) && StringUtils.isNotBlank(locationId)) {
+				result = customMessageService.importCustomMessages(new InputStreamReader(inputStream, "UTF-8"),
+				    LocaleUtility.fromSpecification(locale), locationId);
+			} else {
+				throw new IllegalArgumentException("Unable to import properties file without locale and location");
+			}
+		}
+		finally {
+			inputStream.close();
+		}
+		model.addAttribute("importResult", result);
+		addLocalesAndLocations(model);
+	}
+	
+	/**
+	 * Adds maps of supported locales and of messages locations to given model, to be used on export
+	 * and import pages
+	 * 
+	 * @param model the model to add maps to
+	 */
+	private void addLocalesAndLocations(ModelMap model) {
 		Map<String, Locale> localeMap = new TreeMap<String, Locale>();
 		for (Locale l : Context.getAdministrationService().getPresentationLocales()) {
 			localeMap.put(l.getDisplayName(), l);
 		}
 		model.addAttribute("supportedLocales", localeMap);
-		// add map of locations to model to be used on export page
 		model.addAttribute("messagesLocations", Context.getService(CustomMessageService.class)
 		        .getAvailableMessagesLocationsMap());
 	}
@@ -181,38 +314,17 @@ public class CustomMessageController {
 	private void exportSingleFileWithAllMessages(HttpServletResponse response, String locale, String locationId)
 	        throws IOException {
 		CustomMessageSource cms = (CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource();
-		cms.refreshCache();
-		PresentationMessageMap cachedMessages = cms.getCachedMessages().get(LocaleUtility.fromSpecification(locale));
-		if (cachedMessages != null) {
-			Map<String, PresentationMessage> messageMap = new TreeMap<String, PresentationMessage>(cachedMessages);
+		MessageTable table = cms.getCompleteSnapshot().getTable();
+		Locale messagesLocale = LocaleUtility.fromSpecification(locale);
+		if (table.hasLocale(messagesLocale)) {
 			Map<String, String> availableLocations = Context.getService(CustomMessageService.class)
 			        .getAvailableMessagesLocationsMap();
 			response.setContentType("text/plain");
+			response.setCharacterEncoding("UTF-8");
 			response.addHeader("Content-disposition",
 			    String.format("attachment; filename=%s_messages_%s.properties", locationId, locale));
-			for (String code : messageMap.keySet()) {
-				String prefix = StringUtils.substringBefore(code, ".");
-				// when passed in location is core
-				if (StringUtils.equals(locationId, CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_ID)) {
-					// if message code prefix is not listed as key of available messages 
-					// locations this means that this message is related to core location
-					if (!availableLocations.containsKey(prefix)) {
-						PresentationMessage pm = messageMap.get(code);
-						if (pm != null && StringUtils.isNotBlank(pm.getMessage())) {
-							response.getWriter().write(code + " = " + pm.getMessage() + System.getProperty("line.separator"));
-						}
-					}
-				} else {
-					// if message code prefix is equal to passed in location id
-					if (StringUtils.equals(locationId, prefix)) {
-						PresentationMessage pm = messageMap.get(code);
-						if (pm != null && StringUtils.isNotBlank(pm.getMessage())) {
-							response.getWriter().write(
-							    String.format("%s = %s%s", code, pm.getMessage(), System.getProperty("line.separator")));
-						}
-					}
-				}
-			}
+			writeAllMessages(response.getWriter(), table, messagesLocale, locationId, new LocationPrefixIndex(
+			        availableLocations.keySet()));
 		}
 	}
 	
@@ -228,22 +340,15 @@ public class CustomMessageController {
 	 */
 	private void exportSingleFileWithOnlyCustomizedMessages(HttpServletResponse response, String locale, String locationId)
 	        throws IOException {
-		MessagesLocation messagesLocation = Context.getService(CustomMessageService.class).getMessagesLocation(locationId);
+		CustomMessageService customMessageService = Context.getService(CustomMessageService.class);
+		MessagesLocation messagesLocation = customMessageService.getMessagesLocation(locationId);
 		if (messagesLocation != null) {
-			Collection<CustomMessage> customMessages = messagesLocation.getCustomMessages(LocaleUtility
-			        .fromSpecification(locale));
-			if (customMessages != null) {
-				response.setContentType("text/plain");
-				response.addHeader("Content-disposition",
-				    String.format("attachment; filename=%s_messages_%s.properties", locationId, locale));
-				for (CustomMessage customMessage : customMessages) {
-					if (StringUtils.isNotBlank(customMessage.getMessage())) {
-						response.getWriter().write(
-						    String.format("%s = %s%s", customMessage.getCode(), customMessage.getMessage(),
-						        System.getProperty("line.separator")));
-					}
-				}
-			}
+			response.setContentType("text/plain");
+			response.setCharacterEncoding("UTF-8");
+			response.addHeader("Content-disposition",
+			    String.format("attachment; filename=%s_messages_%s.properties", locationId, locale));
+			writeCustomizedMessages(response.getWriter(), customMessageService, LocaleUtility.fromSpecification(locale),
+			    locationId);
 		} else {
 			throw new IllegalArgumentException("Unable to export customized messages by unknown location");
 		}
@@ -261,53 +366,25 @@ public class CustomMessageController {
 	 */
 	private void exportZipWithAllMessages(HttpServletResponse response, String[] locales, String[] locationIds)
 	        throws IOException {
-		// prepare data model to be exported
-		List<LocationEntry> model = new ArrayList<CustomMessageController.LocationEntry>(locationIds.length);
-		CustomMessageService customMessageService = Context.getService(CustomMessageService.class);
-		Map<String, String> availableLocations = customMessageService.getAvailableMessagesLocationsMap();
-		for (int i = 0; i < locationIds.length; i++) {
-			LocationEntry locationEntry = new LocationEntry(locationIds[i]);
-			// create list of messages by locale for current location
-			List<MessagesByLanguage> messagesByLanguages = new ArrayList<CustomMessageController.MessagesByLanguage>();
-			for (int j = 0; j < locales.length; j++) {
-				MessagesByLanguage messagesByLanguage = new MessagesByLanguage(locales[j]);
-				CustomMessageSource cms = (CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource();
-				cms.refreshCache();
-				PresentationMessageMap cacheMessages = cms.getCachedMessages().get(LocaleUtility.fromSpecification(messagesByLanguage.getLanguage()));
-				if (cacheMessages != null) {
-					Map<String, PresentationMessage> messageMap = new TreeMap<String, PresentationMessage>(cacheMessages);
-					for (String code : messageMap.keySet()) {
-						String prefix = StringUtils.substringBefore(code, ".");
-						// when passed in location is core
-						if (StringUtils.equals(locationEntry.getCode(), CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_ID)) {
-							// if message code prefix is not listed as key of available messages 
-							// locations this means that this message is related to core location
-							if (!availableLocations.containsKey(prefix)) {
-								PresentationMessage pm = messageMap.get(code);
-								if (pm != null && StringUtils.isNotBlank(pm.getMessage())) {
-									messagesByLanguage.getKeyValuePairs().put(code, pm.getMessage());
-								}
-							}
-						} else {
-							// if message code prefix is equal to passed in location id
-							if (StringUtils.equals(locationEntry.getCode(), prefix)) {
-								PresentationMessage pm = messageMap.get(code);
-								if (pm != null && StringUtils.isNotBlank(pm.getMessage())) {
-									messagesByLanguage.getKeyValuePairs().put(code, pm.getMessage());
-								}
-							}
-						}
-					}
+		LocationPrefixIndex locationIndex = new LocationPrefixIndex(Context.getService(CustomMessageService.class)
+		        .getAvailableMessagesLocationsMap().keySet());
+		CustomMessageSource cms = (CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource();
+		// single snapshot for the whole export, so all files are consistent with each other
+		MessageTable table = cms.getCompleteSnapshot().getTable();
+		ZipOutputStream zip = startZipExport(response);
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(zip, "UTF-8"));
+		for (String locationId : locationIds) {
+			addZipFolder(zip, locationId);
+			for (String locale : locales) {
+				Locale messagesLocale = LocaleUtility.fromSpecification(locale);
+				zip.putNextEntry(new ZipEntry(String.format("%s/messages_%s.properties", locationId, locale)));
+				if (table.hasLocale(messagesLocale)) {
+					writeAllMessages(writer, table, messagesLocale, locationId, locationIndex);
 				}
-				messagesByLanguages.add(messagesByLanguage);
+				closeZipEntry(zip, writer);
 			}
-			// set list of messages by languages into location entry
-			locationEntry.setMessagesByLanguage(messagesByLanguages);
-			// add current location entry into list
-			model.add(locationEntry);
 		}
-		// export this model as zip file
-		exportModelToZip(response, model);
+		zip.finish();
 	}
 	
 	/**
@@ -322,184 +399,124 @@ public class CustomMessageController {
 	 */
 	private void exportZipWithOnlyCustomizedMessages(HttpServletResponse response, String[] locales, String[] locationIds)
 	        throws IOException {
-		// prepare data model to be exported
-		List<LocationEntry> model = new ArrayList<CustomMessageController.LocationEntry>(locationIds.length);
-		for (int i = 0; i < locationIds.length; i++) {
-			MessagesLocation messagesLocation = Context.getService(CustomMessageService.class).getMessagesLocation(
-				locationIds[i]);
-			if (messagesLocation != null) {
-				LocationEntry locationEntry = new LocationEntry(locationIds[i]);
-				// create list of messages by locale for current location
-				List<MessagesByLanguage> messagesByLanguages = new ArrayList<CustomMessageController.MessagesByLanguage>();
-				for (int j = 0; j < locales.length; j++) {
-					MessagesByLanguage messagesByLanguage = new MessagesByLanguage(locales[j]);
-					Collection<CustomMessage> customMessages = messagesLocation.getCustomMessages(LocaleUtility
-				        .fromSpecification(messagesByLanguage.getLanguage()));
-					for (CustomMessage customMessage : customMessages) {
-						if (StringUtils.isNotBlank(customMessage.getMessage())) {
-							messagesByLanguage.getKeyValuePairs().put(customMessage.getCode(), customMessage.getMessage());
-						}
-					}
-					messagesByLanguages.add(messagesByLanguage);
-				}
-				// set list of messages by languages into location entry
-				locationEntry.setMessagesByLanguage(messagesByLanguages);
-				// add current location entry into list
-				model.add(locationEntry);
-			} else {
+		CustomMessageService customMessageService = Context.getService(CustomMessageService.class);
+		// check locations before anything is sent, as the response can not be changed afterwards
+		for (String locationId : locationIds) {
+			if (customMessageService.getMessagesLocation(locationId) == null) {
 				throw new IllegalArgumentException("Unable to export customized messages by unknown location");
 			}
 		}
-		// export this model as zip file
-		exportModelToZip(response, model);
+		ZipOutputStream zip = startZipExport(response);
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(zip, "UTF-8"));
+		for (String locationId : locationIds) {
+			addZipFolder(zip, locationId);
+			for (String locale : locales) {
+				zip.putNextEntry(new ZipEntry(String.format("%s/messages_%s.properties", locationId, locale)));
+				writeCustomizedMessages(writer, customMessageService, LocaleUtility.fromSpecification(locale), locationId);
+				closeZipEntry(zip, writer);
+			}
+		}
+		zip.finish();
 	}
 	
 	/**
-	 * Exports given messages model to ZIP file with each location-specific property file under a
-	 * folder with location ID as name for each specified locale.
+	 * Starts sending ZIP file with given response. Entries are written straight to the output
+	 * stream of response, and as its length is not known in advance, it is sent in chunks.
 	 * 
 	 * @param response the response object to be used for exporting zip file with
-	 * @param model the model to be exported
+	 * @return the zip output stream writing to the response
 	 * @throws IOException if any I/O related error occurs
 	 */
-	private void exportModelToZip(HttpServletResponse response, List<LocationEntry> model) throws IOException {
-		InMemoryZipStream zipStream = new InMemoryZipStream();
-		for (LocationEntry locationEntry : model) {
-			// create zip entry for each location id
-			zipStream.enterFolder(locationEntry.getCode());
-			// write properties files for each language
-			for (MessagesByLanguage languageEntry : locationEntry.getMessagesByLanguage()) {
-				// prepare bytes data to be added to zip stream
-				StringBuilder messagesData = new StringBuilder();
-				for (Map.Entry<String, String> messageEntry : languageEntry.getKeyValuePairs().entrySet()) {
-					messagesData.append(String.format("%s = %s%s", messageEntry.getKey(), messageEntry.getValue(),
-					    System.getProperty("line.separator")));
-				}
-				// write bytes of each messages property file for corresponding locale
-				zipStream.add(
-				    String.format("%s/messages_%s.properties", locationEntry.getCode(), languageEntry.getLanguage()),
-				    messagesData.toString().getBytes());
-			}
-			// close folder for current location id
-			zipStream.closeFolder();
-		}
-		// do not forget to close zip stream to avoid memory leak
-		zipStream.close();
-		// send the response back to the user / browser. The content for zip file type is "application/zip". 
-		// Also set the content disposition as attachment for the browser to show a dialog that will let user 
-		// choose what action will he do to the sent content.
-		ServletOutputStream sos = response.getOutputStream();
+	private ZipOutputStream startZipExport(HttpServletResponse response) throws IOException {
+		// The content for zip file type is "application/zip". Also set the content disposition as attachment 
+		// for the browser to show a dialog that will let user choose what action will he do to the sent content.
 		response.setContentType("application/zip");
 		response.addHeader(
 		    "Content-disposition",
 		    String.format("attachment; filename=messages-%s.zip",
 		        new SimpleDateFormat("yyyy-MM-dd_hh:mm").format(new Date())));
-		sos.write(zipStream.toByteArray());
-		sos.flush();
+		return new ZipOutputStream(response.getOutputStream());
 	}
 	
 	/**
-	 * Inner class to be used for exporting complex model of messages
+	 * Adds entry of folder with given name into zip file
+	 * 
+	 * @param zip the zip output stream to add folder to
+	 * @param folderName the name of folder
+	 * @throws IOException if any I/O related error occurs
 	 */
-	class LocationEntry {
-		
-		/** The code of location entry to be used as folder name inside exported zip messages */
-		String code;
-		
-		/** List of message key/value pairs by language */
-		List<MessagesByLanguage> messagesByLanguage;
-		
-		/**
-		 * Creates new location entry using given fields
-		 * @param code the string to be used as code of new location entry
-		 */
-        public LocationEntry(String code) {
-	        this.code = code;
-        }
-		
-		/**
-		 * @return the code
-		 */
-		public String getCode() {
-			return code;
-		}
-		
-		/**
-		 * @param code the code to set
-		 */
-		public void setCode(String code) {
-			this.code = code;
+	private void addZipFolder(ZipOutputStream zip, String folderName) throws IOException {
+		zip.putNextEntry(new ZipEntry(folderName + "/"));
+		zip.closeEntry();
+	}
+	
+	/**
+	 * Flushes messages written into current zip entry and closes it
+	 * 
+	 * @param zip the zip output stream to close entry of
+	 * @param writer the writer messages have been written with
+	 * @throws IOException if any I/O related error occurs, e.g. when client has gone away
+	 */
+	private void closeZipEntry(ZipOutputStream zip, PrintWriter writer) throws IOException {
+		// print writer does not throw, so failure to send the rest of export would go unnoticed
+		if (writer.checkError()) {
+			throw new IOException("Unable to write exported messages");
 		}
-		
-		/**
-		 * @return the messagesByLanguage
-		 */
-		public List<MessagesByLanguage> getMessagesByLanguage() {
-			if (messagesByLanguage == null) {
-				messagesByLanguage = new ArrayList<CustomMessageController.MessagesByLanguage>();
+		zip.closeEntry();
+	}
+	
+	/**
+	 * Writes both customized and default messages of given location in given locale, one per line
+	 * in order of their codes. Only codes sharing prefix with given location are visited, using
+	 * partition of codes by prefix kept by the table.
+	 * 
+	 * @param writer the writer to write messages with
+	 * @param table the table of messages to write messages from
+	 * @param locale the locale of messages to be written
+	 * @param locationId the location id of messages (i.e. name of project from where messages come)
+	 * @param locationIndex the index of ids of all available locations
+	 */
+	private void writeAllMessages(PrintWriter writer, MessageTable table, Locale locale, String locationId,
+	        LocationPrefixIndex locationIndex) {
+		// codes of location start with the first part of its id, while core codes may start with anything
+		int[] ids = StringUtils.equals(locationId, CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_ID) ? table
+		        .getSortedCodeIds() : table.getSortedCodeIds(Collections.singleton(StringUtils.substringBefore(locationId,
+		    ".")));
+		MessagesPropertiesWriter properties = new MessagesPropertiesWriter(writer);
+		for (int id : ids) {
+			String code = table.getCode(id);
+			// code belongs to location with the longest id it starts with, or to core if there is none
+			String codeLocationId = locationIndex.getLocationId(code);
+			if (StringUtils.equals(locationId, codeLocationId != null ? codeLocationId
+			        : CustomMessageConstants.CUSTOM_MESSAGES_LOCATION_DEFAULT_ID)) {
+				String message = table.getMessage(id, locale);
+				if (StringUtils.isNotBlank(message)) {
+					properties.write(code, message);
+				}
 			}
-			return messagesByLanguage;
-		}
-		
-		/**
-		 * @param messagesByLanguage the messagesByLanguage to set
-		 */
-		public void setMessagesByLanguage(List<MessagesByLanguage> messagesByLanguage) {
-			this.messagesByLanguage = messagesByLanguage;
 		}
-		
 	}
 	
 	/**
-	 * Represents key/value pair of messages for certain locale
+	 * Writes customized messages of given location in given locale, one per line as they are read,
+	 * without loading them as entities
+	 * 
+	 * @param writer the writer to write messages with
+	 * @param customMessageService the service to read custom messages with
+	 * @param locale the locale of messages to be written
+	 * @param locationId the identifier of location of messages to be written
 	 */
-	class MessagesByLanguage {
-		
-		/** The locale of messages aggregated by this class */
-		String language;
-		
-		/** Messages key value pairs for locale set in this class field */
-		Map<String, String> keyValuePairs;
-		
-		/**
-		 * Creates new instance of this class with given language
-		 * @param language the language to be used as value for corresponding class field
-		 */
-        public MessagesByLanguage(String language) {
-        	this.language = language;
-        }
-		
-		/**
-		 * @return the language
-		 */
-		public String getLanguage() {
-			return language;
-		}
-		
-		/**
-		 * @param language the language to set
-		 */
-		public void setLanguage(String language) {
-			this.language = language;
-		}
-		
-		/**
-		 * @return the keyValuePair
-		 */
-		public Map<String, String> getKeyValuePairs() {
-			if (keyValuePairs == null) {
-				keyValuePairs = new HashMap<String, String>();
+	private void writeCustomizedMessages(PrintWriter writer, CustomMessageService customMessageService,
+	        Locale locale, String locationId) {
+		final MessagesPropertiesWriter properties = new MessagesPropertiesWriter(writer);
+		customMessageService.streamCustomMessages(locationId, locale, new CustomMessageHandler() {
+			
+			public void handle(String code, Locale locale, String message, String locationId) {
+				if (StringUtils.isNotBlank(message)) {
+					properties.write(code, message);
+				}
 			}
-			return keyValuePairs;
-		}
-		
-		/**
-		 * @param keyValuePair the keyValuePair to set
-		 */
-		public void setKeyValuePairs(Map<String, String> keyValuePairs) {
-			this.keyValuePairs = keyValuePairs;
-		}
-		
+		});
 	}
 	
 }
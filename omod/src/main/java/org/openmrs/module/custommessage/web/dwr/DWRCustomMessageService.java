@@ -17,9 +17,7 @@ import java.util.Locale;
 
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.custommessage.CustomMessage;
 import org.openmrs.module.custommessage.CustomMessageConstants;
-import org.openmrs.module.custommessage.CustomMessageSource;
 import org.openmrs.module.custommessage.service.CustomMessageService;
 import org.openmrs.module.custommessage.util.CustomMessageUtil;
 import org.openmrs.util.LocaleUtility;
@@ -68,35 +66,13 @@ public class DWRCustomMessageService {
 		
 		CustomMessageService customMessageService = Context.getService(CustomMessageService.class);
 		
-		// treat given key and messageLocale as search parameters for custom message lookup
-		CustomMessage customMessage = customMessageService.getCustomMessagesForCodeAndLocale(code, messageLocale);
-		
-		// if custom message for given parameters does not exists, create it, otherwise update existing
-		if (customMessage != null) {
-			customMessage.setMessage(message);
-		} else {
-			customMessage = new CustomMessage();
-			customMessage.setCode(code);
-			customMessage.setLocale(messageLocale);
-			customMessage.setMessage(message);
-			customMessage.setMessageLocation(customMessageService.resolveLocationForCode(code));
-		}
-		
-		// if passed in text is not blank, save message
-		boolean hasChanged = Boolean.TRUE;
+		// if passed in text is not blank, save message, otherwise remove it if it exists for given locale and code,
+		// message for given key and messageLocale is updated in place or created, without looking it up first,
+		// the service applies the change to the cache used by message source once it is committed
 		if (StringUtils.isNotBlank(message)) {
-			customMessageService.saveCustomMessage(customMessage);
-		} else if (customMessage.getId() != null) {
-			// otherwise, if message exists for given locale and code, remove it
-			customMessageService.deleteCustomMessage(customMessage);
+			customMessageService.saveCustomMessage(code, messageLocale, message);
 		} else {
-			hasChanged = Boolean.FALSE;
-		}
-		
-		// if customization changed, refresh the cache used by message source
-		if (hasChanged) {
-			// have to do it as long as we need refresh of custom messages cache after each save operation
-			((CustomMessageSource) Context.getMessageSourceService().getActiveMessageSource()).refreshCache();
+			customMessageService.deleteCustomMessage(code, messageLocale);
 		}
 		
 		// return the text of the message that has been saved,
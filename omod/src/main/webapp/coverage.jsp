@@ -0,0 +1,88 @@
+<%@ include file="/WEB-INF/template/include.jsp" %>
+<openmrs:require privilege="Manage Custom Messages" otherwise="/login.htm" redirect="/module/custommessage/coverage.form" />
+<%@ include file="/WEB-INF/template/header.jsp" %>
+<%@ include file="localHeader.jsp" %>
+
+<b class="boxHeader"><openmrs:message code="custommessage.coverage"/></b>
+<div class="box">
+	<table cellpadding="4">
+		<tr>
+			<th><openmrs:message code="custommessage.coverageLocation"/></th>
+			<th><openmrs:message code="custommessage.coverageCodes"/></th>
+			<c:forEach items="${supportedLocales}" var="localeEntry">
+				<th>${localeEntry.key}</th>
+			</c:forEach>
+		</tr>
+		<c:forEach items="${locationCodeCounts}" var="locationEntry">
+			<tr>
+				<td>
+					<c:out value="${not empty messagesLocations[locationEntry.key] ? messagesLocations[locationEntry.key] : locationEntry.key}"/>
+				</td>
+				<td>${locationEntry.value}</td>
+				<c:forEach items="${supportedLocales}" var="localeEntry">
+					<c:set var="messageCount" value="${locationMessageCounts[locationEntry.key][localeEntry.value]}"/>
+					<td>
+						<a href="coverage.form?location=${locationEntry.key}&locale=${localeEntry.value}">
+							${messageCount} (<fmt:formatNumber value="${messageCount / locationEntry.value}" type="percent"/>)
+						</a>
+					</td>
+				</c:forEach>
+			</tr>
+		</c:forEach>
+		<tr>
+			<th><openmrs:message code="custommessage.coverageTotal"/></th>
+			<th>${codeCount}</th>
+			<c:forEach items="${supportedLocales}" var="localeEntry">
+				<th>
+					${messageCounts[localeEntry.value]}
+					<c:if test="${codeCount > 0}">(<fmt:formatNumber value="${messageCounts[localeEntry.value] / codeCount}" type="percent"/>)</c:if>
+				</th>
+			</c:forEach>
+		</tr>
+	</table>
+</div>
+
+<br/>
+<b class="boxHeader"><openmrs:message code="custommessage.cacheStatus"/></b>
+<div class="box">
+	<table cellpadding="4">
+		<tr>
+			<th align="left"><openmrs:message code="custommessage.cacheLastRefreshTime"/></th>
+			<td><c:if test="${not empty lastRefreshTime}"><fmt:formatDate value="${lastRefreshTime}" type="both"/></c:if></td>
+		</tr>
+		<tr>
+			<th align="left"><openmrs:message code="custommessage.cacheLastRefreshDuration"/></th>
+			<td><c:if test="${lastRefreshDuration >= 0}">${lastRefreshDuration} ms</c:if></td>
+		</tr>
+		<tr>
+			<th align="left"><openmrs:message code="custommessage.cacheRejectedCodes"/></th>
+			<td>${rejectedCodeCount}</td>
+		</tr>
+	</table>
+</div>
+
+<c:if test="${not empty location}">
+	<br/>
+	<b class="boxHeader">
+		<openmrs:message code="custommessage.missingInLocale"/>: ${locale.displayName}
+		(<c:out value="${not empty messagesLocations[location] ? messagesLocations[location] : location}"/>)
+	</b>
+	<div class="box">
+		<form method="get">
+			<input type="hidden" name="location" value="<c:out value="${location}"/>"/>
+			<input type="hidden" name="locale" value="${locale}"/>
+			<openmrs:message code="custommessage.coverageComparedTo"/>
+			<select name="comparedTo" onchange="this.form.submit()">
+				<option value=""><openmrs:message code="custommessage.coverageAnyLocale"/></option>
+				<c:forEach items="${supportedLocales}" var="localeEntry">
+					<option value="${localeEntry.value}"<c:if test="${localeEntry.value == comparedTo}"> selected</c:if>>${localeEntry.key}</option>
+				</c:forEach>
+			</select>
+		</form>
+		<c:forEach items="${missingCodes}" var="code">
+			<c:out value="${code}"/><br/>
+		</c:forEach>
+	</div>
+</c:if>
+
+<%@ include file="/WEB-INF/template/footer.jsp" %>
@@ -0,0 +1,66 @@
+<%@ include file="/WEB-INF/template/include.jsp" %>
+<openmrs:require privilege="Manage Custom Messages" otherwise="/login.htm" redirect="/module/custommessage/import.form" />
+<%@ include file="/WEB-INF/template/header.jsp" %>
+<%@ include file="localHeader.jsp" %>
+
+<script type="text/javascript">
+	
+	// locale and location are only needed for single properties file, zip contains them in its layout
+	function validateImportForm() {
+		var fileName = jQuery("input[name='file']").val();
+		if (!fileName) {
+			alert('<openmrs:message code="custommessage.selectFileToImport"/>');
+			return false;
+		}
+		if (!/\.zip$/i.test(fileName) && (!jQuery("select[name='locale']").val() || !jQuery("select[name='location']").val())) {
+			alert('<openmrs:message code="custommessage.selectLocaleAndLocationToImport"/>');
+			return false;
+		}
+		return true;
+	}
+</script>
+
+<c:if test="${not empty importResult}">
+	<div id="openmrs_msg">
+		<openmrs:message code="custommessage.importResult" arguments="${importResult.total},${importResult.created},${importResult.updated},${importResult.unchanged},${importResult.skipped}"/>
+	</div>
+</c:if>
+
+<form method="post" enctype="multipart/form-data" onsubmit="return validateImportForm()">
+	<table>
+		<tr>
+			<td>1.&nbsp;<openmrs:message code="custommessage.chooseFileToImport"/>:</td>
+			<td><input type="file" name="file" accept=".properties,.zip" /></td>
+		</tr>
+		<tr>
+			<td colspan="2"><i><openmrs:message code="custommessage.importPropertiesFileHint"/></i></td>
+		</tr>
+		<tr>
+			<td>2.&nbsp;<openmrs:message code="custommessage.chooseLocaleToImport"/>:</td>
+			<td>
+				<select name="locale">
+					<option value=""></option>
+					<c:forEach items="${supportedLocales}" var="localeEntry">
+						<option value="${localeEntry.value}">${localeEntry.key}</option>
+					</c:forEach>
+				</select>
+			</td>
+		</tr>
+		<tr>
+			<td>3.&nbsp;<openmrs:message code="custommessage.chooseLocationToImport"/>:</td>
+			<td>
+				<select name="location">
+					<option value=""></option>
+					<c:forEach items="${messagesLocations}" var="locationEntry">
+						<option value="${locationEntry.key}">${locationEntry.value}</option>
+					</c:forEach>
+				</select>
+			</td>
+		</tr>
+		<tr>
+			<td colspan="2"><input type="submit" value="<openmrs:message code="custommessage.import"/>"/></td>
+		</tr>
+	</table>
+</form>
+
+<%@ include file="/WEB-INF/template/footer.jsp" %>
\ No newline at end of file
@@ -19,15 +19,35 @@
 
 <script type="text/javascript">
 	jQuery(document).ready(function() {
-		jQuery('#codeList').dataTable({
+		var codeList = jQuery('#codeList').dataTable({
 		    "bPaginate": true,
 		    "iDisplayLength": 20,
 		    "bLengthChange": false,
-		    "bFilter": true,
-		    "bSort": false,
+		    "bFilter": false,
+		    "bSort": true,
 		    "bInfo": true,
 		    "bAutoWidth": true,
-		    "bSortable": false
+		    "bProcessing": true,
+		    "bServerSide": true,
+		    "sAjaxSource": '${pageContext.request.contextPath}/module/custommessage/findCodes.form',
+		    "fnServerData": function(source, data, callback) {
+		    	data.push({ "name": "missingInLocale", "value": jQuery("#searchForm select[name=missingInLocale]").val() });
+		    	data.push({ "name": "matchingText", "value": jQuery("#searchForm input[name=matchingText]").val() });
+		    	jQuery.getJSON(source, data, callback);
+		    },
+		    "fnRowCallback": function(row, rowData) {
+		    	var code = rowData[0];
+		    	jQuery('td:eq(0)', row).text(code).addClass('codeRow').css('cursor', 'pointer').click(function() {
+		    		viewTranslation(this, code);
+		    	});
+		    	return row;
+		    }
+		});
+		
+		jQuery("#searchForm").submit(function(event) {
+			event.preventDefault();
+			// redrawing sorted table starts from the first page again
+			codeList.fnDraw();
 		});
 		
 		jQuery("#editButton").click(function(event) {
@@ -38,20 +58,18 @@
 		});
 		
 		jQuery("#cancelButton").click(function(event) {
-			viewTranslation(null, jQuery("#selectedCode").html());
+			viewTranslation(null, jQuery("#selectedCode").text());
 		});
 		
 		jQuery("#saveButton").click(function(event) {
 			var url = '${pageContext.request.contextPath}/module/custommessage/saveMessagesForCode.form';
-			url += '?code=' + jQuery("#selectedCode").html();
+			// sent as form data, which jQuery encodes, so messages may contain any character
+			var params = { "code": jQuery("#selectedCode").text() };
 			<c:forEach items="${supportedLocales}" var="localeEntry">
-				url += "&id${localeEntry.value}=";
-				url += jQuery("#customId${localeEntry.value}").val();
-				url += "&message${localeEntry.value}=";
-				url += jQuery("#customMessage${localeEntry.value}").val();
+				params["message${localeEntry.value}"] = jQuery("#customMessage${localeEntry.value}").val();
 			</c:forEach>
-			jQuery.post(url, function(data) {
-				viewTranslation(null, jQuery("#selectedCode").html());
+			jQuery.post(url, params, function(data) {
+				viewTranslation(null, jQuery("#selectedCode").text());
 			});
 		});
 	});
@@ -66,14 +84,13 @@
 		jQuery("#cancelButton").hide();
 		jQuery("#editButton").show();
 		jQuery("#codeSelectedSection").show();
-		jQuery("#selectedCode").html(code);
+		jQuery("#selectedCode").text(code);
 		jQuery(".customMessageInput").attr('disabled', 'disabled').css('color', 'blue');
-		$.getJSON('${pageContext.request.contextPath}/module/custommessage/getMessagesForCode.form?code=' + code, function(data) {
+		$.getJSON('${pageContext.request.contextPath}/module/custommessage/getMessagesForCode.form?code=' + encodeURIComponent(code), function(data) {
 			<c:forEach items="${supportedLocales}" var="localeEntry">
 				var defaultVal = data['defaults']['${localeEntry.value}'];
 				jQuery("#defaultMessage${localeEntry.value}").html(defaultVal == null ? '' : defaultVal);
 				var customVal = data['customs']['${localeEntry.value}'];
-				jQuery("#customId${localeEntry.value}").val(customVal == null ? '' : customVal.id);
 				jQuery("#customMessage${localeEntry.value}").val(customVal == null ? '' : customVal.message);
 				jQuery("#customMessageDisplay${localeEntry.value}").val(customVal == null ? '' : customVal.message);
 			</c:forEach>
@@ -92,7 +109,7 @@
 		</c:forEach>
 	</select>
 	&nbsp;&nbsp;
-	<spring:message code="custommessage.containingText"/>: <input type="text" name="matchingText" size="50" value="${matchingText}"/>
+	<spring:message code="custommessage.containingText"/>: <input type="text" name="matchingText" size="50" value="<c:out value="${matchingText}"/>"/>
 	<input type="submit" value="<spring:message code="general.submit"/>"/>
 </form>
 <hr/>
@@ -101,11 +118,7 @@
 		<td style="width:25%;" valign="top">
 			<table id="codeList" style="border:1px solid #8FABC7; width:100%;">
 				<thead><tr><th style="background-color:#8FABC7; color:white;"><spring:message code="custommessage.code"/></th></tr></thead>
-				<tbody>
-					<c:forEach items="${codes}" var="code">
-						<tr><td class="codeRow" style="cursor:pointer;" onclick="javascript:viewTranslation(this, '${code}');">${code}</td></tr>
-					</c:forEach>
-				</tbody>
+				<tbody></tbody>
 			</table>
 		</td>
 		<td style="width:75%; padding-left:25px; padding-top:25px;" valign="top">
@@ -125,7 +138,6 @@
 							<tr>
 								<td valign="top" style="white-space:nowrap;"><spring:message code="custommessage.customValue"/>:</td>
 								<td valign="top" style="width:100%; padding-bottom:20px;">
-									<input type="hidden" id="customId${localeEntry.value}" value=""/>
 									<textarea class="customMessageInput" id="customMessage${localeEntry.value}" rows="2" style="width:100%;"></textarea>
 								</td>
 							</tr>
@@ -15,14 +15,29 @@ package org.openmrs.module.custommessage;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.api.context.Context;
+import org.openmrs.messagesource.PresentationMessage;
+import org.openmrs.messagesource.PresentationMessageMap;
 import org.openmrs.module.Module;
 import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.custommessage.service.CustomMessageHandler;
+import org.openmrs.module.custommessage.service.CustomMessageImportResult;
 import org.openmrs.module.custommessage.service.CustomMessageService;
 import org.openmrs.module.custommessage.util.CustomMessageUtil;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
@@ -155,6 +170,26 @@ public class CustomMessageServiceTest extends BaseModuleContextSensitiveTest {
 		assertEquals(beforeSize + 1, customMessageService.getAllCustomMessages().size());
 	}
 	
+	/**
+	 * @see CustomMessageService#saveCustomMessage(CustomMessage)
+	 */
+	@Test
+	@Verifies(value = "should add new custom message to messages of its location", method = "saveCustomMessage(CustomMessage)")
+	public void saveCustomMessage_shouldAddNewCustomMessageToMessagesOfItsLocation() {
+		MessagesLocation location = customMessageService.getMessagesLocation("test");
+		// load the collection first, so it is cached before the message is saved
+		assertTrue(location.getCustomMessages().isEmpty());
+		CustomMessage customMessage = new CustomMessage();
+		customMessage.setCode("new.code");
+		customMessage.setLocale(Locale.ENGLISH);
+		customMessage.setMessage("test message");
+		customMessage.setMessageLocation(location);
+		customMessageService.saveCustomMessage(customMessage);
+		Context.flushSession();
+		Context.clearSession();
+		assertEquals(1, customMessageService.getMessagesLocation("test").getCustomMessages().size());
+	}
+	
 	/**
 	 * @see CustomMessageService#saveCustomMessage(CustomMessage)
 	 */
@@ -194,6 +229,43 @@ public class CustomMessageServiceTest extends BaseModuleContextSensitiveTest {
 		assertEquals(beforeSize - 1, customMessageService.getAllCustomMessages().size());
 	}
 	
+	/**
+	 * @see CustomMessageService#saveCustomMessages(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should save all given custom messages", method = "saveCustomMessages(Collection)")
+	public void saveCustomMessages_shouldSaveAllGivenCustomMessages() {
+		int beforeSize = customMessageService.getAllCustomMessages().size();
+		customMessageService.saveCustomMessages(newCustomMessages(120));
+		Context.clearSession();
+		assertEquals(beforeSize + 120, customMessageService.getAllCustomMessages().size());
+		assertEquals("message 119", customMessageService.getCustomMessagesForCodeAndLocale("new.code.119", Locale.GERMAN)
+		        .getMessage());
+	}
+	
+	/**
+	 * @see CustomMessageService#saveCustomMessages(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should increase cache version only once", method = "saveCustomMessages(Collection)")
+	public void saveCustomMessages_shouldIncreaseCacheVersionOnlyOnce() {
+		long version = customMessageService.getCacheVersion();
+		customMessageService.saveCustomMessages(newCustomMessages(3));
+		assertEquals(version + 1, customMessageService.getCacheVersion());
+	}
+	
+	/**
+	 * @see CustomMessageService#deleteCustomMessages(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should delete all given custom messages", method = "deleteCustomMessages(Collection)")
+	public void deleteCustomMessages_shouldDeleteAllGivenCustomMessages() {
+		List<CustomMessage> customMessages = customMessageService.getAllCustomMessages();
+		customMessageService.deleteCustomMessages(customMessages);
+		Context.clearSession();
+		assertTrue(customMessageService.getAllCustomMessages().isEmpty());
+	}
+	
 	/**
 	 * @see CustomMessageUtil#resolveLocationForCode(String)
 	 */
@@ -371,4 +443,350 @@ public class CustomMessageServiceTest extends BaseModuleContextSensitiveTest {
 		assertTrue(availableLocations.containsKey(mockModuleId));
 	}
 	
+	/**
+	 * @see CustomMessageService#getAvailableMessagesLocationsMap()
+	 */
+	@Test
+	@Verifies(value = "should return the same map until messages locations change", method = "getAvailableMessagesLocationsMap()")
+	public void getAvailableMessagesLocationsMap_shouldReturnTheSameMapUntilMessagesLocationsChange() {
+		Map<String, String> availableLocations = customMessageService.getAvailableMessagesLocationsMap();
+		assertSame(availableLocations, customMessageService.getAvailableMessagesLocationsMap());
+	}
+	
+	/**
+	 * @see CustomMessageService#getAvailableMessagesLocationsMap()
+	 */
+	@Test
+	@Verifies(value = "should include messages location saved after map was built", method = "getAvailableMessagesLocationsMap()")
+	public void getAvailableMessagesLocationsMap_shouldIncludeMessagesLocationSavedAfterMapWasBuilt() {
+		assertFalse(customMessageService.getAvailableMessagesLocationsMap().containsKey("newlocation"));
+		customMessageService.saveMessagesLocation(new MessagesLocation("newlocation", "New location"));
+		assertEquals("New location", customMessageService.getAvailableMessagesLocationsMap().get("newlocation"));
+	}
+	
+	/**
+	 * @see CustomMessageService#getAvailableMessagesLocationsMap()
+	 */
+	@Test
+	@Verifies(value = "should not include messages location deleted after map was built", method = "getAvailableMessagesLocationsMap()")
+	public void getAvailableMessagesLocationsMap_shouldNotIncludeMessagesLocationDeletedAfterMapWasBuilt() {
+		assertTrue(customMessageService.getAvailableMessagesLocationsMap().containsKey("test"));
+		customMessageService.deleteMessagesLocation(customMessageService.getMessagesLocation("test"));
+		assertFalse(customMessageService.getAvailableMessagesLocationsMap().containsKey("test"));
+	}
+	
+	/**
+	 * @see CustomMessageService#startedModulesChanged()
+	 */
+	@Test
+	@Verifies(value = "should build map of available messages locations again", method = "startedModulesChanged()")
+	public void startedModulesChanged_shouldBuildMapOfAvailableMessagesLocationsAgain() {
+		Map<String, String> availableLocations = customMessageService.getAvailableMessagesLocationsMap();
+		customMessageService.startedModulesChanged();
+		Map<String, String> rebuiltLocations = customMessageService.getAvailableMessagesLocationsMap();
+		assertNotSame(availableLocations, rebuiltLocations);
+		assertEquals(availableLocations, rebuiltLocations);
+	}
+	
+	/**
+	 * @see CustomMessageService#getCacheVersion()
+	 */
+	@Test
+	@Verifies(value = "should increase with every save and delete of custom message", method = "getCacheVersion()")
+	public void getCacheVersion_shouldIncreaseWithEverySaveAndDeleteOfCustomMessage() {
+		long version = customMessageService.getCacheVersion();
+		CustomMessage customMessage = customMessageService.getCustomMessage(1);
+		customMessage.setMessage("test message");
+		customMessageService.saveCustomMessage(customMessage);
+		assertEquals(version + 1, customMessageService.getCacheVersion());
+		customMessageService.deleteCustomMessage(customMessage);
+		assertEquals(version + 2, customMessageService.getCacheVersion());
+	}
+	
+	/**
+	 * @see CustomMessageService#getPresentationMessagesForLocale(Locale)
+	 */
+	@Test
+	@Verifies(value = "should return only custom messages in given locale", method = "getPresentationMessagesForLocale(Locale)")
+	public void getPresentationMessagesForLocale_shouldReturnOnlyCustomMessagesInGivenLocale() {
+		PresentationMessageMap messages = customMessageService.getPresentationMessagesForLocale(Locale.FRENCH);
+		assertEquals(3, messages.size());
+		assertEquals("Message fr 1", messages.get("test.code").getMessage());
+		for (PresentationMessage pm : messages.values()) {
+			assertEquals(Locale.FRENCH, pm.getLocale());
+		}
+	}
+	
+	/**
+	 * @see CustomMessageService#getCustomMessageLocales()
+	 */
+	@Test
+	@Verifies(value = "should return locales of all custom messages", method = "getCustomMessageLocales()")
+	public void getCustomMessageLocales_shouldReturnLocalesOfAllCustomMessages() {
+		Set<Locale> locales = customMessageService.getCustomMessageLocales();
+		assertTrue(locales.contains(Locale.ENGLISH));
+		assertTrue(locales.contains(Locale.FRENCH));
+		assertTrue(locales.contains(Locale.ITALIAN));
+		assertFalse(locales.contains(Locale.GERMAN));
+	}
+	
+	/**
+	 * @see CustomMessageService#streamCustomMessages(String, Locale, CustomMessageHandler)
+	 */
+	@Test
+	@Verifies(value = "should pass every custom message to handler", method = "streamCustomMessages(String, Locale, CustomMessageHandler)")
+	public void streamCustomMessages_shouldPassEveryCustomMessageToHandler() {
+		final List<String> codes = new ArrayList<String>();
+		customMessageService.streamCustomMessages(null, null, new CustomMessageHandler() {
+			
+			public void handle(String code, Locale locale, String message, String locationId) {
+				codes.add(code);
+			}
+		});
+		assertEquals(customMessageService.getAllCustomMessages().size(), codes.size());
+	}
+	
+	/**
+	 * @see CustomMessageService#streamCustomMessages(String, Locale, CustomMessageHandler)
+	 */
+	@Test
+	@Verifies(value = "should pass only custom messages of given location and locale", method = "streamCustomMessages(String, Locale, CustomMessageHandler)")
+	public void streamCustomMessages_shouldPassOnlyCustomMessagesOfGivenLocationAndLocale() {
+		final Map<String, String> messages = new HashMap<String, String>();
+		customMessageService.streamCustomMessages("core", Locale.ITALIAN, new CustomMessageHandler() {
+			
+			public void handle(String code, Locale locale, String message, String locationId) {
+				assertEquals(Locale.ITALIAN, locale);
+				assertEquals("core", locationId);
+				messages.put(code, message);
+			}
+		});
+		assertEquals(3, messages.size());
+		assertEquals("Message it 2", messages.get("test.another.code"));
+		
+		messages.clear();
+		customMessageService.streamCustomMessages("test", Locale.ITALIAN, new CustomMessageHandler() {
+			
+			public void handle(String code, Locale locale, String message, String locationId) {
+				messages.put(code, message);
+			}
+		});
+		assertTrue(messages.isEmpty());
+	}
+	
+	/**
+	 * @see CustomMessageService#saveCustomMessage(String, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should create new custom message if there is none for code and locale", method = "saveCustomMessage(String, Locale, String)")
+	public void saveCustomMessage_shouldCreateNewCustomMessageIfThereIsNoneForCodeAndLocale() {
+		int beforeSize = customMessageService.getAllCustomMessages().size();
+		customMessageService.saveCustomMessage("new.code", Locale.GERMAN, "Neue Nachricht");
+		assertEquals(beforeSize + 1, customMessageService.getAllCustomMessages().size());
+		CustomMessage customMessage = customMessageService.getCustomMessagesForCodeAndLocale("new.code", Locale.GERMAN);
+		assertNotNull(customMessage);
+		assertEquals("Neue Nachricht", customMessage.getMessage());
+		assertNotNull(customMessage.getMessageLocation());
+	}
+	
+	/**
+	 * @see CustomMessageService#saveCustomMessage(String, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should update existing custom message without creating duplicate", method = "saveCustomMessage(String, Locale, String)")
+	public void saveCustomMessage_shouldUpdateExistingCustomMessageWithoutCreatingDuplicate() {
+		int beforeSize = customMessageService.getAllCustomMessages().size();
+		customMessageService.saveCustomMessage("test.code", Locale.FRENCH, "Nouveau message");
+		assertEquals(beforeSize, customMessageService.getAllCustomMessages().size());
+		Context.flushSession();
+		Context.clearSession();
+		assertEquals("Nouveau message", customMessageService.getCustomMessagesForCodeAndLocale("test.code", Locale.FRENCH)
+		        .getMessage());
+	}
+	
+	/**
+	 * @see CustomMessageService#deleteCustomMessage(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should delete custom message with code and locale", method = "deleteCustomMessage(String, Locale)")
+	public void deleteCustomMessage_shouldDeleteCustomMessageWithCodeAndLocale() {
+		int beforeSize = customMessageService.getAllCustomMessages().size();
+		assertTrue(customMessageService.deleteCustomMessage("test.code", Locale.FRENCH));
+		Context.clearSession();
+		assertEquals(beforeSize - 1, customMessageService.getAllCustomMessages().size());
+		assertNull(customMessageService.getCustomMessagesForCodeAndLocale("test.code", Locale.FRENCH));
+	}
+	
+	/**
+	 * @see CustomMessageService#deleteCustomMessage(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should return false if there is no such custom message", method = "deleteCustomMessage(String, Locale)")
+	public void deleteCustomMessage_shouldReturnFalseIfThereIsNoSuchCustomMessage() {
+		assertFalse(customMessageService.deleteCustomMessage("test.code", Locale.GERMAN));
+	}
+	
+	/**
+	 * @see CustomMessageService#saveCustomMessagesForCode(String, Map)
+	 */
+	@Test
+	@Verifies(value = "should create update and delete custom messages of code", method = "saveCustomMessagesForCode(String, Map)")
+	public void saveCustomMessagesForCode_shouldCreateUpdateAndDeleteCustomMessagesOfCode() {
+		Map<Locale, String> messages = new HashMap<Locale, String>();
+		messages.put(Locale.ENGLISH, "Updated message");
+		messages.put(Locale.FRENCH, " ");
+		messages.put(Locale.GERMAN, "Neue Nachricht");
+		Map<Locale, String> changes = customMessageService.saveCustomMessagesForCode("test.code", messages);
+		assertEquals(3, changes.size());
+		assertNull(changes.get(Locale.FRENCH));
+		assertEquals("Updated message", customMessageService.getCustomMessagesForCodeAndLocale("test.code",
+		    Locale.ENGLISH).getMessage());
+		assertNull(customMessageService.getCustomMessagesForCodeAndLocale("test.code", Locale.FRENCH));
+		CustomMessage created = customMessageService.getCustomMessagesForCodeAndLocale("test.code", Locale.GERMAN);
+		assertEquals("Neue Nachricht", created.getMessage());
+		assertNotNull(created.getMessageLocation());
+		assertEquals("Message it 1", customMessageService.getCustomMessagesForCodeAndLocale("test.code",
+		    Locale.ITALIAN).getMessage());
+	}
+	
+	/**
+	 * @see CustomMessageService#saveCustomMessagesForCode(String, Map)
+	 */
+	@Test
+	@Verifies(value = "should not change custom messages with the same text", method = "saveCustomMessagesForCode(String, Map)")
+	public void saveCustomMessagesForCode_shouldNotChangeCustomMessagesWithTheSameText() {
+		long version = customMessageService.getCacheVersion();
+		Map<Locale, String> messages = new HashMap<Locale, String>();
+		messages.put(Locale.ENGLISH, "Message 1");
+		messages.put(Locale.GERMAN, "");
+		assertTrue(customMessageService.saveCustomMessagesForCode("test.code", messages).isEmpty());
+		assertEquals(version, customMessageService.getCacheVersion());
+	}
+	
+	/**
+	 * @see CustomMessageService#saveCustomMessagesForCode(String, Map)
+	 */
+	@Test
+	@Verifies(value = "should increase cache version only once", method = "saveCustomMessagesForCode(String, Map)")
+	public void saveCustomMessagesForCode_shouldIncreaseCacheVersionOnlyOnce() {
+		long version = customMessageService.getCacheVersion();
+		Map<Locale, String> messages = new HashMap<Locale, String>();
+		messages.put(Locale.ENGLISH, "Updated message");
+		messages.put(Locale.FRENCH, "");
+		messages.put(Locale.GERMAN, "Neue Nachricht");
+		customMessageService.saveCustomMessagesForCode("test.code", messages);
+		assertEquals(version + 1, customMessageService.getCacheVersion());
+	}
+	
+	/**
+	 * @see CustomMessageService#importCustomMessages(java.io.Reader, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should create custom messages which do not exist yet", method = "importCustomMessages(Reader, Locale, String)")
+	public void importCustomMessages_shouldCreateCustomMessagesWhichDoNotExistYet() {
+		CustomMessageImportResult result = customMessageService.importCustomMessages(new StringReader(
+		        "import.first.code = Erste\nimport.second.code = Zweite\n"), Locale.GERMAN, "test");
+		assertEquals(2, result.getCreated());
+		assertEquals(2, result.getTotal());
+		CustomMessage customMessage = customMessageService.getCustomMessagesForCodeAndLocale("import.first.code",
+		    Locale.GERMAN);
+		assertEquals("Erste", customMessage.getMessage());
+		assertEquals("test", customMessage.getMessageLocation().getLocationId());
+	}
+	
+	/**
+	 * @see CustomMessageService#importCustomMessages(java.io.Reader, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should update only custom messages with different text", method = "importCustomMessages(Reader, Locale, String)")
+	public void importCustomMessages_shouldUpdateOnlyCustomMessagesWithDifferentText() {
+		long version = customMessageService.getCacheVersion();
+		CustomMessageImportResult result = customMessageService.importCustomMessages(new StringReader(
+		        "test.code = Message fr 1\ntest.another.code = Nouveau message\n"), Locale.FRENCH, "core");
+		assertEquals(1, result.getUnchanged());
+		assertEquals(1, result.getUpdated());
+		assertEquals(0, result.getCreated());
+		assertEquals(version + 1, customMessageService.getCacheVersion());
+		assertEquals("Nouveau message", customMessageService.getCustomMessagesForCodeAndLocale("test.another.code",
+		    Locale.FRENCH).getMessage());
+	}
+	
+	/**
+	 * @see CustomMessageService#importCustomMessages(java.io.Reader, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should skip blank messages", method = "importCustomMessages(Reader, Locale, String)")
+	public void importCustomMessages_shouldSkipBlankMessages() {
+		long version = customMessageService.getCacheVersion();
+		CustomMessageImportResult result = customMessageService.importCustomMessages(new StringReader("test.code = \n"),
+		    Locale.FRENCH, "core");
+		assertEquals(1, result.getSkipped());
+		assertFalse(result.hasChanges());
+		assertEquals(version, customMessageService.getCacheVersion());
+		assertEquals("Message fr 1", customMessageService.getCustomMessagesForCodeAndLocale("test.code", Locale.FRENCH)
+		        .getMessage());
+	}
+	
+	/**
+	 * @see CustomMessageService#importCustomMessages(ZipInputStream)
+	 */
+	@Test
+	@Verifies(value = "should import properties files of every location and locale", method = "importCustomMessages(ZipInputStream)")
+	public void importCustomMessages_shouldImportPropertiesFilesOfEveryLocationAndLocale() throws Exception {
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		entries.put("test/messages_de.properties", "import.code = Nachricht\n");
+		entries.put("core/messages_fr.properties", "test.code = Nouveau message\n");
+		CustomMessageImportResult result = customMessageService.importCustomMessages(zip(entries));
+		assertEquals(1, result.getCreated());
+		assertEquals(1, result.getUpdated());
+		assertEquals("test", customMessageService.getCustomMessagesForCodeAndLocale("import.code", Locale.GERMAN)
+		        .getMessageLocation().getLocationId());
+		assertEquals("Nouveau message", customMessageService.getCustomMessagesForCodeAndLocale("test.code", Locale.FRENCH)
+		        .getMessage());
+	}
+	
+	/**
+	 * @see CustomMessageService#importCustomMessages(ZipInputStream)
+	 */
+	@Test
+	@Verifies(value = "should ignore other files", method = "importCustomMessages(ZipInputStream)")
+	public void importCustomMessages_shouldIgnoreOtherFiles() throws Exception {
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		entries.put("readme.txt", "import.code = Nachricht\n");
+		entries.put("test/other_de.properties", "import.code = Nachricht\n");
+		CustomMessageImportResult result = customMessageService.importCustomMessages(zip(entries));
+		assertEquals(0, result.getTotal());
+	}
+	
+	/**
+	 * Creates zip input stream of files with given names and contents
+	 */
+	private ZipInputStream zip(Map<String, String> entries) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			zip.putNextEntry(new ZipEntry(entry.getKey()));
+			zip.write(entry.getValue().getBytes("UTF-8"));
+			zip.closeEntry();
+		}
+		zip.close();
+		return new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+	
+	/**
+	 * Creates given number of new custom messages in german, with codes numbered from zero
+	 */
+	private List<CustomMessage> newCustomMessages(int count) {
+		MessagesLocation location = customMessageService.getMessagesLocation("test");
+		List<CustomMessage> customMessages = new ArrayList<CustomMessage>();
+		for (int i = 0; i < count; i++) {
+			CustomMessage customMessage = new CustomMessage();
+			customMessage.setCode("new.code." + i);
+			customMessage.setLocale(Locale.GERMAN);
+			customMessage.setMessage("message " + i);
+			customMessage.setMessageLocation(location);
+			customMessages.add(customMessage);
+		}
+		return customMessages;
+	}
 }
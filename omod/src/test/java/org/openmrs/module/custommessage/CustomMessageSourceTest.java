@@ -0,0 +1,172 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.messagesource.PresentationMessage;
+import org.openmrs.messagesource.PresentationMessageMap;
+import org.openmrs.module.custommessage.cache.MessagesSnapshot;
+import org.openmrs.test.Verifies;
+import org.springframework.context.support.StaticMessageSource;
+
+/**
+ * This class contains unit tests of {@link CustomMessageSource} class. Messages are served from
+ * snapshot given by the test, so no database is needed.
+ */
+public class CustomMessageSourceTest {
+
+	private List<PresentationMessage> parentMessages;
+
+	private TestMessageSource source;
+
+	@Before
+	public void before() {
+		parentMessages = new ArrayList<PresentationMessage>();
+		parentMessages.add(new PresentationMessage("test.plain", Locale.ENGLISH, "Plain message", null));
+		parentMessages.add(new PresentationMessage("test.quoted", Locale.ENGLISH, "It''s '{0}' here", null));
+		parentMessages.add(new PresentationMessage("test.placeholder", Locale.ENGLISH, "Hello {0}", null));
+		source = new TestMessageSource();
+		source.current = build(parentMessages);
+	}
+
+	/**
+	 * @see CustomMessageSource#resolveCodeWithoutArguments(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should return plain message without compiling format", method = "resolveCodeWithoutArguments(String, Locale)")
+	public void resolveCodeWithoutArguments_shouldReturnPlainMessageWithoutCompilingFormat() {
+		assertEquals("Plain message", source.resolveCodeWithoutArguments("test.plain", Locale.ENGLISH));
+		assertEquals("Plain message", source.getMessage("test.plain", null, Locale.US));
+		assertNull(source.current.getMessageFormat("test.plain", Locale.ENGLISH));
+		assertNull(source.current.getMessageFormat("test.plain", Locale.US));
+	}
+
+	/**
+	 * @see CustomMessageSource#resolveCodeWithoutArguments(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should format messages with quotes or placeholders", method = "resolveCodeWithoutArguments(String, Locale)")
+	public void resolveCodeWithoutArguments_shouldFormatMessagesWithQuotesOrPlaceholders() {
+		assertEquals("It's {0} here", source.resolveCodeWithoutArguments("test.quoted", Locale.ENGLISH));
+		assertEquals("Hello {0}", source.resolveCodeWithoutArguments("test.placeholder", Locale.ENGLISH));
+		assertNotNull(source.current.getMessageFormat("test.quoted", Locale.ENGLISH));
+	}
+
+	/**
+	 * @see CustomMessageSource#resolveCodeWithoutArguments(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should return null for unknown code", method = "resolveCodeWithoutArguments(String, Locale)")
+	public void resolveCodeWithoutArguments_shouldReturnNullForUnknownCode() {
+		assertNull(source.resolveCodeWithoutArguments("test.unknown", Locale.ENGLISH));
+	}
+
+	/**
+	 * @see CustomMessageSource#resolveCode(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should reuse format cached in snapshot", method = "resolveCode(String, Locale)")
+	public void resolveCode_shouldReuseFormatCachedInSnapshot() {
+		MessageFormat format = source.resolveCode("test.placeholder", Locale.ENGLISH);
+		assertEquals("Hello World", format.format(new Object[] { "World" }));
+		assertSame(format, source.resolveCode("test.placeholder", Locale.ENGLISH));
+		assertEquals("Hello World", source.getMessage("test.placeholder", new Object[] { "World" }, Locale.ENGLISH));
+	}
+
+	/**
+	 * @see CustomMessageSource#resolveCode(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should drop cached formats when snapshot is replaced", method = "resolveCode(String, Locale)")
+	public void resolveCode_shouldDropCachedFormatsWhenSnapshotIsReplaced() {
+		assertEquals("Hello World", source.getMessage("test.placeholder", new Object[] { "World" }, Locale.ENGLISH));
+
+		source.current = source.current.withCustomMessage("test.placeholder", Locale.ENGLISH, "Hi {0}");
+		assertEquals("Hi World", source.getMessage("test.placeholder", new Object[] { "World" }, Locale.ENGLISH));
+
+		parentMessages.set(2, new PresentationMessage("test.placeholder", Locale.ENGLISH, "Welcome {0}", null));
+		source.current = build(parentMessages);
+		assertEquals("Welcome World", source.getMessage("test.placeholder", new Object[] { "World" }, Locale.ENGLISH));
+	}
+
+	/**
+	 * @see CustomMessageSource#getMessageInternal(String, Object[], Locale)
+	 */
+	@Test
+	@Verifies(value = "should count lookups of codes unknown in any locale", method = "getMessageInternal(String, Object[], Locale)")
+	public void getMessageInternal_shouldCountLookupsOfCodesUnknownInAnyLocale() {
+		assertEquals("Plain message", source.getMessage("test.plain", null, Locale.ENGLISH));
+		assertEquals(0, source.getRejectedCodeCount());
+		assertEquals("Default text", source.getMessage("test.unknown", null, "Default text", Locale.ENGLISH));
+		assertEquals("Default text", source.getMessage("test.unknown", new Object[] { "World" }, "Default text",
+		    Locale.FRENCH));
+		assertEquals(2, source.getRejectedCodeCount());
+	}
+
+	/**
+	 * @see CustomMessageSource#getMessageInternal(String, Object[], Locale)
+	 */
+	@Test
+	@Verifies(value = "should resolve codes unknown to cache from parent source", method = "getMessageInternal(String, Object[], Locale)")
+	public void getMessageInternal_shouldResolveCodesUnknownToCacheFromParentSource() {
+		StaticMessageSource parent = new StaticMessageSource();
+		parent.addMessage("test.started.module", Locale.ENGLISH, "Started {0}");
+		source.setParentMessageSource(parent);
+		assertEquals("Started module", source.getMessage("test.started.module", new Object[] { "module" },
+		    Locale.ENGLISH));
+		assertEquals("Started {0}", source.getMessage("test.started.module", null, Locale.ENGLISH));
+		assertEquals(2, source.getRejectedCodeCount());
+		assertNull(source.getMessageInternal("test.unknown", null, Locale.ENGLISH));
+	}
+
+	/**
+	 * @see CustomMessageSource#getMessageInternal(String, Object[], Locale)
+	 */
+	@Test
+	@Verifies(value = "should not reject codes when message codes are shown", method = "getMessageInternal(String, Object[], Locale)")
+	public void getMessageInternal_shouldNotRejectCodesWhenMessageCodesAreShown() {
+		source.setShowMessageCode(true);
+		assertEquals("test.plain", source.resolveCodeWithoutArguments("test.plain", Locale.ENGLISH));
+		source.getMessage("test.unknown", null, "Default text", Locale.ENGLISH);
+		assertEquals(0, source.getRejectedCodeCount());
+	}
+
+	private static MessagesSnapshot build(List<PresentationMessage> parentMessages) {
+		Map<Locale, PresentationMessageMap> customMessages = new HashMap<Locale, PresentationMessageMap>();
+		return MessagesSnapshot.build(customMessages, new ArrayList<PresentationMessage>(parentMessages), null);
+	}
+
+	/**
+	 * Message source serving messages from snapshot set by the test
+	 */
+	private static class TestMessageSource extends CustomMessageSource {
+
+		private MessagesSnapshot current;
+
+		@Override
+		public MessagesSnapshot getSnapshot() {
+			return current;
+		}
+	}
+}
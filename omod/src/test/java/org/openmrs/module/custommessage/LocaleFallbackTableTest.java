@@ -0,0 +1,164 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.custommessage.cache.LocaleFallbackTable;
+import org.openmrs.module.custommessage.cache.MessageStorage;
+import org.openmrs.module.custommessage.cache.MessageTable;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link LocaleFallbackTable} class
+ */
+public class LocaleFallbackTableTest {
+	
+	private static final Locale FRENCH_CANADA = new Locale("fr", "CA");
+	
+	private MessageTable messages;
+	
+	@Before
+	public void before() {
+		messages = MessageTable.build(new HashMap<Locale, Map<String, String>>());
+		addMessage("test.code", Locale.ENGLISH, "English");
+		addMessage("test.english.only", Locale.ENGLISH, "English only");
+		addMessage("test.code", Locale.FRENCH, "French");
+		addMessage("test.french.only", Locale.FRENCH, "French only");
+		addMessage("test.code", FRENCH_CANADA, "Canadian French");
+	}
+	
+	/**
+	 * @see LocaleFallbackTable#build(MessageTable, Locale)
+	 */
+	@Test
+	@Verifies(value = "should resolve messages along fallback chain", method = "build(MessageTable, Locale)")
+	public void build_shouldResolveMessagesAlongFallbackChain() {
+		LocaleFallbackTable table = LocaleFallbackTable.build(messages, null);
+		assertEquals("Canadian French", table.getMessage("test.code", FRENCH_CANADA));
+		assertEquals("Canadian French", table.getMessage("test.code", new Locale("fr", "CA", "variant")));
+		assertEquals("French only", table.getMessage("test.french.only", FRENCH_CANADA));
+		assertEquals("French", table.getMessage("test.code", Locale.FRANCE));
+		assertNull(table.getMessage("test.english.only", FRENCH_CANADA));
+	}
+	
+	/**
+	 * @see LocaleFallbackTable#build(MessageTable, Locale)
+	 */
+	@Test
+	@Verifies(value = "should use fallback locale as last resort", method = "build(MessageTable, Locale)")
+	public void build_shouldUseFallbackLocaleAsLastResort() {
+		LocaleFallbackTable table = LocaleFallbackTable.build(messages, Locale.ENGLISH);
+		assertEquals("English only", table.getMessage("test.english.only", FRENCH_CANADA));
+		assertEquals("English only", table.getMessage("test.english.only", Locale.GERMAN));
+		assertEquals("Canadian French", table.getMessage("test.code", FRENCH_CANADA));
+	}
+	
+	/**
+	 * @see LocaleFallbackTable#build(MessageTable, Locale)
+	 */
+	@Test
+	@Verifies(value = "should resolve messages from packed columns", method = "build(MessageTable, Locale)")
+	public void build_shouldResolveMessagesFromPackedColumns() {
+		Map<Locale, Map<String, String>> texts = new HashMap<Locale, Map<String, String>>();
+		for (Locale locale : messages.getLocales()) {
+			texts.put(locale, new HashMap<String, String>());
+			for (int id = 0; id < messages.getCodeCount(); id++) {
+				if (messages.getMessage(id, locale) != null) {
+					texts.get(locale).put(messages.getCode(id), messages.getMessage(id, locale));
+				}
+			}
+		}
+		messages = MessageTable.build(texts, MessageStorage.DIRECT);
+		LocaleFallbackTable table = LocaleFallbackTable.build(messages, Locale.ENGLISH);
+		assertEquals("Canadian French", table.getMessage("test.code", FRENCH_CANADA));
+		assertEquals("French only", table.getMessage("test.french.only", FRENCH_CANADA));
+		assertEquals("English only", table.getMessage("test.english.only", FRENCH_CANADA));
+		addMessage("test.new.code", Locale.FRENCH, "Nouveau");
+		LocaleFallbackTable changed = table.withChange(messages, "test.new.code", Locale.FRENCH);
+		assertEquals("Nouveau", changed.getMessage("test.new.code", FRENCH_CANADA));
+		assertEquals("Canadian French", changed.getMessage("test.code", FRENCH_CANADA));
+	}
+	
+	/**
+	 * @see LocaleFallbackTable#getFallbackChain(Locale, Locale)
+	 */
+	@Test
+	@Verifies(value = "should not contain duplicate locales", method = "getFallbackChain(Locale, Locale)")
+	public void getFallbackChain_shouldNotContainDuplicateLocales() {
+		List<Locale> chain = LocaleFallbackTable.getFallbackChain(Locale.ENGLISH, Locale.ENGLISH);
+		assertEquals(1, chain.size());
+		chain = LocaleFallbackTable.getFallbackChain(new Locale("fr", "CA", "variant"), Locale.ENGLISH);
+		assertEquals(4, chain.size());
+		assertEquals(Locale.ENGLISH, chain.get(3));
+	}
+	
+	/**
+	 * @see LocaleFallbackTable#withChange(MessageTable, String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should update tables of more specific locales", method = "withChange(MessageTable, String, Locale)")
+	public void withChange_shouldUpdateTablesOfMoreSpecificLocales() {
+		LocaleFallbackTable table = LocaleFallbackTable.build(messages, null);
+		addMessage("test.new.code", Locale.FRENCH, "Nouveau");
+		LocaleFallbackTable changed = table.withChange(messages, "test.new.code", Locale.FRENCH);
+		assertEquals("Nouveau", changed.getMessage("test.new.code", FRENCH_CANADA));
+		assertNull(changed.getMessage("test.new.code", Locale.ENGLISH));
+		assertNull(table.getMessage("test.new.code", FRENCH_CANADA));
+	}
+	
+	/**
+	 * @see LocaleFallbackTable#withChange(MessageTable, String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should keep messages of locales whose chain does not include changed locale", method = "withChange(MessageTable, String, Locale)")
+	public void withChange_shouldKeepMessagesOfLocalesWhoseChainDoesNotIncludeChangedLocale() {
+		LocaleFallbackTable table = LocaleFallbackTable.build(messages, null);
+		addMessage("test.code", Locale.FRENCH, "Changed French");
+		addMessage("test.new.code", Locale.FRENCH, "Nouveau");
+		LocaleFallbackTable changed = table.withChange(messages, "test.code", Locale.FRENCH).withChange(messages,
+		    "test.new.code", Locale.FRENCH);
+		assertEquals("Changed French", changed.getMessage("test.code", Locale.FRENCH));
+		assertEquals("Canadian French", changed.getMessage("test.code", FRENCH_CANADA));
+		assertEquals("English", changed.getMessage("test.code", Locale.ENGLISH));
+		assertEquals("English only", changed.getMessage("test.english.only", Locale.ENGLISH));
+		assertNull(changed.getMessage("test.new.code", Locale.ENGLISH));
+		assertEquals("French", table.getMessage("test.code", Locale.FRENCH));
+	}
+	
+	/**
+	 * @see LocaleFallbackTable#getMessage(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should resolve messages of more requested locales than are remembered", method = "getMessage(String, Locale)")
+	public void getMessage_shouldResolveMessagesOfMoreRequestedLocalesThanAreRemembered() {
+		LocaleFallbackTable table = LocaleFallbackTable.build(messages, null);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("Canadian French", table.getMessage("test.code", new Locale("fr", "CA", "v" + i)));
+			assertEquals("French only", table.getMessage("test.french.only", new Locale("fr", "X" + i)));
+		}
+		assertEquals("Canadian French", table.getMessage("test.code", FRENCH_CANADA));
+	}
+	
+	private void addMessage(String code, Locale locale, String message) {
+		messages = messages.with(code, locale, message);
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.openmrs.module.custommessage.util.LocationPrefixIndex;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link LocationPrefixIndex} class
+ */
+public class LocationPrefixIndexTest {
+
+	/**
+	 * @see LocationPrefixIndex#getLocationId(String)
+	 */
+	@Test
+	@Verifies(value = "should return id of location code starts with", method = "getLocationId(String)")
+	public void getLocationId_shouldReturnIdOfLocationCodeStartsWith() {
+		LocationPrefixIndex index = new LocationPrefixIndex(Arrays.asList("reporting", "htmlformentry"));
+		assertEquals("reporting", index.getLocationId("reporting.title"));
+		assertEquals("htmlformentry", index.getLocationId("htmlformentry.form.name"));
+	}
+
+	/**
+	 * @see LocationPrefixIndex#getLocationId(String)
+	 */
+	@Test
+	@Verifies(value = "should return longest matching location id", method = "getLocationId(String)")
+	public void getLocationId_shouldReturnLongestMatchingLocationId() {
+		LocationPrefixIndex index = new LocationPrefixIndex(Arrays.asList("org", "org.example.module"));
+		assertEquals("org.example.module", index.getLocationId("org.example.module.title"));
+		assertEquals("org", index.getLocationId("org.example.other.title"));
+	}
+
+	/**
+	 * @see LocationPrefixIndex#getLocationId(String)
+	 */
+	@Test
+	@Verifies(value = "should return null if code does not start with any location id followed by dot", method = "getLocationId(String)")
+	public void getLocationId_shouldReturnNullIfCodeDoesNotStartWithAnyLocationIdFollowedByDot() {
+		LocationPrefixIndex index = new LocationPrefixIndex(Arrays.asList("test", "org.example.module"));
+		assertNull(index.getLocationId("testing.code"));
+		assertNull(index.getLocationId("test"));
+		assertNull(index.getLocationId("org.example.title"));
+		assertNull(index.getLocationId("general.save"));
+	}
+}
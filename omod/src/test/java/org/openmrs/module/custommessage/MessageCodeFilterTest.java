@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.module.custommessage.cache.MessageCodeFilter;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessageCodeFilter} class
+ */
+public class MessageCodeFilterTest {
+	
+	/**
+	 * @see MessageCodeFilter#build(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should contain all given codes", method = "build(Collection)")
+	public void build_shouldContainAllGivenCodes() {
+		List<String> codes = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			codes.add("test.code." + i);
+		}
+		MessageCodeFilter filter = MessageCodeFilter.build(codes);
+		for (String code : codes) {
+			assertTrue(filter.mightContain(code));
+		}
+	}
+	
+	/**
+	 * @see MessageCodeFilter#build(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should reject most of unknown codes", method = "build(Collection)")
+	public void build_shouldRejectMostOfUnknownCodes() {
+		List<String> codes = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			codes.add("test.code." + i);
+		}
+		MessageCodeFilter filter = MessageCodeFilter.build(codes);
+		int falsePositives = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (filter.mightContain("test.unknown." + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 50);
+	}
+	
+	/**
+	 * @see MessageCodeFilter#with(String)
+	 */
+	@Test
+	@Verifies(value = "should not modify original filter", method = "with(String)")
+	public void with_shouldNotModifyOriginalFilter() {
+		MessageCodeFilter filter = MessageCodeFilter.build(Arrays.asList("test.code"));
+		MessageCodeFilter copy = filter.with("test.new.code");
+		assertTrue(copy.mightContain("test.code"));
+		assertTrue(copy.mightContain("test.new.code"));
+		assertFalse(filter.mightContain("test.new.code"));
+	}
+}
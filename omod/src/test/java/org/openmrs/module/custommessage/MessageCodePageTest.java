@@ -0,0 +1,121 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.messagesource.PresentationMessage;
+import org.openmrs.messagesource.PresentationMessageMap;
+import org.openmrs.module.custommessage.cache.MessageCodePage;
+import org.openmrs.module.custommessage.cache.MessagesSnapshot;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessageCodePage} class
+ */
+public class MessageCodePageTest {
+
+	private MessagesSnapshot snapshot;
+
+	@Before
+	public void before() {
+		List<PresentationMessage> messages = new ArrayList<PresentationMessage>();
+		messages.add(new PresentationMessage("test.b", Locale.ENGLISH, "B", null));
+		messages.add(new PresentationMessage("test.a", Locale.ENGLISH, "A", null));
+		messages.add(new PresentationMessage("test.d", Locale.ENGLISH, "D", null));
+		messages.add(new PresentationMessage("other.a", Locale.ENGLISH, "Other A", null));
+		messages.add(new PresentationMessage("test.c", Locale.FRENCH, "C fr", null));
+		messages.add(new PresentationMessage("test.a", Locale.FRENCH, "A fr", null));
+		snapshot = MessagesSnapshot.build(new HashMap<Locale, PresentationMessageMap>(), messages, null);
+	}
+
+	/**
+	 * @see MessageCodePage#find(MessagesSnapshot,String,Locale,boolean,int,int)
+	 */
+	@Test
+	@Verifies(value = "should return codes of requested page in order of codes", method = "find(MessagesSnapshot,String,Locale,boolean,int,int)")
+	public void find_shouldReturnCodesOfRequestedPageInOrderOfCodes() {
+		assertEquals(Arrays.asList("other.a", "test.a"), MessageCodePage.find(snapshot, null, null, false, 0, 2).getCodes());
+		assertEquals(Arrays.asList("test.b", "test.c"), MessageCodePage.find(snapshot, null, null, false, 2, 2).getCodes());
+		assertEquals(Arrays.asList("test.d"), MessageCodePage.find(snapshot, null, null, false, 4, 2).getCodes());
+		assertEquals(5, MessageCodePage.find(snapshot, null, null, false, 0, -1).getCodes().size());
+	}
+
+	/**
+	 * @see MessageCodePage#find(MessagesSnapshot,String,Locale,boolean,int,int)
+	 */
+	@Test
+	@Verifies(value = "should return codes in descending order", method = "find(MessagesSnapshot,String,Locale,boolean,int,int)")
+	public void find_shouldReturnCodesInDescendingOrder() {
+		assertEquals(Arrays.asList("test.d", "test.c"), MessageCodePage.find(snapshot, null, null, true, 0, 2).getCodes());
+		assertEquals(Arrays.asList("other.a"), MessageCodePage.find(snapshot, null, null, true, 4, 2).getCodes());
+	}
+
+	/**
+	 * @see MessageCodePage#find(MessagesSnapshot,String,Locale,boolean,int,int)
+	 */
+	@Test
+	@Verifies(value = "should count all and matching codes", method = "find(MessagesSnapshot,String,Locale,boolean,int,int)")
+	public void find_shouldCountAllAndMatchingCodes() {
+		MessageCodePage page = MessageCodePage.find(snapshot, "test", null, false, 0, 1);
+		assertEquals(5, page.getTotalCount());
+		assertEquals(4, page.getMatchingCount());
+		assertEquals(1, page.getCodes().size());
+	}
+
+	/**
+	 * @see MessageCodePage#find(MessagesSnapshot,String,Locale,boolean,int,int)
+	 */
+	@Test
+	@Verifies(value = "should return codes matching text ranked by relevance", method = "find(MessagesSnapshot,String,Locale,boolean,int,int)")
+	public void find_shouldReturnCodesMatchingTextRankedByRelevance() {
+		// test.a matches in code and in two locales, other.a in code and in one locale only
+		assertEquals(Arrays.asList("test.a", "other.a"), MessageCodePage.find(snapshot, "A", null, true, 0, 10).getCodes());
+		assertEquals(Arrays.asList("other.a"), MessageCodePage.find(snapshot, "other", null, false, 0, 10).getCodes());
+		assertEquals(5, MessageCodePage.find(snapshot, "  ", null, false, 0, 10).getMatchingCount());
+	}
+
+	/**
+	 * @see MessageCodePage#find(MessagesSnapshot,String,Locale,boolean,int,int)
+	 */
+	@Test
+	@Verifies(value = "should return only codes missing in given locale", method = "find(MessagesSnapshot,String,Locale,boolean,int,int)")
+	public void find_shouldReturnOnlyCodesMissingInGivenLocale() {
+		assertEquals(Arrays.asList("other.a", "test.b", "test.d"), MessageCodePage.find(snapshot, null, Locale.FRENCH, false,
+		    0, 10).getCodes());
+		assertEquals(Arrays.asList("test.b", "test.d"), MessageCodePage.find(snapshot, "tes", Locale.FRENCH, false, 0, 10)
+		        .getCodes());
+		assertEquals(5, MessageCodePage.find(snapshot, null, Locale.GERMAN, false, 0, 10).getMatchingCount());
+	}
+
+	/**
+	 * @see MessageCodePage#find(MessagesSnapshot,String,Locale,boolean,int,int)
+	 */
+	@Test
+	@Verifies(value = "should skip codes without any message", method = "find(MessagesSnapshot,String,Locale,boolean,int,int)")
+	public void find_shouldSkipCodesWithoutAnyMessage() {
+		MessageCodePage page = MessageCodePage.find(snapshot.withoutPresentation("test.c", Locale.FRENCH), null, null,
+		    false, 0, 10);
+		assertEquals(Arrays.asList("other.a", "test.a", "test.b", "test.d"), page.getCodes());
+		assertEquals(4, page.getTotalCount());
+	}
+}
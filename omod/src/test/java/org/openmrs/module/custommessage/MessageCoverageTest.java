@@ -0,0 +1,130 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.custommessage.cache.MessageCoverage;
+import org.openmrs.module.custommessage.cache.MessageTable;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessageCoverage} class
+ */
+public class MessageCoverageTest {
+
+	private MessageTable table;
+
+	@Before
+	public void before() {
+		Map<Locale, Map<String, String>> messages = new HashMap<Locale, Map<String, String>>();
+		Map<String, String> english = new HashMap<String, String>();
+		english.put("test.a", "A");
+		english.put("test.b", "B");
+		english.put("test.c", "C");
+		messages.put(Locale.ENGLISH, english);
+		Map<String, String> french = new HashMap<String, String>();
+		french.put("test.a", "A fr");
+		french.put("test.d", "D fr");
+		messages.put(Locale.FRENCH, french);
+		table = MessageTable.build(messages);
+	}
+
+	/**
+	 * @see MessageCoverage#build(MessageTable)
+	 */
+	@Test
+	@Verifies(value = "should set codes having message in every locale", method = "build(MessageTable)")
+	public void build_shouldSetCodesHavingMessageInEveryLocale() {
+		MessageCoverage coverage = MessageCoverage.build(table);
+		assertTrue(coverage.hasMessage(table.getCodeId("test.b"), Locale.ENGLISH));
+		assertFalse(coverage.hasMessage(table.getCodeId("test.b"), Locale.FRENCH));
+		assertFalse(coverage.hasMessage(table.getCodeId("test.b"), Locale.GERMAN));
+		assertTrue(coverage.hasMessages(table.getCodeId("test.d")));
+		assertEquals(4, coverage.getCodeCount(null));
+	}
+
+	/**
+	 * @see MessageCoverage#withChange(MessageTable,String,Locale)
+	 */
+	@Test
+	@Verifies(value = "should cover added and removed messages only in new coverage", method = "withChange(MessageTable,String,Locale)")
+	public void withChange_shouldCoverAddedAndRemovedMessagesOnlyInNewCoverage() {
+		MessageCoverage coverage = MessageCoverage.build(table);
+		MessageTable added = table.with("test.e", Locale.GERMAN, "E de");
+		MessageCoverage changed = coverage.withChange(added, "test.e", Locale.GERMAN);
+		MessageTable removed = added.without("test.d", Locale.FRENCH);
+		changed = changed.withChange(removed, "test.d", Locale.FRENCH);
+		assertTrue(changed.hasMessage(removed.getCodeId("test.e"), Locale.GERMAN));
+		assertFalse(changed.hasMessages(removed.getCodeId("test.d")));
+		assertEquals(4, changed.getCodeCount(null));
+		assertEquals(1, changed.getMessageCount(Locale.FRENCH, null));
+		assertEquals(2, coverage.getMessageCount(Locale.FRENCH, null));
+		assertEquals(0, coverage.getMessageCount(Locale.GERMAN, null));
+	}
+
+	/**
+	 * @see MessageCoverage#getMessageCount(Locale,BitSet)
+	 */
+	@Test
+	@Verifies(value = "should count messages of locale within given codes", method = "getMessageCount(Locale,BitSet)")
+	public void getMessageCount_shouldCountMessagesOfLocaleWithinGivenCodes() {
+		MessageCoverage coverage = MessageCoverage.build(table);
+		BitSet within = new BitSet();
+		within.set(table.getCodeId("test.a"));
+		within.set(table.getCodeId("test.b"));
+		assertEquals(2, coverage.getMessageCount(Locale.ENGLISH, within));
+		assertEquals(1, coverage.getMessageCount(Locale.FRENCH, within));
+		assertEquals(3, coverage.getMessageCount(Locale.ENGLISH, null));
+	}
+
+	/**
+	 * @see MessageCoverage#getMissingCodes(Locale,Locale,BitSet)
+	 */
+	@Test
+	@Verifies(value = "should return codes missing in locale within given codes", method = "getMissingCodes(Locale,Locale,BitSet)")
+	public void getMissingCodes_shouldReturnCodesMissingInLocaleWithinGivenCodes() {
+		MessageCoverage coverage = MessageCoverage.build(table);
+		BitSet missing = coverage.getMissingCodes(Locale.FRENCH, null, null);
+		assertEquals(2, missing.cardinality());
+		assertTrue(missing.get(table.getCodeId("test.b")));
+		assertTrue(missing.get(table.getCodeId("test.c")));
+		BitSet within = new BitSet();
+		within.set(table.getCodeId("test.a"));
+		within.set(table.getCodeId("test.c"));
+		missing = coverage.getMissingCodes(Locale.FRENCH, null, within);
+		assertEquals(1, missing.cardinality());
+		assertTrue(missing.get(table.getCodeId("test.c")));
+	}
+
+	/**
+	 * @see MessageCoverage#getMissingCodes(Locale,Locale,BitSet)
+	 */
+	@Test
+	@Verifies(value = "should return codes missing in locale but present in compared locale", method = "getMissingCodes(Locale,Locale,BitSet)")
+	public void getMissingCodes_shouldReturnCodesMissingInLocaleButPresentInComparedLocale() {
+		MessageCoverage coverage = MessageCoverage.build(table);
+		BitSet missing = coverage.getMissingCodes(Locale.ENGLISH, Locale.FRENCH, null);
+		assertEquals(1, missing.cardinality());
+		assertTrue(missing.get(table.getCodeId("test.d")));
+		assertEquals(0, coverage.getMissingCodes(Locale.ENGLISH, Locale.GERMAN, null).cardinality());
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.custommessage.cache.MessageStorage;
+import org.openmrs.module.custommessage.cache.MessageTable;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessageTable} class
+ */
+public class MessageTableTest {
+	
+	private Map<Locale, Map<String, String>> messages;
+	
+	@Before
+	public void before() {
+		messages = new HashMap<Locale, Map<String, String>>();
+		Map<String, String> english = new HashMap<String, String>();
+		english.put("test.b", "B");
+		english.put("test.a", "A");
+		english.put("test.d", "D");
+		messages.put(Locale.ENGLISH, english);
+		Map<String, String> french = new HashMap<String, String>();
+		french.put("test.c", "C fr");
+		french.put("test.a", "A fr");
+		messages.put(Locale.FRENCH, french);
+	}
+	
+	/**
+	 * @see MessageTable#build(Map)
+	 */
+	@Test
+	@Verifies(value = "should assign ids in alphabetical order of codes", method = "build(Map)")
+	public void build_shouldAssignIdsInAlphabeticalOrderOfCodes() {
+		MessageTable table = MessageTable.build(messages);
+		assertEquals(4, table.getCodeCount());
+		assertEquals(0, table.getCodeId("test.a"));
+		assertEquals(3, table.getCodeId("test.d"));
+		assertEquals("test.c", table.getCode(2));
+		assertEquals(-1, table.getCodeId("test.e"));
+	}
+	
+	/**
+	 * @see MessageTable#build(Map)
+	 */
+	@Test
+	@Verifies(value = "should keep texts of every locale", method = "build(Map)")
+	public void build_shouldKeepTextsOfEveryLocale() {
+		MessageTable table = MessageTable.build(messages);
+		assertEquals("A", table.getMessage("test.a", Locale.ENGLISH));
+		assertEquals("A fr", table.getMessage("test.a", Locale.FRENCH));
+		assertEquals("C fr", table.getMessage(table.getCodeId("test.c"), Locale.FRENCH));
+		assertNull(table.getMessage("test.c", Locale.ENGLISH));
+		assertNull(table.getMessage("test.a", Locale.GERMAN));
+		assertEquals(2, table.getLocales().size());
+	}
+	
+	/**
+	 * @see MessageTable#build(Map, MessageStorage)
+	 */
+	@Test
+	@Verifies(value = "should keep texts in packed storage", method = "build(Map, MessageStorage)")
+	public void build_shouldKeepTextsInPackedStorage() {
+		MessageTable table = MessageTable.build(messages, MessageStorage.DIRECT);
+		assertSame(MessageStorage.DIRECT, table.getStorage());
+		assertEquals("A fr", table.getMessage("test.a", Locale.FRENCH));
+		assertNull(table.getMessage("test.c", Locale.ENGLISH));
+		MessageTable changed = table.with("test.c", Locale.ENGLISH, "C").with("test.d", Locale.GERMAN, "D de")
+		        .without("test.a", Locale.FRENCH);
+		assertEquals("C", changed.getMessage("test.c", Locale.ENGLISH));
+		assertEquals("D de", changed.getMessage("test.d", Locale.GERMAN));
+		assertNull(changed.getMessage("test.a", Locale.FRENCH));
+		assertEquals("A fr", table.getMessage("test.a", Locale.FRENCH));
+		assertSame(MessageStorage.DIRECT, changed.getStorage());
+	}
+	
+	/**
+	 * @see MessageTable#with(String, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should add new code in sorted order", method = "with(String, Locale, String)")
+	public void with_shouldAddNewCodeInSortedOrder() {
+		MessageTable table = MessageTable.build(messages).with("test.bb", Locale.GERMAN, "BB de");
+		assertEquals(5, table.getCodeCount());
+		assertEquals("BB de", table.getMessage("test.bb", Locale.GERMAN));
+		assertEquals("B", table.getMessage("test.b", Locale.ENGLISH));
+		int[] sortedIds = table.getSortedCodeIds();
+		String[] sortedCodes = new String[sortedIds.length];
+		for (int i = 0; i < sortedIds.length; i++) {
+			sortedCodes[i] = table.getCode(sortedIds[i]);
+		}
+		assertArrayEquals(new String[] { "test.a", "test.b", "test.bb", "test.c", "test.d" }, sortedCodes);
+	}
+	
+	/**
+	 * @see MessageTable#with(String, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should not modify original table", method = "with(String, Locale, String)")
+	public void with_shouldNotModifyOriginalTable() {
+		MessageTable table = MessageTable.build(messages);
+		MessageTable modified = table.with("test.a", Locale.ENGLISH, "Changed").with("test.e", Locale.ENGLISH, "E");
+		assertEquals("Changed", modified.getMessage("test.a", Locale.ENGLISH));
+		assertEquals("A", table.getMessage("test.a", Locale.ENGLISH));
+		assertEquals(-1, table.getCodeId("test.e"));
+	}
+	
+	/**
+	 * @see MessageTable#without(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should remove message only from new table", method = "without(String, Locale)")
+	public void without_shouldRemoveMessageOnlyFromNewTable() {
+		MessageTable table = MessageTable.build(messages);
+		MessageTable modified = table.without("test.c", Locale.FRENCH);
+		assertNull(modified.getMessage("test.c", Locale.FRENCH));
+		assertFalse(modified.hasMessages(modified.getCodeId("test.c")));
+		assertEquals("C fr", table.getMessage("test.c", Locale.FRENCH));
+	}
+	
+	/**
+	 * @see MessageTable#getSortedCodeIds(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should return ids of codes with given prefix ordered by code", method = "getSortedCodeIds(Collection)")
+	public void getSortedCodeIds_shouldReturnIdsOfCodesWithGivenPrefixOrderedByCode() {
+		messages.get(Locale.ENGLISH).put("other.a", "Other A");
+		MessageTable table = MessageTable.build(messages);
+		assertArrayEquals(new String[] { "test.a", "test.b", "test.c", "test.d" }, codes(table, table
+		        .getSortedCodeIds(Collections.singleton("test"))));
+		assertEquals(0, table.getSortedCodeIds(Collections.singleton("unknown")).length);
+	}
+	
+	/**
+	 * @see MessageTable#getSortedCodeIds(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should merge codes of several prefixes in order of codes", method = "getSortedCodeIds(Collection)")
+	public void getSortedCodeIds_shouldMergeCodesOfSeveralPrefixesInOrderOfCodes() {
+		messages.get(Locale.ENGLISH).put("test-x.a", "Dash");
+		messages.get(Locale.ENGLISH).put("zzz", "No dot");
+		MessageTable table = MessageTable.build(messages);
+		assertEquals(new HashSet<String>(Arrays.asList("test", "test-x", "zzz")), table.getCodePrefixes());
+		// dash sorts before dot, so codes of the two prefixes interleave
+		assertArrayEquals(new String[] { "test-x.a", "test.a", "test.b", "test.c", "test.d", "zzz" }, codes(table, table
+		        .getSortedCodeIds(table.getCodePrefixes())));
+	}
+	
+	/**
+	 * @see MessageTable#getSortedCodeIds(java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should include codes added after table was built", method = "getSortedCodeIds(Collection)")
+	public void getSortedCodeIds_shouldIncludeCodesAddedAfterTableWasBuilt() {
+		MessageTable table = MessageTable.build(messages);
+		// build partition of original table first, so it is not simply shared with the new one
+		table.getSortedCodeIds(Collections.singleton("test"));
+		MessageTable modified = table.with("test.bb", Locale.ENGLISH, "BB").with("other.a", Locale.ENGLISH, "A");
+		assertArrayEquals(new String[] { "test.a", "test.b", "test.bb", "test.c", "test.d" }, codes(modified, modified
+		        .getSortedCodeIds(Collections.singleton("test"))));
+		assertArrayEquals(new String[] { "other.a" }, codes(modified, modified.getSortedCodeIds(Collections
+		        .singleton("other"))));
+	}
+	
+	/**
+	 * @return the codes with given ids
+	 */
+	private String[] codes(MessageTable table, int[] ids) {
+		String[] codes = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			codes[i] = table.getCode(ids[i]);
+		}
+		return codes;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.custommessage.cache.MessageTable;
+import org.openmrs.module.custommessage.cache.MessageTextIndex;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessageTextIndex} class
+ */
+public class MessageTextIndexTest {
+
+	private MessageTable table;
+
+	@Before
+	public void before() {
+		Map<Locale, Map<String, String>> messages = new HashMap<Locale, Map<String, String>>();
+		Map<String, String> english = new HashMap<String, String>();
+		english.put("coreapps.findPatient", "Find Patient Record");
+		english.put("general.patients", "Patients");
+		english.put("general.save", "Save");
+		messages.put(Locale.ENGLISH, english);
+		Map<String, String> french = new HashMap<String, String>();
+		french.put("general.save", "Enregistrer");
+		french.put("general.cancel", "Annuler le patient");
+		messages.put(Locale.FRENCH, french);
+		table = MessageTable.build(messages);
+	}
+
+	/**
+	 * @see MessageTextIndex#build(MessageTable)
+	 */
+	@Test
+	@Verifies(value = "should find codes by words of code", method = "build(MessageTable)")
+	public void build_shouldFindCodesByWordsOfCode() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		assertArrayEquals(new String[] { "general.cancel", "general.patients", "general.save" }, codes(table, index
+		        .search(table, "general")));
+		assertArrayEquals(new String[] { "general.cancel" }, codes(table, index.search(table, "cancel")));
+	}
+
+	/**
+	 * @see MessageTextIndex#build(MessageTable)
+	 */
+	@Test
+	@Verifies(value = "should find codes by words of messages in any locale", method = "build(MessageTable)")
+	public void build_shouldFindCodesByWordsOfMessagesInAnyLocale() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		assertArrayEquals(new String[] { "general.save" }, codes(table, index.search(table, "enregistrer")));
+		assertArrayEquals(new String[] { "general.cancel" }, codes(table, index.search(table, "annuler")));
+	}
+
+	/**
+	 * @see MessageTextIndex#search(MessageTable,String)
+	 */
+	@Test
+	@Verifies(value = "should rank codes matching whole words above codes matching start of words", method = "search(MessageTable,String)")
+	public void search_shouldRankCodesMatchingWholeWordsAboveCodesMatchingStartOfWords() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		// whole word is found in code and message of the first one, start of word in the second one
+		assertArrayEquals(new String[] { "coreapps.findPatient", "general.patients", "general.cancel" }, codes(table, index
+		        .search(table, "patient")));
+		assertArrayEquals(new String[] { "general.patients" }, codes(table, index.search(table, "patients")));
+	}
+
+	/**
+	 * @see MessageTextIndex#search(MessageTable,String)
+	 */
+	@Test
+	@Verifies(value = "should require every word of searched text", method = "search(MessageTable,String)")
+	public void search_shouldRequireEveryWordOfSearchedText() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		assertArrayEquals(new String[] { "coreapps.findPatient" }, codes(table, index.search(table, "patient rec")));
+		assertEquals(0, index.search(table, "patient missing").length);
+		assertEquals(0, index.search(table, "   ").length);
+	}
+	
+	/**
+	 * @see MessageTextIndex#search(MessageTable,String)
+	 */
+	@Test
+	@Verifies(value = "should find codes containing text when no word matches", method = "search(MessageTable,String)")
+	public void search_shouldFindCodesContainingTextWhenNoWordMatches() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		assertArrayEquals(new String[] { "coreapps.findPatient" }, codes(table, index.search(table, "apps")));
+		assertArrayEquals(new String[] { "general.cancel", "general.patients", "general.save" }, codes(table, index
+		        .search(table, "al.")));
+		assertEquals(4, index.search(table, " . ").length);
+		assertArrayEquals(new String[] { "coreapps.findPatient" }, codes(table, index.search(table, "dpat")));
+		// words are searched first, so substrings are not mixed into word matches
+		assertArrayEquals(new String[] { "general.save" }, codes(table, index.search(table, "save")));
+	}
+
+	/**
+	 * @see MessageTextIndex#search(MessageTable,String)
+	 */
+	@Test
+	@Verifies(value = "should ignore case and split words of code at upper case letters", method = "search(MessageTable,String)")
+	public void search_shouldIgnoreCaseAndSplitWordsOfCodeAtUpperCaseLetters() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		assertArrayEquals(new String[] { "coreapps.findPatient" }, codes(table, index.search(table, "FIND")));
+		assertArrayEquals(new String[] { "coreapps.findPatient" }, codes(table, index.search(table, "findPatient")));
+	}
+
+	/**
+	 * @see MessageTextIndex#withChange(MessageTable,String,Locale)
+	 */
+	@Test
+	@Verifies(value = "should find changed message by its new text only", method = "withChange(MessageTable,String,Locale)")
+	public void withChange_shouldFindChangedMessageByItsNewTextOnly() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		MessageTable changed = table.with("general.save", Locale.FRENCH, "Sauvegarder");
+		MessageTextIndex changedIndex = index.withChange(changed, "general.save", Locale.FRENCH);
+		assertEquals(0, changedIndex.search(changed, "enregistrer").length);
+		assertArrayEquals(new String[] { "general.save" }, codes(changed, changedIndex.search(changed, "sauvegarder")));
+		assertArrayEquals(new String[] { "general.save" }, codes(table, index.search(table, "enregistrer")));
+	}
+
+	/**
+	 * @see MessageTextIndex#withChange(MessageTable,String,Locale)
+	 */
+	@Test
+	@Verifies(value = "should find message added with new code", method = "withChange(MessageTable,String,Locale)")
+	public void withChange_shouldFindMessageAddedWithNewCode() {
+		MessageTextIndex index = MessageTextIndex.build(table);
+		MessageTable changed = table.with("general.delete", Locale.GERMAN, "Patient l\u00f6schen");
+		MessageTextIndex changedIndex = index.withChange(changed, "general.delete", Locale.GERMAN);
+		assertArrayEquals(new String[] { "general.delete" }, codes(changed, changedIndex.search(changed, "delete")));
+		assertArrayEquals(new String[] { "general.delete" }, codes(changed, changedIndex.search(changed, "L\u00d6SCHEN")));
+		assertEquals(4, changedIndex.search(changed, "patient").length);
+	}
+
+	/**
+	 * @return the codes with given ids
+	 */
+	private String[] codes(MessageTable table, int[] ids) {
+		String[] codes = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			codes[i] = table.getCode(ids[i]);
+		}
+		return codes;
+	}
+}
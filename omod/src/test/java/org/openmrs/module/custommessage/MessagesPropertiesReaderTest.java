@@ -0,0 +1,91 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+import org.openmrs.module.custommessage.util.MessagesPropertiesReader;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessagesPropertiesReader} class
+ */
+public class MessagesPropertiesReaderTest {
+
+	/**
+	 * @see MessagesPropertiesReader#next()
+	 */
+	@Test
+	@Verifies(value = "should read entries separated by equals sign, colon or whitespace", method = "next()")
+	public void next_shouldReadEntriesSeparatedByEqualsSignColonOrWhitespace() throws Exception {
+		MessagesPropertiesReader reader = new MessagesPropertiesReader(new StringReader(
+		        "first.code = First message\nsecond.code:Second\nthird.code Third message\n"));
+		assertTrue(reader.next());
+		assertEquals("first.code", reader.getKey());
+		assertEquals("First message", reader.getValue());
+		assertTrue(reader.next());
+		assertEquals("second.code", reader.getKey());
+		assertEquals("Second", reader.getValue());
+		assertTrue(reader.next());
+		assertEquals("third.code", reader.getKey());
+		assertEquals("Third message", reader.getValue());
+		assertFalse(reader.next());
+	}
+
+	/**
+	 * @see MessagesPropertiesReader#next()
+	 */
+	@Test
+	@Verifies(value = "should skip comments and blank lines", method = "next()")
+	public void next_shouldSkipCommentsAndBlankLines() throws Exception {
+		MessagesPropertiesReader reader = new MessagesPropertiesReader(new StringReader(
+		        "# comment\n\n   \n! other comment\ntest.code = Message"));
+		assertTrue(reader.next());
+		assertEquals("test.code", reader.getKey());
+		assertEquals("Message", reader.getValue());
+		assertFalse(reader.next());
+	}
+
+	/**
+	 * @see MessagesPropertiesReader#next()
+	 */
+	@Test
+	@Verifies(value = "should join continued lines", method = "next()")
+	public void next_shouldJoinContinuedLines() throws Exception {
+		MessagesPropertiesReader reader = new MessagesPropertiesReader(new StringReader(
+		        "test.code = First line, \\\n    second line\nother.code = Ends with backslash\\\\\n"));
+		assertTrue(reader.next());
+		assertEquals("First line, second line", reader.getValue());
+		assertTrue(reader.next());
+		assertEquals("other.code", reader.getKey());
+		assertEquals("Ends with backslash\\", reader.getValue());
+		assertFalse(reader.next());
+	}
+
+	/**
+	 * @see MessagesPropertiesReader#next()
+	 */
+	@Test
+	@Verifies(value = "should unescape special characters and unicode escapes", method = "next()")
+	public void next_shouldUnescapeSpecialCharactersAndUnicodeEscapes() throws Exception {
+		MessagesPropertiesReader reader = new MessagesPropertiesReader(new StringReader(
+		        "test\\=code = Line\\nbreak, D\\u00e9faut\\: \\#1"));
+		assertTrue(reader.next());
+		assertEquals("test=code", reader.getKey());
+		assertEquals("Line\nbreak, D\u00e9faut: #1", reader.getValue());
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.custommessage.util.MessagesPropertiesReader;
+import org.openmrs.module.custommessage.util.MessagesPropertiesWriter;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessagesPropertiesWriter} class
+ */
+public class MessagesPropertiesWriterTest {
+
+	private Map<String, String> entries;
+
+	private String written;
+
+	@Before
+	public void before() {
+		entries = new LinkedHashMap<String, String>();
+		entries.put("test.plain", "Plain message");
+		entries.put("test.backslash", "C:\\path\\to\\file\\");
+		entries.put("test.lines", "First line\nsecond line\r\n\tindented");
+		entries.put("test.leading", "  = leading separator and spaces");
+		entries.put("test.unicode", "Caf\u00e9 \\u00e9 {0}");
+		entries.put("test.comment", "# not a comment ! either");
+		entries.put("test key:with=separators", "Value");
+		entries.put("#test.hash", "Key looks like comment");
+		StringWriter out = new StringWriter();
+		PrintWriter writer = new PrintWriter(out);
+		MessagesPropertiesWriter properties = new MessagesPropertiesWriter(writer);
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			properties.write(entry.getKey(), entry.getValue());
+		}
+		writer.flush();
+		written = out.toString();
+	}
+
+	/**
+	 * @see MessagesPropertiesWriter#write(String,String)
+	 */
+	@Test
+	@Verifies(value = "should write entries read back unchanged by properties reader", method = "write(String,String)")
+	public void write_shouldWriteEntriesReadBackUnchangedByPropertiesReader() throws Exception {
+		MessagesPropertiesReader reader = new MessagesPropertiesReader(new StringReader(written));
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			assertTrue(reader.next());
+			assertEquals(entry.getKey(), reader.getKey());
+			assertEquals(entry.getValue(), reader.getValue());
+		}
+		assertFalse(reader.next());
+	}
+
+	/**
+	 * @see MessagesPropertiesWriter#write(String,String)
+	 */
+	@Test
+	@Verifies(value = "should write entries read back unchanged by java properties", method = "write(String,String)")
+	public void write_shouldWriteEntriesReadBackUnchangedByJavaProperties() throws Exception {
+		Properties properties = new Properties();
+		properties.load(new StringReader(written));
+		assertEquals(entries.size(), properties.size());
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			assertEquals(entry.getValue(), properties.getProperty(entry.getKey()));
+		}
+	}
+}
@@ -0,0 +1,417 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.messagesource.PresentationMessage;
+import org.openmrs.messagesource.PresentationMessageMap;
+import org.openmrs.module.custommessage.cache.MessageCodeFilter;
+import org.openmrs.module.custommessage.cache.MessageStorage;
+import org.openmrs.module.custommessage.cache.MessagesSnapshot;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link MessagesSnapshot} class
+ */
+public class MessagesSnapshotTest {
+	
+	private List<PresentationMessage> parentMessages;
+	
+	private Map<Locale, PresentationMessageMap> customMessages;
+	
+	@Before
+	public void before() {
+		parentMessages = new ArrayList<PresentationMessage>();
+		parentMessages.add(new PresentationMessage("test.code", Locale.ENGLISH, "Default", null));
+		parentMessages.add(new PresentationMessage("test.other.code", Locale.ENGLISH, "Other default", null));
+		parentMessages.add(new PresentationMessage("<!-- test.code", Locale.ENGLISH, "Commented out", null));
+		
+		customMessages = new HashMap<Locale, PresentationMessageMap>();
+		PresentationMessageMap pmm = new PresentationMessageMap(Locale.ENGLISH);
+		pmm.put("test.code", new PresentationMessage("test.code", Locale.ENGLISH, "Custom", null));
+		customMessages.put(Locale.ENGLISH, pmm);
+	}
+	
+	/**
+	 * @see MessagesSnapshot#build(Map, java.util.Collection, Locale)
+	 */
+	@Test
+	@Verifies(value = "should prefer custom messages over parent ones", method = "build(Map, Collection, Locale)")
+	public void build_shouldPreferCustomMessagesOverParentOnes() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertEquals("Custom", snapshot.getPresentation("test.code", Locale.ENGLISH).getMessage());
+		assertEquals("Other default", snapshot.getPresentation("test.other.code", Locale.ENGLISH).getMessage());
+	}
+	
+	/**
+	 * @see MessagesSnapshot#build(Map, java.util.Collection, Locale)
+	 */
+	@Test
+	@Verifies(value = "should skip parent messages with commented out codes", method = "build(Map, Collection, Locale)")
+	public void build_shouldSkipParentMessagesWithCommentedOutCodes() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertNull(snapshot.getPresentation("<!-- test.code", Locale.ENGLISH));
+		assertEquals(2, snapshot.getMessages().get(Locale.ENGLISH).size());
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withPresentation(PresentationMessage, boolean)
+	 */
+	@Test
+	@Verifies(value = "should not modify original snapshot", method = "withPresentation(PresentationMessage, boolean)")
+	public void withPresentation_shouldNotModifyOriginalSnapshot() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		MessagesSnapshot modified = snapshot.withPresentation(new PresentationMessage("new.code", Locale.FRENCH, "Nouveau",
+		        null), true);
+		assertNotSame(snapshot, modified);
+		assertNull(snapshot.getPresentation("new.code", Locale.FRENCH));
+		assertEquals("Nouveau", modified.getPresentation("new.code", Locale.FRENCH).getMessage());
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withPresentation(PresentationMessage, boolean)
+	 */
+	@Test
+	@Verifies(value = "should not override existing message if override is false", method = "withPresentation(PresentationMessage, boolean)")
+	public void withPresentation_shouldNotOverrideExistingMessageIfOverrideIsFalse() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		MessagesSnapshot modified = snapshot.withPresentation(new PresentationMessage("test.code", Locale.ENGLISH, "Changed",
+		        null), false);
+		assertSame(snapshot, modified);
+		assertEquals("Custom", modified.getPresentation("test.code", Locale.ENGLISH).getMessage());
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withoutPresentation(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should remove message only from new snapshot", method = "withoutPresentation(String, Locale)")
+	public void withoutPresentation_shouldRemoveMessageOnlyFromNewSnapshot() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		MessagesSnapshot modified = snapshot.withoutPresentation("test.other.code", Locale.ENGLISH);
+		assertNotNull(snapshot.getPresentation("test.other.code", Locale.ENGLISH));
+		assertNull(modified.getPresentation("test.other.code", Locale.ENGLISH));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withCustomMessage(String, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should add new custom message", method = "withCustomMessage(String, Locale, String)")
+	public void withCustomMessage_shouldAddNewCustomMessage() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		MessagesSnapshot modified = snapshot.withCustomMessage("new.code", Locale.FRENCH, "Nouveau");
+		assertEquals("Nouveau", modified.getPresentation("new.code", Locale.FRENCH).getMessage());
+		assertTrue(modified.isCustomized("new.code", Locale.FRENCH));
+		assertFalse(snapshot.isCustomized("new.code", Locale.FRENCH));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withCustomMessage(String, Locale, String)
+	 */
+	@Test
+	@Verifies(value = "should replace parent message", method = "withCustomMessage(String, Locale, String)")
+	public void withCustomMessage_shouldReplaceParentMessage() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		MessagesSnapshot modified = snapshot.withCustomMessage("test.other.code", Locale.ENGLISH, "Other custom");
+		assertEquals("Other custom", modified.getPresentation("test.other.code", Locale.ENGLISH).getMessage());
+		assertEquals("Other default", snapshot.getPresentation("test.other.code", Locale.ENGLISH).getMessage());
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withoutCustomMessage(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should revert to parent message", method = "withoutCustomMessage(String, Locale)")
+	public void withoutCustomMessage_shouldRevertToParentMessage() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		MessagesSnapshot modified = snapshot.withoutCustomMessage("test.code", Locale.ENGLISH);
+		assertEquals("Default", modified.getPresentation("test.code", Locale.ENGLISH).getMessage());
+		assertFalse(modified.isCustomized("test.code", Locale.ENGLISH));
+		
+		// the same should work for messages customized after snapshot has been built
+		modified = modified.withCustomMessage("test.code", Locale.ENGLISH, "Custom again").withoutCustomMessage(
+		    "test.code", Locale.ENGLISH);
+		assertEquals("Default", modified.getPresentation("test.code", Locale.ENGLISH).getMessage());
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withoutCustomMessage(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should remove message without parent one", method = "withoutCustomMessage(String, Locale)")
+	public void withoutCustomMessage_shouldRemoveMessageWithoutParentOne() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null).withCustomMessage("new.code",
+		    Locale.FRENCH, "Nouveau");
+		MessagesSnapshot modified = snapshot.withoutCustomMessage("new.code", Locale.FRENCH);
+		assertNull(modified.getPresentation("new.code", Locale.FRENCH));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#putMessageFormat(String, Locale, MessageFormat)
+	 */
+	@Test
+	@Verifies(value = "should cache format only within this snapshot and its unrelated changes", method = "putMessageFormat(String, Locale, MessageFormat)")
+	public void putMessageFormat_shouldCacheFormatOnlyWithinThisSnapshotAndItsUnrelatedChanges() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		MessageFormat format = new MessageFormat("Default {0}");
+		snapshot.putMessageFormat("test.code", Locale.ENGLISH, format);
+		assertSame(format, snapshot.getMessageFormat("test.code", Locale.ENGLISH));
+		
+		// format of unrelated message is still valid after change
+		assertSame(format, snapshot.withCustomMessage("test.other.code", Locale.ENGLISH, "Changed").getMessageFormat(
+		    "test.code", Locale.ENGLISH));
+		// but not after change of the message it was compiled from
+		assertNull(snapshot.withCustomMessage("test.code", Locale.ENGLISH, "Changed").getMessageFormat("test.code",
+		    Locale.ENGLISH));
+		// and not after full rebuild
+		assertNull(MessagesSnapshot.build(customMessages, parentMessages, null).getMessageFormat("test.code", Locale.ENGLISH));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#getMessage(String, Locale)
+	 */
+	@Test
+	@Verifies(value = "should fall back to language of requested locale", method = "getMessage(String, Locale)")
+	public void getMessage_shouldFallBackToLanguageOfRequestedLocale() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertEquals("Custom", snapshot.getMessage("test.code", Locale.US));
+		assertNull(snapshot.getPresentation("test.code", Locale.US));
+		assertEquals("Default", snapshot.withoutCustomMessage("test.code", Locale.ENGLISH).getMessage("test.code", Locale.UK));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#mightContainCode(String)
+	 */
+	@Test
+	@Verifies(value = "should not reject any known code", method = "mightContainCode(String)")
+	public void mightContainCode_shouldNotRejectAnyKnownCode() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertTrue(snapshot.mightContainCode("test.code"));
+		assertTrue(snapshot.mightContainCode("test.other.code"));
+		snapshot = snapshot.withCustomMessage("test.new.code", Locale.FRENCH, "Nouveau");
+		assertTrue(snapshot.mightContainCode("test.new.code"));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#mightContainCode(String)
+	 */
+	@Test
+	@Verifies(value = "should reject unknown code", method = "mightContainCode(String)")
+	public void mightContainCode_shouldRejectUnknownCode() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertFalse(snapshot.mightContainCode("test.unknown.code"));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#mightContainCode(String)
+	 */
+	@Test
+	@Verifies(value = "should not reject codes of locales not loaded yet", method = "mightContainCode(String)")
+	public void mightContainCode_shouldNotRejectCodesOfLocalesNotLoadedYet() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null, MessageStorage.HEAP,
+		    Collections.singleton(Locale.ENGLISH));
+		assertTrue(snapshot.mightContainCode("test.french.code"));
+		MessagesSnapshot loaded = snapshot.withLocales(Collections.singleton(Locale.GERMAN),
+		    new HashMap<Locale, PresentationMessageMap>(), new ArrayList<PresentationMessage>());
+		assertTrue(loaded.mightContainCode("test.french.code"));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withCodeFilter(MessageCodeFilter)
+	 */
+	@Test
+	@Verifies(value = "should reject codes unknown to given filter", method = "withCodeFilter(MessageCodeFilter)")
+	public void withCodeFilter_shouldRejectCodesUnknownToGivenFilter() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null, MessageStorage.HEAP,
+		    Collections.singleton(Locale.ENGLISH)).withCodeFilter(
+		    MessageCodeFilter.build(Arrays.asList("test.code", "test.other.code", "test.french.code")));
+		assertTrue(snapshot.mightContainCode("test.french.code"));
+		assertFalse(snapshot.mightContainCode("test.unknown.code"));
+		// the filter of all codes is kept when other locales are loaded
+		MessagesSnapshot loaded = snapshot.withLocales(Collections.singleton(Locale.GERMAN),
+		    new HashMap<Locale, PresentationMessageMap>(), Collections.singletonList(new PresentationMessage(
+		        "test.german.code", Locale.GERMAN, "Deutsch", null)));
+		assertTrue(loaded.mightContainCode("test.french.code"));
+		assertFalse(loaded.mightContainCode("test.unknown.code"));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#getMessages()
+	 */
+	@Test
+	@Verifies(value = "should contain every merged message", method = "getMessages()")
+	public void getMessages_shouldContainEveryMergedMessage() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		snapshot = snapshot.withCustomMessage("test.new.code", Locale.FRENCH, "Nouveau");
+		Map<Locale, PresentationMessageMap> messages = snapshot.getMessages();
+		assertEquals(2, messages.size());
+		assertEquals("Custom", messages.get(Locale.ENGLISH).get("test.code").getMessage());
+		assertEquals("Other default", messages.get(Locale.ENGLISH).get("test.other.code").getMessage());
+		assertEquals("Nouveau", messages.get(Locale.FRENCH).get("test.new.code").getMessage());
+		assertEquals(1, messages.get(Locale.FRENCH).size());
+	}
+	
+	/**
+	 * @see MessagesSnapshot#getDefaultMessages()
+	 */
+	@Test
+	@Verifies(value = "should return visible and shadowed parent messages", method = "getDefaultMessages()")
+	public void getDefaultMessages_shouldReturnVisibleAndShadowedParentMessages() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		Map<String, String> defaults = new HashMap<String, String>();
+		for (PresentationMessage pm : snapshot.getDefaultMessages()) {
+			defaults.put(pm.getCode(), pm.getMessage());
+		}
+		assertEquals(2, defaults.size());
+		assertEquals("Default", defaults.get("test.code"));
+		assertEquals("Other default", defaults.get("test.other.code"));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withLocales(java.util.Collection, Map, java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should keep messages of locales loaded before", method = "withLocales(Collection, Map, Collection)")
+	public void withLocales_shouldKeepMessagesOfLocalesLoadedBefore() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null, MessageStorage.HEAP,
+		    Collections.singleton(Locale.ENGLISH));
+		assertFalse(snapshot.isLoaded(Locale.FRENCH));
+		List<PresentationMessage> frenchMessages = new ArrayList<PresentationMessage>();
+		frenchMessages.add(new PresentationMessage("test.code", Locale.FRENCH, "D\u00e9faut", null));
+		Map<Locale, PresentationMessageMap> frenchCustoms = new HashMap<Locale, PresentationMessageMap>();
+		frenchCustoms.put(Locale.FRENCH, new PresentationMessageMap(Locale.FRENCH));
+		MessagesSnapshot loaded = snapshot.withLocales(Collections.singleton(Locale.FRENCH), frenchCustoms, frenchMessages);
+		assertTrue(loaded.isLoaded(Locale.FRENCH));
+		assertEquals("D\u00e9faut", loaded.getMessage("test.code", Locale.FRENCH));
+		assertEquals("Custom", loaded.getMessage("test.code", Locale.ENGLISH));
+		assertEquals("Other default", loaded.getMessage("test.other.code", Locale.ENGLISH));
+		assertTrue(loaded.isCustomized("test.code", Locale.ENGLISH));
+		// the parent message hidden by custom one must still be known after the rebuild
+		assertEquals("Default", loaded.withoutCustomMessage("test.code", Locale.ENGLISH).getMessage("test.code",
+		    Locale.ENGLISH));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#withLocales(java.util.Collection, Map, java.util.Collection)
+	 */
+	@Test
+	@Verifies(value = "should mark locales without messages as loaded", method = "withLocales(Collection, Map, Collection)")
+	public void withLocales_shouldMarkLocalesWithoutMessagesAsLoaded() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null, MessageStorage.HEAP,
+		    Collections.singleton(Locale.ENGLISH));
+		MessagesSnapshot loaded = snapshot.withLocales(Collections.singleton(Locale.GERMAN),
+		    new HashMap<Locale, PresentationMessageMap>(), new ArrayList<PresentationMessage>());
+		assertTrue(loaded.isLoaded(Locale.GERMAN));
+		assertFalse(snapshot.isLoaded(Locale.GERMAN));
+		assertSame(snapshot.getTable(), loaded.getTable());
+		assertSame(loaded, loaded.withLocales(Collections.singleton(Locale.GERMAN),
+		    new HashMap<Locale, PresentationMessageMap>(), new ArrayList<PresentationMessage>()));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#searchCodes(String)
+	 */
+	@Test
+	@Verifies(value = "should find codes by words of messages", method = "searchCodes(String)")
+	public void searchCodes_shouldFindCodesByWordsOfMessages() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		int[] ids = snapshot.searchCodes("other");
+		assertEquals(1, ids.length);
+		assertEquals("test.other.code", snapshot.getTable().getCode(ids[0]));
+		assertEquals(1, snapshot.searchCodes("custom").length);
+		assertEquals(0, snapshot.searchCodes("default other missing").length);
+	}
+	
+	/**
+	 * @see MessagesSnapshot#searchCodes(String)
+	 */
+	@Test
+	@Verifies(value = "should find messages changed after first search", method = "searchCodes(String)")
+	public void searchCodes_shouldFindMessagesChangedAfterFirstSearch() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertEquals(1, snapshot.searchCodes("custom").length);
+		MessagesSnapshot changed = snapshot.withCustomMessage("test.other.code", Locale.ENGLISH, "Changed")
+		        .withoutCustomMessage("test.code", Locale.ENGLISH).withCustomMessage("test.new", Locale.ENGLISH, "Changed");
+		assertEquals(0, changed.searchCodes("custom").length);
+		assertEquals(2, changed.searchCodes("changed").length);
+		assertEquals(1, changed.searchCodes("new").length);
+		assertEquals(1, snapshot.searchCodes("custom").length);
+	}
+	
+	/**
+	 * @see MessagesSnapshot#getCoverage()
+	 */
+	@Test
+	@Verifies(value = "should cover messages changed after first use", method = "getCoverage()")
+	public void getCoverage_shouldCoverMessagesChangedAfterFirstUse() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertEquals(2, snapshot.getCoverage().getMessageCount(Locale.ENGLISH, null));
+		MessagesSnapshot changed = snapshot.withCustomMessage("test.new", Locale.FRENCH, "Nouveau").withoutPresentation(
+		    "test.other.code", Locale.ENGLISH);
+		assertEquals(1, changed.getCoverage().getMessageCount(Locale.ENGLISH, null));
+		assertEquals(1, changed.getCoverage().getMessageCount(Locale.FRENCH, null));
+		assertEquals(2, changed.getCoverage().getCodeCount(null));
+		assertEquals(2, snapshot.getCoverage().getMessageCount(Locale.ENGLISH, null));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#getCustomMessage(String,Locale)
+	 */
+	@Test
+	@Verifies(value = "should return text of custom message only", method = "getCustomMessage(String,Locale)")
+	public void getCustomMessage_shouldReturnTextOfCustomMessageOnly() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertEquals("Custom", snapshot.getCustomMessage("test.code", Locale.ENGLISH));
+		assertNull(snapshot.getCustomMessage("test.other.code", Locale.ENGLISH));
+		assertNull(snapshot.getCustomMessage("test.code", Locale.FRENCH));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#getDefaultMessage(String,Locale)
+	 */
+	@Test
+	@Verifies(value = "should return parent message hidden by custom one", method = "getDefaultMessage(String,Locale)")
+	public void getDefaultMessage_shouldReturnParentMessageHiddenByCustomOne() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertEquals("Default", snapshot.getDefaultMessage("test.code", Locale.ENGLISH));
+		MessagesSnapshot changed = snapshot.withCustomMessage("test.other.code", Locale.ENGLISH, "Other custom");
+		assertEquals("Other default", changed.getDefaultMessage("test.other.code", Locale.ENGLISH));
+		assertNull(changed.withCustomMessage("test.new", Locale.ENGLISH, "New").getDefaultMessage("test.new",
+		    Locale.ENGLISH));
+	}
+	
+	/**
+	 * @see MessagesSnapshot#getDefaultMessage(String,Locale)
+	 */
+	@Test
+	@Verifies(value = "should return visible parent message", method = "getDefaultMessage(String,Locale)")
+	public void getDefaultMessage_shouldReturnVisibleParentMessage() {
+		MessagesSnapshot snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+		assertEquals("Other default", snapshot.getDefaultMessage("test.other.code", Locale.ENGLISH));
+		assertNull(snapshot.getDefaultMessage("test.other.code", Locale.FRENCH));
+	}
+}
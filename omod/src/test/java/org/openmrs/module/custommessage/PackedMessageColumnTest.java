@@ -0,0 +1,120 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.openmrs.module.custommessage.cache.MessageStorage;
+import org.openmrs.module.custommessage.cache.PackedMessageColumn;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link PackedMessageColumn} class
+ */
+public class PackedMessageColumnTest {
+	
+	/**
+	 * @see PackedMessageColumn#pack(String[], MessageStorage)
+	 */
+	@Test
+	@Verifies(value = "should find every packed message", method = "pack(String[], MessageStorage)")
+	public void pack_shouldFindEveryPackedMessage() {
+		String[] texts = new String[500];
+		for (int i = 0; i < texts.length; i++) {
+			texts[i] = i % 3 == 0 ? null : "Message " + i;
+		}
+		PackedMessageColumn column = PackedMessageColumn.pack(texts, MessageStorage.DIRECT);
+		for (int i = 0; i < texts.length; i++) {
+			assertEquals(texts[i], column.get(i));
+		}
+		assertNull(column.get(500));
+		assertNull(column.get(-1));
+	}
+	
+	/**
+	 * @see PackedMessageColumn#pack(String[], MessageStorage)
+	 */
+	@Test
+	@Verifies(value = "should keep non ascii texts", method = "pack(String[], MessageStorage)")
+	public void pack_shouldKeepNonAsciiTexts() {
+		String[] texts = new String[] { "Caf\u00e9 \u0444 \u20ac \ud83d\ude00", "" };
+		PackedMessageColumn column = PackedMessageColumn.pack(texts, MessageStorage.HEAP);
+		assertEquals("Caf\u00e9 \u0444 \u20ac \ud83d\ude00", column.get(0));
+		assertEquals("", column.get(1));
+	}
+	
+	/**
+	 * @see MessageStorage#store(byte[])
+	 */
+	@Test
+	@Verifies(value = "should store data in direct buffer", method = "store(byte[])")
+	public void store_shouldStoreDataInDirectBuffer() {
+		ByteBuffer buffer = MessageStorage.DIRECT.store(new byte[] { 1, 2, 3 });
+		assertTrue(buffer.isDirect());
+		assertEquals(3, buffer.remaining());
+		assertEquals(2, buffer.get(1));
+	}
+	
+	/**
+	 * @see MessageStorage#store(byte[])
+	 */
+	@Test
+	@Verifies(value = "should not leave mapped files in directory", method = "store(byte[])")
+	public void store_shouldNotLeaveMappedFilesInDirectory() throws Exception {
+		File directory = File.createTempFile("messages", "");
+		directory.delete();
+		try {
+			ByteBuffer buffer = MessageStorage.mapped(directory).store(new byte[] { 1, 2, 3 });
+			assertEquals(2, buffer.get(1));
+			assertEquals(0, directory.list().length);
+		}
+		finally {
+			directory.delete();
+		}
+	}
+	
+	/**
+	 * @see PackedMessageColumn#with(int, String)
+	 */
+	@Test
+	@Verifies(value = "should keep changed messages without repacking", method = "with(int, String)")
+	public void with_shouldKeepChangedMessagesWithoutRepacking() {
+		PackedMessageColumn column = PackedMessageColumn.pack(new String[] { "Message", "Other" }, MessageStorage.DIRECT);
+		PackedMessageColumn changed = column.with(0, "Changed").with(5, "New").with(0, "Changed again");
+		assertEquals(2, changed.getOverlaySize());
+		assertEquals("Changed again", changed.get(0));
+		assertEquals("Other", changed.get(1));
+		assertEquals("New", changed.get(5));
+		assertNull(changed.get(4));
+		assertEquals("Message", column.get(0));
+		assertNull(column.get(5));
+	}
+	
+	/**
+	 * @see PackedMessageColumn#with(int, String)
+	 */
+	@Test
+	@Verifies(value = "should hide removed messages", method = "with(int, String)")
+	public void with_shouldHideRemovedMessages() {
+		PackedMessageColumn column = PackedMessageColumn.pack(new String[] { "Message", "Other" }, MessageStorage.DIRECT);
+		PackedMessageColumn changed = column.with(0, null);
+		assertNull(changed.get(0));
+		assertEquals("Other", changed.get(1));
+		assertEquals("Message", column.get(0));
+	}
+}
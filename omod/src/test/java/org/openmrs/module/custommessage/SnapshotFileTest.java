@@ -0,0 +1,109 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.custommessage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.messagesource.PresentationMessage;
+import org.openmrs.messagesource.PresentationMessageMap;
+import org.openmrs.module.custommessage.cache.MessageCodeFilter;
+import org.openmrs.module.custommessage.cache.MessageStorage;
+import org.openmrs.module.custommessage.cache.MessagesSnapshot;
+import org.openmrs.module.custommessage.cache.SnapshotFile;
+import org.openmrs.test.Verifies;
+
+/**
+ * This class contains unit tests of {@link SnapshotFile} class
+ */
+public class SnapshotFileTest {
+
+	private File file;
+
+	private MessagesSnapshot snapshot;
+
+	@Before
+	public void before() throws Exception {
+		file = File.createTempFile("snapshot", ".bin");
+		List<PresentationMessage> parentMessages = new ArrayList<PresentationMessage>();
+		parentMessages.add(new PresentationMessage("test.code", Locale.ENGLISH, "Default", null));
+		parentMessages.add(new PresentationMessage("test.other.code", Locale.FRENCH, "D\u00e9faut", null));
+		Map<Locale, PresentationMessageMap> customMessages = new HashMap<Locale, PresentationMessageMap>();
+		PresentationMessageMap pmm = new PresentationMessageMap(Locale.ENGLISH);
+		pmm.put("test.code", new PresentationMessage("test.code", Locale.ENGLISH, "Custom", null));
+		customMessages.put(Locale.ENGLISH, pmm);
+		snapshot = MessagesSnapshot.build(customMessages, parentMessages, null);
+	}
+
+	@After
+	public void after() {
+		file.delete();
+	}
+
+	/**
+	 * @see SnapshotFile#write(File, String, MessagesSnapshot)
+	 */
+	@Test
+	@Verifies(value = "should write snapshot that can be read with the same fingerprint", method = "write(File, String, MessagesSnapshot)")
+	public void write_shouldWriteSnapshotThatCanBeReadWithTheSameFingerprint() throws Exception {
+		SnapshotFile.write(file, "1.10|3|module:1.0", snapshot);
+		MessagesSnapshot read = SnapshotFile.read(file, "1.10|3|module:1.0", null, MessageStorage.HEAP);
+		assertNotNull(read);
+		assertEquals("Custom", read.getMessage("test.code", Locale.ENGLISH));
+		assertTrue(read.isCustomized("test.code", Locale.ENGLISH));
+		assertEquals("D\u00e9faut", read.getMessage("test.other.code", Locale.FRENCH));
+		// the parent message hidden by custom one must survive, so it can be restored
+		assertEquals("Default", read.withoutCustomMessage("test.code", Locale.ENGLISH).getMessage("test.code",
+		    Locale.ENGLISH));
+	}
+
+	/**
+	 * @see SnapshotFile#write(File, String, MessagesSnapshot)
+	 */
+	@Test
+	@Verifies(value = "should keep filter of codes of locales not loaded", method = "write(File, String, MessagesSnapshot)")
+	public void write_shouldKeepFilterOfCodesOfLocalesNotLoaded() throws Exception {
+		List<PresentationMessage> parentMessages = new ArrayList<PresentationMessage>();
+		parentMessages.add(new PresentationMessage("test.code", Locale.ENGLISH, "Default", null));
+		MessagesSnapshot partial = MessagesSnapshot.build(new HashMap<Locale, PresentationMessageMap>(), parentMessages,
+		    null, MessageStorage.HEAP, Collections.singleton(Locale.ENGLISH)).withCodeFilter(
+		    MessageCodeFilter.build(Arrays.asList("test.code", "test.german.code")));
+		SnapshotFile.write(file, "1.10|3|module:1.0", partial);
+		MessagesSnapshot read = SnapshotFile.read(file, "1.10|3|module:1.0", null, MessageStorage.HEAP);
+		assertFalse(read.isLoaded(Locale.GERMAN));
+		assertTrue(read.mightContainCode("test.german.code"));
+		assertFalse(read.mightContainCode("test.unknown.code"));
+	}
+
+	/**
+	 * @see SnapshotFile#read(File, String, Locale, MessageStorage)
+	 */
+	@Test
+	@Verifies(value = "should return null if fingerprint differs", method = "read(File, String, Locale, MessageStorage)")
+	public void read_shouldReturnNullIfFingerprintDiffers() throws Exception {
+		SnapshotFile.write(file, "1.10|3|module:1.0", snapshot);
+		assertNull(SnapshotFile.read(file, "1.10|4|module:1.0", null, MessageStorage.HEAP));
+	}
+}